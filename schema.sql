@@ -107,6 +107,33 @@ CREATE TABLE `config` (
 
 
 
+# Dump of table delivery_queue
+# ------------------------------------------------------------
+
+CREATE TABLE `delivery_queue` (
+  `id` bigint(20) unsigned NOT NULL AUTO_INCREMENT,
+  `inbox` varchar(300) CHARACTER SET ascii NOT NULL,
+  `host` varchar(100) CHARACTER SET ascii NOT NULL DEFAULT '',
+  `actor_user_id` int(11) unsigned DEFAULT NULL,
+  `actor_group_id` int(11) unsigned DEFAULT NULL,
+  `payload` mediumtext NOT NULL,
+  `attempts` int(10) unsigned NOT NULL DEFAULT '0',
+  `next_attempt_at` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `created_at` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `last_error` text,
+  `dead` tinyint(1) NOT NULL DEFAULT '0',
+  PRIMARY KEY (`id`),
+  KEY `dead` (`dead`,`next_attempt_at`),
+  KEY `inbox` (`inbox`),
+  KEY `actor_user_id` (`actor_user_id`),
+  KEY `actor_group_id` (`actor_group_id`),
+  KEY `host` (`host`,`dead`,`next_attempt_at`),
+  CONSTRAINT `delivery_queue_ibfk_1` FOREIGN KEY (`actor_user_id`) REFERENCES `users` (`id`) ON DELETE CASCADE,
+  CONSTRAINT `delivery_queue_ibfk_2` FOREIGN KEY (`actor_group_id`) REFERENCES `groups` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+
+
 # Dump of table draft_attachments
 # ------------------------------------------------------------
 
@@ -288,6 +315,22 @@ CREATE TABLE `newsfeed` (
 
 
 
+# Dump of table newsfeed_timeline
+# ------------------------------------------------------------
+
+CREATE TABLE `newsfeed_timeline` (
+  `owner_id` int(11) unsigned NOT NULL,
+  `entry_id` int(10) unsigned NOT NULL,
+  `time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`owner_id`,`entry_id`),
+  KEY `time` (`owner_id`,`time`,`entry_id`),
+  KEY `entry_id` (`entry_id`),
+  CONSTRAINT `newsfeed_timeline_ibfk_1` FOREIGN KEY (`owner_id`) REFERENCES `users` (`id`) ON DELETE CASCADE,
+  CONSTRAINT `newsfeed_timeline_ibfk_2` FOREIGN KEY (`entry_id`) REFERENCES `newsfeed` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+
+
 # Dump of table notifications
 # ------------------------------------------------------------
 
@@ -308,6 +351,18 @@ CREATE TABLE `notifications` (
 
 
 
+# Dump of table processed_activities
+# ------------------------------------------------------------
+
+CREATE TABLE `processed_activities` (
+  `id_hash` binary(16) NOT NULL,
+  `time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`id_hash`),
+  KEY `time` (`time`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+
+
 # Dump of table qsearch_index
 # ------------------------------------------------------------
 
@@ -324,6 +379,24 @@ CREATE TABLE `qsearch_index` (
 
 
 
+# Dump of table reply_crawl_queue
+# ------------------------------------------------------------
+
+CREATE TABLE `reply_crawl_queue` (
+  `id` bigint(20) unsigned NOT NULL AUTO_INCREMENT,
+  `root_post_id` int(11) unsigned NOT NULL,
+  `post_id` int(11) unsigned NOT NULL,
+  `type` tinyint(3) unsigned NOT NULL,
+  `uri` varchar(300) CHARACTER SET ascii DEFAULT NULL,
+  PRIMARY KEY (`id`),
+  KEY `root_post_id` (`root_post_id`),
+  KEY `post_id` (`post_id`),
+  CONSTRAINT `reply_crawl_queue_ibfk_1` FOREIGN KEY (`root_post_id`) REFERENCES `wall_posts` (`id`) ON DELETE CASCADE,
+  CONSTRAINT `reply_crawl_queue_ibfk_2` FOREIGN KEY (`post_id`) REFERENCES `wall_posts` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+
+
 # Dump of table servers
 # ------------------------------------------------------------
 
@@ -426,6 +499,7 @@ CREATE TABLE `wall_posts` (
   `mentions` varbinary(1024) DEFAULT NULL,
   `reply_count` int(10) unsigned NOT NULL DEFAULT '0',
   `ap_replies` varchar(300) DEFAULT NULL,
+  `like_count` int(10) unsigned NOT NULL DEFAULT '0',
   PRIMARY KEY (`id`),
   UNIQUE KEY `ap_id` (`ap_id`),
   KEY `owner_user_id` (`owner_user_id`),
@@ -0,0 +1,93 @@
+package smithereen.jsonld;
+
+import com.google.gson.JsonObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static smithereen.jsonld.TestUtils.*;
+
+/**
+ * Run with <code>mvn -P benchmark test-compile exec:exec</code>, pass JMH options via <code>-Djmh.args="..."</code>
+ * (e.g. <code>-Djmh.args="URDNA2015Benchmark.normalize -p fixture=044"</code>).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class URDNA2015Benchmark{
+
+	private JsonObject activity, signedActivity;
+
+	@Setup
+	public void setUp(){
+		activity=readResourceAsJSON("/ld-signature/00a-unsigned_payload.json").getAsJsonObject();
+		signedActivity=readResourceAsJSON("/ld-signature/mastodon_signed_create.json").getAsJsonObject();
+	}
+
+	@Benchmark
+	public void normalize(Fixtures fixtures, Blackhole bh){
+		for(List<RDFTriple> input:fixtures.inputs)
+			bh.consume(URDNA2015.normalize(input));
+	}
+
+	/**
+	 * The whole path an incoming activity goes through: expansion, conversion to RDF, normalization and serialization.
+	 */
+	@Benchmark
+	public String canonicalizeActivity(){
+		return URDNA2015.canonicalize(activity, null);
+	}
+
+	/**
+	 * The data half of what {@link LinkedDataSignatures#verify(JsonObject, java.security.PublicKey)} hashes.
+	 */
+	@Benchmark
+	public String canonicalizeSignedActivityHashes(){
+		JsonObject data=new JsonObject();
+		for(String key:signedActivity.keySet()){
+			if(!"signature".equals(key))
+				data.add(key, signedActivity.get(key));
+		}
+		return URDNA2015.sha256Hex(URDNA2015.canonicalize(data, null));
+	}
+
+	@State(Scope.Thread)
+	public static class Fixtures{
+		/**
+		 * A URDNA2015Tests fixture number, or "all" to normalize every one of them per invocation.
+		 * 044-046 are the pathological cases, 016-030 are blank node cycles.
+		 */
+		@Param({"all", "003", "016", "023", "044"})
+		public String fixture;
+
+		private List<List<RDFTriple>> inputs;
+
+		@Setup
+		public void setUp(){
+			inputs=new ArrayList<>();
+			if("all".equals(fixture)){
+				for(int i=1;i<=62;i++)
+					inputs.add(parseRDF(readResourceAsLines(String.format("/urdna2015/test%03d-in.nq", i))));
+			}else{
+				inputs.add(parseRDF(readResourceAsLines("/urdna2015/test"+fixture+"-in.nq")));
+			}
+		}
+	}
+}
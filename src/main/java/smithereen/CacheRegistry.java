@@ -0,0 +1,55 @@
+package smithereen;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates in-memory caches sized according to the cache.* config options and keeps track of them for the server stats.
+ * Cache names are dot-separated, see {@link Config#getCacheSize(String, int)}.
+ */
+public class CacheRegistry{
+	private static final ConcurrentHashMap<String, LruCache<?, ?>> caches=new ConcurrentHashMap<>();
+
+	public static <K, V> LruCache<K, V> create(String name, int defaultSize){
+		return create(name, defaultSize, 0);
+	}
+
+	/**
+	 * @param defaultTTL time in milliseconds after which entries expire if not configured, 0 for no expiration
+	 */
+	public static <K, V> LruCache<K, V> create(String name, int defaultSize, long defaultTTL){
+		LruCache<K, V> cache=new LruCache<>(Config.getCacheSize(name, defaultSize), Config.getCacheTTL(name, defaultTTL));
+		if(caches.putIfAbsent(name, cache)!=null)
+			throw new IllegalStateException("Cache '"+name+"' already exists");
+		return cache;
+	}
+
+	/**
+	 * @return stats for all caches, sorted by name
+	 */
+	public static Map<String, CacheStats> getStats(){
+		TreeMap<String, CacheStats> result=new TreeMap<>();
+		for(Map.Entry<String, LruCache<?, ?>> e:caches.entrySet()){
+			LruCache<?, ?> cache=e.getValue();
+			CacheStats stats=new CacheStats();
+			stats.size=cache.size();
+			stats.maxSize=cache.maxSize();
+			stats.ttl=cache.expireAfterWrite()/1000L;
+			stats.hits=cache.hitCount();
+			stats.misses=cache.missCount();
+			stats.evictions=cache.evictionCount();
+			stats.expirations=cache.expirationCount();
+			long accesses=stats.hits+stats.misses;
+			stats.hitRate=accesses==0 ? 0 : (double)stats.hits/accesses;
+			result.put(e.getKey(), stats);
+		}
+		return result;
+	}
+
+	public static class CacheStats{
+		public int size, maxSize;
+		public long ttl, hits, misses, evictions, expirations;
+		public double hitRate;
+	}
+}
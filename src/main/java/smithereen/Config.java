@@ -23,6 +23,10 @@ public class Config{
 	public static String dbUser;
 	public static String dbPassword;
 	public static String dbName;
+	public static int dbPoolMaxSize;
+	public static int dbPoolMinIdle;
+	public static long dbPoolBorrowTimeout;
+	public static long dbPoolIdleTimeout;
 
 	public static String domain;
 
@@ -33,8 +37,16 @@ public class Config{
 	public static File mediaCachePath;
 	public static long mediaCacheMaxSize;
 	public static long mediaCacheFileSizeLimit;
+	public static int mediaCacheDownloadThreads;
+	public static int mediaCacheDownloadQueueSize;
 	public static boolean useHTTP;
+	public static boolean inboxAsync;
+	public static boolean inboxDedupInDatabase;
+	public static int inboxQueueSize;
+	public static int inboxWorkerThreads;
+	public static int newsfeedMaxEntries;
 	public static String staticFilesPath;
+	private static final HashMap<String, String> cacheSettings=new HashMap<>();
 	public static final boolean DEBUG=System.getProperty("smithereen.debug")!=null;
 
 	public static String imgproxyLocalUploads;
@@ -48,6 +60,10 @@ public class Config{
 	// following fields are kept in the config table in database and some are configurable from /settings/admin
 
 	public static int dbSchemaVersion;
+	/**
+	 * The highest user ID whose newsfeed timeline has been backfilled after the upgrade that introduced timelines, or -1 when there's nothing left to backfill
+	 */
+	public static int newsfeedBackfillPosition=-1;
 	public static String serverDisplayName;
 	public static String serverDescription;
 	public static String serverShortDescription;
@@ -72,6 +88,10 @@ public class Config{
 		dbUser=props.getProperty("db.user");
 		dbPassword=props.getProperty("db.password");
 		dbName=props.getProperty("db.name");
+		dbPoolMaxSize=Math.max(1, Utils.parseIntOrDefault(props.getProperty("db.pool.max_size"), 30));
+		dbPoolMinIdle=Math.max(0, Utils.parseIntOrDefault(props.getProperty("db.pool.min_idle"), 4));
+		dbPoolBorrowTimeout=Utils.parseIntOrDefault(props.getProperty("db.pool.borrow_timeout"), 10)*1000L;
+		dbPoolIdleTimeout=Utils.parseIntOrDefault(props.getProperty("db.pool.idle_timeout"), 300)*1000L;
 
 		domain=props.getProperty("domain");
 
@@ -79,6 +99,8 @@ public class Config{
 		mediaCachePath=new File(props.getProperty("media_cache.path"));
 		mediaCacheMaxSize=Utils.parseFileSize(props.getProperty("media_cache.max_size"));
 		mediaCacheFileSizeLimit=Utils.parseFileSize(props.getProperty("media_cache.file_size_limit"));
+		mediaCacheDownloadThreads=Math.max(1, Utils.parseIntOrDefault(props.getProperty("media_cache.download_threads"), Runtime.getRuntime().availableProcessors()));
+		mediaCacheDownloadQueueSize=Math.max(1, Utils.parseIntOrDefault(props.getProperty("media_cache.download_queue_size"), 100));
 
 		useHTTP=Boolean.parseBoolean(props.getProperty("use_http_scheme.i_know_what_i_am_doing", "false"));
 		localURI=URI.create("http"+(useHTTP ? "" : "s")+"://"+domain+"/");
@@ -87,6 +109,19 @@ public class Config{
 		serverPort=Utils.parseIntOrDefault(props.getProperty("server.port", "4567"), 4567);
 		staticFilesPath=props.getProperty("web.static_files_path");
 
+		inboxAsync=Boolean.parseBoolean(props.getProperty("activitypub.inbox.async", "false"));
+		inboxDedupInDatabase=Boolean.parseBoolean(props.getProperty("activitypub.inbox.dedup_in_db", "false"));
+		inboxQueueSize=Math.max(1, Utils.parseIntOrDefault(props.getProperty("activitypub.inbox.queue_size"), 1000));
+		inboxWorkerThreads=Math.max(1, Utils.parseIntOrDefault(props.getProperty("activitypub.inbox.workers"), Runtime.getRuntime().availableProcessors()));
+
+		newsfeedMaxEntries=Math.max(25, Utils.parseIntOrDefault(props.getProperty("newsfeed.max_entries"), 1000));
+
+		cacheSettings.clear();
+		for(String key:props.stringPropertyNames()){
+			if(key.startsWith("cache."))
+				cacheSettings.put(key.substring(6), props.getProperty(key));
+		}
+
 		imgproxyUrl=props.getProperty("imgproxy.url_prefix");
 		imgproxyLocalUploads=props.getProperty("imgproxy.local_uploads");
 		imgproxyLocalMediaCache=props.getProperty("imgproxy.local_media_cache");
@@ -106,6 +141,7 @@ public class Config{
 				}while(res.next());
 			}
 			dbSchemaVersion=Utils.parseIntOrDefault(dbValues.get("SchemaVersion"), 0);
+			newsfeedBackfillPosition=Utils.parseIntOrDefault(dbValues.get("NewsfeedBackfillPosition"), -1);
 
 			serverDisplayName=dbValues.get("ServerDisplayName");
 			serverDescription=dbValues.get("ServerDescription");
@@ -161,6 +197,36 @@ public class Config{
 		return uri.getHost().equalsIgnoreCase(domain);
 	}
 
+	/**
+	 * Looks up cache.&lt;name&gt;.size, falling back to the settings of the parent names, so that cache.users.size applies
+	 * to users.by_id, users.by_username etc unless they're configured individually.
+	 */
+	public static int getCacheSize(String name, int defaultSize){
+		return Math.max(1, Utils.parseIntOrDefault(getCacheSetting(name, "size"), defaultSize));
+	}
+
+	/**
+	 * @return the TTL in milliseconds from cache.&lt;name&gt;.ttl (in seconds), or defaultTTL
+	 */
+	public static long getCacheTTL(String name, long defaultTTL){
+		String value=getCacheSetting(name, "ttl");
+		if(value==null)
+			return defaultTTL;
+		return Math.max(0, Utils.parseIntOrDefault(value, (int)(defaultTTL/1000)))*1000L;
+	}
+
+	private static String getCacheSetting(String name, String setting){
+		while(true){
+			String value=cacheSettings.get(name+"."+setting);
+			if(value!=null)
+				return value;
+			int lastDot=name.lastIndexOf('.');
+			if(lastDot==-1)
+				return null;
+			name=name.substring(0, lastDot);
+		}
+	}
+
 	public static String getServerDisplayName(){
 		return StringUtils.isNotEmpty(serverDisplayName) ? serverDisplayName : domain;
 	}
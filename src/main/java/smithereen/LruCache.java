@@ -16,8 +16,10 @@
 
 package smithereen;
 
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Static library version of {@link android.util.LruCache}. Used to write apps
@@ -25,19 +27,33 @@ import java.util.Map;
  * this implementation is still used; it does not try to switch to the
  * framework's implementation. See the framework SDK documentation for a class
  * overview.
+ *
+ * <p>Unlike the original, the cache is split into independently locked
+ * segments by key hash so that concurrent lookups of different keys don't
+ * contend on a single monitor. Each segment gets an equal share of the
+ * maximum size and evicts its own least recently used entries, so eviction
+ * order is only approximately LRU across the whole cache. Caches with a
+ * maximum size below {@link #MIN_SEGMENT_SIZE}*2 use a single segment and
+ * behave exactly like the original.
+ *
+ * <p>Entries can optionally expire a fixed time after they were written. An
+ * expired entry is dropped the next time it is looked up or the segment is
+ * trimmed, and counts as a miss.
  */
 public class LruCache<K, V> {
-	private final LinkedHashMap<K, V> map;
+	private static final int MAX_SEGMENTS = 16;
+	private static final int MIN_SEGMENT_SIZE = 32;
 
-	/** Size of this cache in units. Not necessarily the number of elements. */
-	private int size;
-	private int maxSize;
+	private final Segment<K, V>[] segments;
+	private final long expireAfterWrite;
+	private volatile int maxSize;
 
-	private int putCount;
-	private int createCount;
-	private int evictionCount;
-	private int hitCount;
-	private int missCount;
+	private final LongAdder putCount = new LongAdder();
+	private final LongAdder createCount = new LongAdder();
+	private final LongAdder evictionCount = new LongAdder();
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder expirationCount = new LongAdder();
 
 	/**
 	 * @param maxSize for caches that do not override {@link #sizeOf}, this is
@@ -45,11 +61,33 @@ public class LruCache<K, V> {
 	 *     this is the maximum sum of the sizes of the entries in this cache.
 	 */
 	public LruCache(int maxSize) {
+		this(maxSize, 0);
+	}
+
+	/**
+	 * @param maxSize see {@link #LruCache(int)}
+	 * @param expireAfterWrite time in milliseconds after which an entry is
+	 *     considered stale and is no longer returned, or 0 to never expire entries.
+	 */
+	public LruCache(int maxSize, long expireAfterWrite) {
 		if (maxSize <= 0) {
 			throw new IllegalArgumentException("maxSize <= 0");
 		}
-		this.maxSize = maxSize;
-		this.map = new LinkedHashMap<K, V>(0, 0.75f, true);
+		if (expireAfterWrite < 0) {
+			throw new IllegalArgumentException("expireAfterWrite < 0");
+		}
+		this.expireAfterWrite = expireAfterWrite;
+		int segmentCount = 1;
+		while (segmentCount < MAX_SEGMENTS && maxSize / (segmentCount * 2) >= MIN_SEGMENT_SIZE) {
+			segmentCount *= 2;
+		}
+		@SuppressWarnings("unchecked")
+		Segment<K, V>[] segments = (Segment<K, V>[]) new Segment<?, ?>[segmentCount];
+		this.segments = segments;
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment<>(expireAfterWrite > 0);
+		}
+		setSegmentSizes(maxSize);
 	}
 
 	/**
@@ -62,10 +100,25 @@ public class LruCache<K, V> {
 			throw new IllegalArgumentException("maxSize <= 0");
 		}
 
-		synchronized (this) {
-			this.maxSize = maxSize;
+		setSegmentSizes(maxSize);
+		for (Segment<K, V> segment : segments) {
+			trimSegment(segment, segment.maxSize);
+		}
+	}
+
+	private void setSegmentSizes(int maxSize) {
+		this.maxSize = maxSize;
+		int perSegment = maxSize / segments.length;
+		int remainder = maxSize % segments.length;
+		for (int i = 0; i < segments.length; i++) {
+			segments[i].maxSize = Math.max(1, perSegment + (i < remainder ? 1 : 0));
 		}
-		trimToSize(maxSize);
+	}
+
+	private Segment<K, V> segmentFor(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & (segments.length - 1)];
 	}
 
 	/**
@@ -79,15 +132,25 @@ public class LruCache<K, V> {
 			throw new NullPointerException("key == null");
 		}
 
+		Segment<K, V> segment = segmentFor(key);
 		V mapValue;
-		synchronized (this) {
-			mapValue = map.get(key);
-			if (mapValue != null) {
-				hitCount++;
-				return mapValue;
+		V expired = null;
+		synchronized (segment) {
+			mapValue = segment.map.get(key);
+			if (mapValue != null && isExpired(segment, key, System.currentTimeMillis())) {
+				expired = mapValue;
+				mapValue = null;
+				removeExpired(segment, key, expired);
 			}
-			missCount++;
 		}
+		if (expired != null) {
+			entryRemoved(true, key, expired, null);
+		}
+		if (mapValue != null) {
+			hitCount.increment();
+			return mapValue;
+		}
+		missCount.increment();
 
         /*
          * Attempt to create a value. This may take a long time, and the map
@@ -101,15 +164,16 @@ public class LruCache<K, V> {
 			return null;
 		}
 
-		synchronized (this) {
-			createCount++;
-			mapValue = map.put(key, createdValue);
+		createCount.increment();
+		synchronized (segment) {
+			mapValue = segment.map.put(key, createdValue);
 
 			if (mapValue != null) {
 				// There was a conflict so undo that last put
-				map.put(key, mapValue);
+				segment.map.put(key, mapValue);
 			} else {
-				size += safeSizeOf(key, createdValue);
+				segment.size += safeSizeOf(key, createdValue);
+				segment.recordWrite(key);
 			}
 		}
 
@@ -117,7 +181,7 @@ public class LruCache<K, V> {
 			entryRemoved(false, key, createdValue, mapValue);
 			return mapValue;
 		} else {
-			trimToSize(maxSize);
+			trimSegment(segment, segment.maxSize);
 			return createdValue;
 		}
 	}
@@ -133,13 +197,15 @@ public class LruCache<K, V> {
 			throw new NullPointerException("key == null || value == null");
 		}
 
+		Segment<K, V> segment = segmentFor(key);
 		V previous;
-		synchronized (this) {
-			putCount++;
-			size += safeSizeOf(key, value);
-			previous = map.put(key, value);
+		putCount.increment();
+		synchronized (segment) {
+			segment.size += safeSizeOf(key, value);
+			previous = segment.map.put(key, value);
+			segment.recordWrite(key);
 			if (previous != null) {
-				size -= safeSizeOf(key, previous);
+				segment.size -= safeSizeOf(key, previous);
 			}
 		}
 
@@ -147,10 +213,44 @@ public class LruCache<K, V> {
 			entryRemoved(false, key, previous, value);
 		}
 
-		trimToSize(maxSize);
+		trimSegment(segment, segment.maxSize);
 		return previous;
 	}
 
+	/**
+	 * Caches {@code value} for {@code key} unless there already is a value for it.
+	 *
+	 * @return the value that was already cached, or null if {@code value} was added.
+	 */
+	public final V putIfAbsent(K key, V value) {
+		if (key == null || value == null) {
+			throw new NullPointerException("key == null || value == null");
+		}
+
+		Segment<K, V> segment = segmentFor(key);
+		V expired = null;
+		synchronized (segment) {
+			V existing = segment.map.get(key);
+			if (existing != null) {
+				if (!isExpired(segment, key, System.currentTimeMillis())) {
+					return existing;
+				}
+				expired = existing;
+				removeExpired(segment, key, existing);
+			}
+			putCount.increment();
+			segment.size += safeSizeOf(key, value);
+			segment.map.put(key, value);
+			segment.recordWrite(key);
+		}
+
+		if (expired != null) {
+			entryRemoved(true, key, expired, null);
+		}
+		trimSegment(segment, segment.maxSize);
+		return null;
+	}
+
 	/**
 	 * Remove the eldest entries until the total of remaining entries is at or
 	 * below the requested size.
@@ -159,25 +259,42 @@ public class LruCache<K, V> {
 	 *            to evict even 0-sized elements.
 	 */
 	public void trimToSize(int maxSize) {
+		if (maxSize < 0) {
+			for (Segment<K, V> segment : segments) {
+				trimSegment(segment, -1);
+			}
+			return;
+		}
+		int perSegment = maxSize / segments.length;
+		int remainder = maxSize % segments.length;
+		for (int i = 0; i < segments.length; i++) {
+			trimSegment(segments[i], perSegment + (i < remainder ? 1 : 0));
+		}
+	}
+
+	private void trimSegment(Segment<K, V> segment, int maxSize) {
 		while (true) {
 			K key;
 			V value;
-			synchronized (this) {
-				if (size < 0 || (map.isEmpty() && size != 0)) {
+			synchronized (segment) {
+				if (segment.size < 0 || (segment.map.isEmpty() && segment.size != 0)) {
 					throw new IllegalStateException(getClass().getName()
 							+ ".sizeOf() is reporting inconsistent results!");
 				}
 
-				if (size <= maxSize || map.isEmpty()) {
+				if (segment.size <= maxSize || segment.map.isEmpty()) {
 					break;
 				}
 
-				Map.Entry<K, V> toEvict = map.entrySet().iterator().next();
+				Map.Entry<K, V> toEvict = segment.map.entrySet().iterator().next();
 				key = toEvict.getKey();
 				value = toEvict.getValue();
-				map.remove(key);
-				size -= safeSizeOf(key, value);
-				evictionCount++;
+				segment.map.remove(key);
+				if (segment.writeTimes != null) {
+					segment.writeTimes.remove(key);
+				}
+				segment.size -= safeSizeOf(key, value);
+				evictionCount.increment();
 			}
 
 			entryRemoved(true, key, value, null);
@@ -194,11 +311,15 @@ public class LruCache<K, V> {
 			throw new NullPointerException("key == null");
 		}
 
+		Segment<K, V> segment = segmentFor(key);
 		V previous;
-		synchronized (this) {
-			previous = map.remove(key);
+		synchronized (segment) {
+			previous = segment.map.remove(key);
 			if (previous != null) {
-				size -= safeSizeOf(key, previous);
+				segment.size -= safeSizeOf(key, previous);
+				if (segment.writeTimes != null) {
+					segment.writeTimes.remove(key);
+				}
 			}
 		}
 
@@ -209,6 +330,22 @@ public class LruCache<K, V> {
 		return previous;
 	}
 
+	private boolean isExpired(Segment<K, V> segment, K key, long now) {
+		if (segment.writeTimes == null) {
+			return false;
+		}
+		Long writeTime = segment.writeTimes.get(key);
+		return writeTime != null && now - writeTime >= expireAfterWrite;
+	}
+
+	// must be called while holding the segment lock
+	private void removeExpired(Segment<K, V> segment, K key, V value) {
+		segment.map.remove(key);
+		segment.writeTimes.remove(key);
+		segment.size -= safeSizeOf(key, value);
+		expirationCount.increment();
+	}
+
 	/**
 	 * Called for entries that have been evicted or removed. This method is
 	 * invoked when a value is evicted to make space, removed by a call to
@@ -218,7 +355,8 @@ public class LruCache<K, V> {
 	 * <p>The method is called without synchronization: other threads may
 	 * access the cache while this method is executing.
 	 *
-	 * @param evicted true if the entry is being removed to make space, false
+	 * @param evicted true if the entry is being removed to make space or has
+	 *     expired, false
 	 *     if the removal was caused by a {@link #put} or {@link #remove}.
 	 * @param newValue the new value for {@code key}, if it exists. If non-null,
 	 *     this removal was caused by a {@link #put}. Otherwise it was caused by
@@ -276,7 +414,13 @@ public class LruCache<K, V> {
 	 * of entries in the cache. For all other caches, this returns the sum of
 	 * the sizes of the entries in this cache.
 	 */
-	public synchronized final int size() {
+	public final int size() {
+		int size = 0;
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				size += segment.size;
+			}
+		}
 		return size;
 	}
 
@@ -285,7 +429,7 @@ public class LruCache<K, V> {
 	 * number of entries in the cache. For all other caches, this returns the
 	 * maximum sum of the sizes of the entries in this cache.
 	 */
-	public synchronized final int maxSize() {
+	public final int maxSize() {
 		return maxSize;
 	}
 
@@ -293,51 +437,101 @@ public class LruCache<K, V> {
 	 * Returns the number of times {@link #get} returned a value that was
 	 * already present in the cache.
 	 */
-	public synchronized final int hitCount() {
-		return hitCount;
+	public final int hitCount() {
+		return hitCount.intValue();
 	}
 
 	/**
 	 * Returns the number of times {@link #get} returned null or required a new
 	 * value to be created.
 	 */
-	public synchronized final int missCount() {
-		return missCount;
+	public final int missCount() {
+		return missCount.intValue();
 	}
 
 	/**
 	 * Returns the number of times {@link #create(Object)} returned a value.
 	 */
-	public synchronized final int createCount() {
-		return createCount;
+	public final int createCount() {
+		return createCount.intValue();
 	}
 
 	/**
 	 * Returns the number of times {@link #put} was called.
 	 */
-	public synchronized final int putCount() {
-		return putCount;
+	public final int putCount() {
+		return putCount.intValue();
 	}
 
 	/**
 	 * Returns the number of values that have been evicted.
 	 */
-	public synchronized final int evictionCount() {
-		return evictionCount;
+	public final int evictionCount() {
+		return evictionCount.intValue();
+	}
+
+	/**
+	 * Returns the number of values that were dropped because they expired.
+	 */
+	public final int expirationCount() {
+		return expirationCount.intValue();
 	}
 
 	/**
-	 * Returns a copy of the current contents of the cache, ordered from least
-	 * recently accessed to most recently accessed.
+	 * Returns the time in milliseconds after which entries expire, or 0 if they don't.
 	 */
-	public synchronized final Map<K, V> snapshot() {
-		return new LinkedHashMap<K, V>(map);
+	public final long expireAfterWrite() {
+		return expireAfterWrite;
 	}
 
-	@Override public synchronized final String toString() {
-		int accesses = hitCount + missCount;
-		int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+	/**
+	 * Returns a copy of the current contents of the cache. Within each segment,
+	 * entries are ordered from least recently accessed to most recently accessed.
+	 */
+	public final Map<K, V> snapshot() {
+		LinkedHashMap<K, V> result = new LinkedHashMap<K, V>();
+		long now = System.currentTimeMillis();
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				if (segment.writeTimes == null) {
+					result.putAll(segment.map);
+				} else {
+					for (Map.Entry<K, V> e : segment.map.entrySet()) {
+						if (!isExpired(segment, e.getKey(), now)) {
+							result.put(e.getKey(), e.getValue());
+						}
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override public final String toString() {
+		long hits = hitCount.sum();
+		long accesses = hits + missCount.sum();
+		long hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
 		return String.format("LruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
-				maxSize, hitCount, missCount, hitPercent);
+				maxSize, hits, accesses - hits, hitPercent);
+	}
+
+	private static class Segment<K, V> {
+		// map and size are guarded by the segment itself
+		final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(0, 0.75f, true);
+		/** Size of this segment in units. Not necessarily the number of elements. */
+		int size;
+		volatile int maxSize;
+		/** Time each entry was last written, only kept when entries expire. */
+		final HashMap<K, Long> writeTimes;
+
+		Segment(boolean trackWriteTimes) {
+			writeTimes = trackWriteTimes ? new HashMap<K, Long>() : null;
+		}
+
+		void recordWrite(K key) {
+			if (writeTimes != null) {
+				writeTimes.put(key, System.currentTimeMillis());
+			}
+		}
 	}
-}
\ No newline at end of file
+}
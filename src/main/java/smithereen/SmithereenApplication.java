@@ -13,8 +13,11 @@ import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 import smithereen.activitypub.ActivityPubWorker;
+import smithereen.activitypub.IncomingActivityQueue;
+import smithereen.activitypub.ProcessedActivities;
 import smithereen.activitypub.objects.ActivityPubObject;
 import smithereen.data.Account;
 import smithereen.data.ForeignGroup;
@@ -38,9 +41,15 @@ import smithereen.routes.SettingsAdminRoutes;
 import smithereen.routes.SystemRoutes;
 import smithereen.routes.WellKnownRoutes;
 import smithereen.sparkext.ExtendedStreamingSerializer;
+import smithereen.storage.DatabaseConnectionManager;
 import smithereen.storage.DatabaseSchemaUpdater;
 import smithereen.storage.GroupStorage;
+import smithereen.storage.LikeStorage;
+import smithereen.storage.NewsfeedStorage;
+import smithereen.storage.MediaCache;
+import smithereen.storage.MediaStorageUtils;
 import smithereen.storage.SessionStorage;
+import smithereen.storage.SocialGraph;
 import smithereen.routes.SettingsRoutes;
 import smithereen.storage.UserStorage;
 import smithereen.templates.RenderedTemplateResponse;
@@ -78,8 +87,12 @@ public class SmithereenApplication{
 			Config.load(args[0]);
 			Config.loadFromDatabase();
 			DatabaseSchemaUpdater.maybeUpdate();
+			DatabaseConnectionManager.warmUp();
+			SocialGraph.load();
 		}catch(IOException|SQLException x){
 			throw new RuntimeException(x);
+		}finally{
+			DatabaseConnectionManager.closeConnection();
 		}
 
 		if(args.length>1){
@@ -93,6 +106,8 @@ public class SmithereenApplication{
 		}
 
 		ActivityPubRoutes.registerActivityHandlers();
+		// Creating the worker starts the delivery queue, which resumes whatever was left undelivered before the last shutdown
+		ActivityPubWorker.getInstance();
 
 		ipAddress(Config.serverIP);
 		port(Config.serverPort);
@@ -187,6 +202,7 @@ public class SmithereenApplication{
 				getRequiringAccessLevel("/users/confirmUnban", Account.AccessLevel.MODERATOR, SettingsAdminRoutes::confirmUnbanUser);
 				postRequiringAccessLevelWithCSRF("/users/ban", Account.AccessLevel.MODERATOR, SettingsAdminRoutes::banUser);
 				postRequiringAccessLevelWithCSRF("/users/unban", Account.AccessLevel.MODERATOR, SettingsAdminRoutes::unbanUser);
+				getRequiringAccessLevel("/stats", Account.AccessLevel.ADMIN, SettingsAdminRoutes::serverStats);
 			});
 		});
 
@@ -435,6 +451,8 @@ public class SmithereenApplication{
 			}
 		});
 
+		afterAfter((req, resp)->DatabaseConnectionManager.closeConnection());
+
 		setupCustomSerializer();
 
 		responseTypeSerializer(ActivityPubObject.class, (out, obj) -> {
@@ -451,7 +469,7 @@ public class SmithereenApplication{
 
 		responseTypeSerializer(WebDeltaResponse.class, (out, obj) -> {
 			OutputStreamWriter writer=new OutputStreamWriter(out, StandardCharsets.UTF_8);
-			Utils.gson.toJson(obj.commands(), writer);
+			obj.writeTo(writer);
 			writer.flush();
 		});
 
@@ -459,8 +477,31 @@ public class SmithereenApplication{
 			try{
 				SessionStorage.deleteExpiredEmailCodes();
 			}catch(SQLException ignore){}
+			try{
+				NewsfeedStorage.trimTimelines();
+			}catch(SQLException x){
+				LOG.warn("Failed to trim newsfeed timelines", x);
+			}
+			try{
+				LikeStorage.reconcilePostLikeCounts();
+			}catch(SQLException x){
+				LOG.warn("Failed to reconcile like counters", x);
+			}
+			try{
+				ProcessedActivities.deleteExpired();
+			}catch(SQLException x){
+				LOG.warn("Failed to delete expired processed activity IDs", x);
+			}
 			FloodControl.PASSWORD_RESET.gc();
 		});
+		MaintenanceScheduler.runPeriodically(()->{
+			try{
+				SessionStorage.flushLastActive();
+			}catch(SQLException x){
+				LOG.warn("Failed to write last_active updates", x);
+			}
+		}, 1, TimeUnit.MINUTES);
+		NewsfeedStorage.startTimelineBackfill();
 
 		Runtime.getRuntime().addShutdownHook(new Thread(()->{
 			LOG.info("Stopping Spark");
@@ -468,12 +509,26 @@ public class SmithereenApplication{
 			LOG.info("Stopped Spark");
 			// These try-catch blocks are needed because these classes might not have been loaded by the time the process is shut down,
 			// and the JVM refuses to load any new classes from within a shutdown hook.
+			try{
+				IncomingActivityQueue.shutDown();
+			}catch(NoClassDefFoundError ignore){}
 			try{
 				ActivityPubWorker.shutDown();
 			}catch(NoClassDefFoundError ignore){}
 			try{
 				MaintenanceScheduler.shutDown();
 			}catch(NoClassDefFoundError ignore){}
+			try{
+				MediaCache.shutDown();
+			}catch(NoClassDefFoundError ignore){}
+			try{
+				MediaStorageUtils.shutDown();
+			}catch(NoClassDefFoundError ignore){}
+			try{
+				SessionStorage.flushLastActive();
+			}catch(SQLException x){
+				LOG.warn("Failed to write last_active updates", x);
+			}catch(NoClassDefFoundError ignore){}
 			try{
 				Mailer.shutDown();
 			}catch(NoClassDefFoundError ignore){}
@@ -178,7 +178,7 @@ public class Utils{
 	public static Object wrapForm(Request req, Response resp, String templateName, String formAction, String title, String buttonKey, RenderedTemplateResponse templateModel){
 		Lang l=lang(req);
 		if(isAjax(req)){
-			return new WebDeltaResponse(resp).formBox(title, templateModel.renderToString(), formAction, l.get(buttonKey));
+			return new WebDeltaResponse(resp).formBox(title, templateModel, formAction, l.get(buttonKey));
 		}else{
 			templateModel.with("contentTemplate", templateName).with("formAction", formAction).with("submitButton", l.get(buttonKey)).with("title", title);
 			templateModel.setName("form_page");
@@ -0,0 +1,321 @@
+package smithereen.activitypub;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import smithereen.Utils;
+import smithereen.activitypub.objects.Activity;
+import smithereen.activitypub.objects.Actor;
+import smithereen.data.Group;
+import smithereen.data.QueuedDelivery;
+import smithereen.data.User;
+import smithereen.exceptions.InboxDeliveryException;
+import smithereen.jsonld.LinkedDataSignatures;
+import smithereen.storage.DatabaseConnectionManager;
+import smithereen.storage.DeliveryQueueStorage;
+import smithereen.storage.GroupStorage;
+import smithereen.storage.UserStorage;
+import smithereen.util.MaintenanceScheduler;
+
+/**
+ * Persistent outbound activity queue. Activities are signed once and stored in the database, one row per inbox,
+ * so that pending deliveries survive restarts. Failed deliveries are retried with exponential backoff
+ * (which also applies to everything else queued for the same inbox) and are eventually moved to the dead letters.
+ */
+public class ActivityDeliveryQueue{
+	private static final Logger LOG=LoggerFactory.getLogger(ActivityDeliveryQueue.class);
+
+	private static final int MAX_ATTEMPTS=12;
+	private static final long INITIAL_RETRY_DELAY=60_000;
+	private static final long MAX_RETRY_DELAY=12*3600_000L;
+	/**
+	 * How long a picked up delivery stays invisible to the dispatcher. Only matters if the process dies mid-delivery.
+	 */
+	private static final long LEASE_TIME=5*60_000;
+	private static final long POLL_INTERVAL=5_000;
+	private static final int MAX_CONCURRENT_BATCHES=64;
+	private static final int MAX_BATCHES_PER_HOST=4;
+	private static final int MAX_BATCH_SIZE=20;
+	private static final long DEAD_LETTER_RETENTION=7*24*3600_000L;
+
+	private final ExecutorService sendExecutor;
+	private final ScheduledExecutorService dispatcher=Executors.newSingleThreadScheduledExecutor();
+	private final AtomicBoolean dispatchRequested=new AtomicBoolean();
+	private final AtomicInteger runningBatches=new AtomicInteger();
+	private final ConcurrentHashMap<String, Integer> hostBatches=new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<URI, Long> inboxRetryTimes=new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Long> hostRetryTimes=new ConcurrentHashMap<>();
+	private final Random rand=new Random();
+	private volatile boolean stopped;
+
+	ActivityDeliveryQueue(ExecutorService sendExecutor){
+		this.sendExecutor=sendExecutor;
+	}
+
+	void start(){
+		dispatcher.scheduleWithFixedDelay(this::dispatch, 0, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+		MaintenanceScheduler.runDaily(()->{
+			try{
+				DeliveryQueueStorage.deleteDeadDeliveriesOlderThan(new Timestamp(System.currentTimeMillis()-DEAD_LETTER_RETENTION));
+			}catch(SQLException x){
+				LOG.warn("Failed to delete old dead deliveries", x);
+			}
+		});
+	}
+
+	void shutDown(){
+		stopped=true;
+		Utils.stopExecutorBlocking(dispatcher, LOG);
+	}
+
+	/**
+	 * Signs the activity on behalf of the actor and queues it for delivery to each of the inboxes.
+	 */
+	public void enqueue(Activity activity, Collection<URI> inboxes, Actor actor) throws SQLException{
+		if(inboxes.isEmpty())
+			return;
+		enqueueSigned(sign(activity, actor).toString(), inboxes, actor);
+	}
+
+	/**
+	 * Queues a sequence of activities that will be delivered one after another, in order.
+	 */
+	public void enqueueSequence(List<Activity> activities, URI inbox, Actor actor) throws SQLException{
+		JsonArray sequence=new JsonArray();
+		for(Activity activity:activities)
+			sequence.add(sign(activity, actor));
+		enqueueSigned(sequence.toString(), List.of(inbox), actor);
+	}
+
+	/**
+	 * Queues an already serialized activity, e.g. one received from another server that is being forwarded.
+	 * The actor is only used for the HTTP signature.
+	 */
+	public void enqueueSigned(String json, Collection<URI> inboxes, Actor actor) throws SQLException{
+		if(actor.privateKey==null)
+			throw new IllegalArgumentException("Sending an activity requires an actor that has a private key on this server.");
+		// The same shared inbox may come from several sources (followers, mentions, ...)
+		DeliveryQueueStorage.putDeliveries(new LinkedHashSet<>(inboxes), actor instanceof User ? ((User) actor).id : 0, actor instanceof Group ? ((Group) actor).id : 0, json);
+		requestDispatch();
+	}
+
+	public QueueStats getStats() throws SQLException{
+		int[] counts=DeliveryQueueStorage.getDeliveryCounts();
+		QueueStats stats=new QueueStats();
+		stats.pending=counts[0];
+		stats.dead=counts[1];
+		stats.runningBatches=runningBatches.get();
+		stats.busyHosts=hostBatches.size();
+		stats.backedOffInboxes=inboxRetryTimes.size();
+		stats.backedOffHosts=hostRetryTimes.size();
+		return stats;
+	}
+
+	private JsonObject sign(Activity activity, Actor actor){
+		if(actor.privateKey==null)
+			throw new IllegalArgumentException("Sending an activity requires an actor that has a private key on this server.");
+		JsonObject body=activity.asRootActivityPubObject();
+		LinkedDataSignatures.sign(body, actor.privateKey, actor.activityPubID+"#main-key");
+		return body;
+	}
+
+	private void requestDispatch(){
+		if(!stopped && dispatchRequested.compareAndSet(false, true))
+			dispatcher.execute(this::dispatch);
+	}
+
+	/**
+	 * Picks up due deliveries, groups them by destination server and hands them to the workers in batches.
+	 * A batch is delivered sequentially over the same (keep-alive or HTTP/2) connection, and each server only
+	 * gets a limited number of batches at a time, so a large fan-out costs roughly one connection per server.
+	 */
+	private void dispatch(){
+		dispatchRequested.set(false);
+		long now=System.currentTimeMillis();
+		inboxRetryTimes.values().removeIf(time->time<now);
+		hostRetryTimes.values().removeIf(time->time<now);
+		try{
+			while(!stopped){
+				int capacity=MAX_CONCURRENT_BATCHES-runningBatches.get();
+				if(capacity<=0)
+					return;
+				Set<String> busyHosts=hostBatches.entrySet().stream().filter(e->e.getValue()>=MAX_BATCHES_PER_HOST).map(Map.Entry::getKey).collect(Collectors.toSet());
+				int limit=capacity*MAX_BATCH_SIZE;
+				List<QueuedDelivery> due=DeliveryQueueStorage.getDueDeliveries(limit, busyHosts);
+				if(due.isEmpty())
+					return;
+
+				LinkedHashMap<String, List<QueuedDelivery>> byHost=new LinkedHashMap<>();
+				for(QueuedDelivery d:due){
+					byHost.computeIfAbsent(d.host, h->new ArrayList<>()).add(d);
+				}
+				ArrayList<List<QueuedDelivery>> batches=new ArrayList<>();
+				ArrayList<Long> ids=new ArrayList<>();
+				for(Map.Entry<String, List<QueuedDelivery>> e:byHost.entrySet()){
+					int slots=Math.min(MAX_BATCHES_PER_HOST-hostBatches.getOrDefault(e.getKey(), 0), capacity-batches.size());
+					if(slots<=0)
+						continue;
+					List<QueuedDelivery> rows=e.getValue();
+					int count=Math.min(rows.size(), slots*MAX_BATCH_SIZE);
+					for(int offset=0;offset<count;offset+=MAX_BATCH_SIZE){
+						List<QueuedDelivery> batch=rows.subList(offset, Math.min(count, offset+MAX_BATCH_SIZE));
+						batches.add(batch);
+						for(QueuedDelivery d:batch)
+							ids.add(d.id);
+					}
+					if(batches.size()>=capacity)
+						break;
+				}
+				DeliveryQueueStorage.leaseDeliveries(ids, new Timestamp(System.currentTimeMillis()+LEASE_TIME));
+				for(List<QueuedDelivery> batch:batches){
+					runningBatches.incrementAndGet();
+					hostBatches.merge(batch.get(0).host, 1, Integer::sum);
+					sendExecutor.submit(DatabaseConnectionManager.wrap(()->deliverBatch(batch)));
+				}
+				if(due.size()<limit || ids.size()<due.size())
+					return;
+			}
+		}catch(Throwable x){
+			LOG.error("Error dispatching queued deliveries", x);
+		}finally{
+			DatabaseConnectionManager.closeConnection();
+		}
+	}
+
+	/**
+	 * @param batch deliveries with only the ID and host loaded; the rest, including the payloads, is loaded here
+	 */
+	private void deliverBatch(List<QueuedDelivery> batch){
+		try{
+			for(QueuedDelivery d:DeliveryQueueStorage.getDeliveries(batch.stream().map(d->d.id).collect(Collectors.toList()))){
+				deliver(d);
+			}
+		}catch(SQLException x){
+			// The deliveries stay leased and will be picked up again once the lease expires
+			LOG.warn("Failed to load a batch of {} deliveries to {}", batch.size(), batch.get(0).host, x);
+		}finally{
+			runningBatches.decrementAndGet();
+			hostBatches.computeIfPresent(batch.get(0).host, (host, count)->count>1 ? count-1 : null);
+			requestDispatch();
+		}
+	}
+
+	private void deliver(QueuedDelivery d){
+		JsonArray remaining=null;
+		boolean sent=false;
+		try{
+			long retryTime=Math.max(inboxRetryTimes.getOrDefault(d.inbox, 0L), hostRetryTimes.getOrDefault(d.host, 0L));
+			if(retryTime>System.currentTimeMillis()){
+				// Another delivery to this inbox or server has failed since this one was picked up
+				DeliveryQueueStorage.rescheduleDelivery(d.id, d.attempts, new Timestamp(retryTime), null, null);
+				return;
+			}
+			Actor actor;
+			if(d.actorUserID!=0)
+				actor=UserStorage.getById(d.actorUserID);
+			else if(d.actorGroupID!=0)
+				actor=GroupStorage.getById(d.actorGroupID);
+			else
+				actor=null;
+			if(actor==null || actor.privateKey==null){
+				LOG.warn("Dropping {}: actor no longer exists or isn't local", d);
+				DeliveryQueueStorage.deleteDelivery(d.id);
+				return;
+			}
+			if(d.isSequence()){
+				remaining=JsonParser.parseString(d.payload).getAsJsonArray();
+				while(remaining.size()>0){
+					JsonElement activity=remaining.get(0);
+					ActivityPub.postActivity(d.inbox, activity.toString(), actor);
+					remaining.remove(0);
+				}
+			}else{
+				ActivityPub.postActivity(d.inbox, d.payload, actor);
+			}
+			sent=true;
+			DeliveryQueueStorage.deleteDelivery(d.id);
+			inboxRetryTimes.remove(d.inbox);
+		}catch(InboxDeliveryException x){
+			if(x.isPermanent())
+				markAsDead(d, x);
+			else
+				retryLater(d, x, remaining, false);
+		}catch(IOException x){
+			// Connection-level failure, the whole server is likely unreachable
+			retryLater(d, x, remaining, true);
+		}catch(SQLException x){
+			// The database is having problems, not the delivery itself. The row stays leased either way and is picked up
+			// again once the lease expires; if it was already sent, that's a redelivery the receiver will deduplicate.
+			if(sent)
+				LOG.warn("Delivered {} but failed to remove it from the queue", d, x);
+			else
+				LOG.warn("Failed to deliver {} because of a database error, will retry when its lease expires", d, x);
+		}catch(Exception x){
+			markAsDead(d, x);
+		}
+	}
+
+	private void retryLater(QueuedDelivery d, Exception error, JsonArray remaining, boolean wholeHost){
+		int attempts=d.attempts+1;
+		if(attempts>=MAX_ATTEMPTS){
+			markAsDead(d, error);
+			return;
+		}
+		long delay=Math.min(MAX_RETRY_DELAY, INITIAL_RETRY_DELAY << (attempts-1));
+		delay+=(long)(delay*0.1*rand.nextDouble());
+		long retryTime=System.currentTimeMillis()+delay;
+		LOG.debug("Delivery {} failed, retrying in {} s: {}", d, delay/1000, error.toString());
+		inboxRetryTimes.merge(d.inbox, retryTime, Math::max);
+		if(wholeHost)
+			hostRetryTimes.merge(d.host, retryTime, Math::max);
+		try{
+			Timestamp ts=new Timestamp(retryTime);
+			DeliveryQueueStorage.rescheduleDelivery(d.id, attempts, ts, error.toString(), remaining!=null ? remaining.toString() : null);
+			if(wholeHost)
+				DeliveryQueueStorage.postponeDeliveriesToHost(d.host, ts);
+			else
+				DeliveryQueueStorage.postponeDeliveriesToInbox(d.inbox, ts);
+		}catch(SQLException x){
+			LOG.warn("Failed to reschedule {}", d, x);
+		}
+	}
+
+	private void markAsDead(QueuedDelivery d, Exception error){
+		LOG.info("Giving up on {} after {} attempts: {}", d, d.attempts+1, error.toString());
+		try{
+			DeliveryQueueStorage.markDeliveryAsDead(d.id, d.attempts+1, error.toString());
+		}catch(SQLException x){
+			LOG.warn("Failed to mark {} as dead", d, x);
+		}
+	}
+
+	public static class QueueStats{
+		public int pending, dead, runningBatches, busyHosts, backedOffInboxes, backedOffHosts;
+	}
+}
@@ -24,18 +24,21 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
 import okhttp3.Call;
+import okhttp3.ConnectionPool;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import smithereen.CacheRegistry;
 import smithereen.Config;
 import smithereen.DisallowLocalhostInterceptor;
 import smithereen.LruCache;
@@ -45,6 +48,7 @@ import smithereen.activitypub.objects.ActivityPubObject;
 import smithereen.activitypub.objects.Actor;
 import smithereen.activitypub.objects.WebfingerResponse;
 import smithereen.exceptions.BadRequestException;
+import smithereen.exceptions.InboxDeliveryException;
 import smithereen.exceptions.ObjectNotFoundException;
 import smithereen.exceptions.UnsupportedRemoteObjectTypeException;
 import smithereen.jsonld.JLD;
@@ -59,11 +63,14 @@ public class ActivityPub{
 	public static final String CONTENT_TYPE="application/ld+json; profile=\"https://www.w3.org/ns/activitystreams\"";
 
 	private static OkHttpClient httpClient;
-	private static LruCache<String, String> domainRedirects=new LruCache<>(100);
+	private static LruCache<String, String> domainRedirects=CacheRegistry.create("activitypub.domain_redirects", 100);
 
 	static{
 		httpClient=new OkHttpClient.Builder()
 				.addNetworkInterceptor(new DisallowLocalhostInterceptor())
+				// Keep more connections alive than the default 5 so that outbound deliveries can reuse them across many servers.
+				// HTTP/2 is negotiated automatically where supported, in which case concurrent deliveries to one server share a connection.
+				.connectionPool(new ConnectionPool(50, 5, TimeUnit.MINUTES))
 //				.addNetworkInterceptor(new LoggingInterceptor())
 				.build();
 	}
@@ -161,8 +168,10 @@ public class ActivityPub{
 		Response resp=httpClient.newCall(req).execute();
 		System.out.println(resp.toString());
 		try(ResponseBody rb=resp.body()){
-			if(!resp.isSuccessful())
+			if(!resp.isSuccessful()){
 				System.out.println(rb.string());
+				throw new InboxDeliveryException(resp.code(), "Inbox "+inboxUrl+" responded with "+resp.code()+" "+resp.message());
+			}
 		}
 	}
 
@@ -2,29 +2,22 @@ package smithereen.activitypub;
 
 import org.jetbrains.annotations.Nullable;
 
+import smithereen.CacheRegistry;
 import smithereen.LruCache;
 import smithereen.activitypub.objects.activities.Undo;
-import smithereen.data.Timestamped;
 
 /**
  * Temporary objects are kept here.
  * For example, it isn't feasible to store Undo{Like} in the database, but some implementations might want to fetch these because they don't support LD-signatures.
  */
 public class ActivityPubCache{
-	private static LruCache<Integer, Timestamped<Undo>> undoneLikes=new LruCache<>(1000);
+	private static LruCache<Integer, Undo> undoneLikes=CacheRegistry.create("activitypub.undone_likes", 1000, 10*60*1000L);
 
-	public static synchronized void putUndoneLike(int id, Undo act){
-		undoneLikes.put(id, new Timestamped<>(act));
+	public static void putUndoneLike(int id, Undo act){
+		undoneLikes.put(id, act);
 	}
 
-	public static synchronized @Nullable Undo getUndoneLike(int id){
-		Timestamped<Undo> t=undoneLikes.get(id);
-		if(t==null)
-			return null;
-		if(System.currentTimeMillis()-t.timestamp>10*60*1000L){
-			undoneLikes.remove(id);
-			return null;
-		}
-		return t.object;
+	public static @Nullable Undo getUndoneLike(int id){
+		return undoneLikes.get(id);
 	}
 }
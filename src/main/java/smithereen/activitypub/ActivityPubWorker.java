@@ -7,21 +7,22 @@ import java.net.URI;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
-import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
-import java.util.concurrent.RecursiveTask;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -29,10 +30,8 @@ import smithereen.Config;
 import smithereen.ObjectLinkResolver;
 import smithereen.Utils;
 import smithereen.activitypub.objects.Activity;
-import smithereen.activitypub.objects.ActivityPubCollection;
 import smithereen.activitypub.objects.ActivityPubObject;
 import smithereen.activitypub.objects.Actor;
-import smithereen.activitypub.objects.CollectionPage;
 import smithereen.activitypub.objects.LinkOrObject;
 import smithereen.activitypub.objects.activities.Accept;
 import smithereen.activitypub.objects.activities.Add;
@@ -53,6 +52,7 @@ import smithereen.data.Post;
 import smithereen.data.UriBuilder;
 import smithereen.data.User;
 import smithereen.data.notifications.NotificationUtils;
+import smithereen.storage.DatabaseConnectionManager;
 import smithereen.storage.GroupStorage;
 import smithereen.storage.PostStorage;
 import smithereen.storage.UserStorage;
@@ -61,13 +61,12 @@ import spark.utils.StringUtils;
 public class ActivityPubWorker{
 	private static ActivityPubWorker instance;
 	private static final Logger LOG=LoggerFactory.getLogger(ActivityPubWorker.class);
-	private static final int MAX_COMMENTS=1000;
 
 	private ForkJoinPool executor;
+	private ActivityDeliveryQueue deliveryQueue;
+	private ReplyCrawler replyCrawler;
 	private Random rand=new Random();
-	private HashMap<URI, Future<List<Post>>> fetchingReplyThreads=new HashMap<>();
-	private HashMap<URI, List<Consumer<List<Post>>>> afterFetchReplyThreadActions=new HashMap<>();
-	private HashMap<URI, Future<Post>> fetchingAllReplies=new HashMap<>();
+	private final ConcurrentHashMap<URI, CompletableFuture<List<Post>>> fetchingReplyThreads=new ConcurrentHashMap<>();
 
 	public static ActivityPubWorker getInstance(){
 		if(instance==null)
@@ -77,11 +76,18 @@ public class ActivityPubWorker{
 
 	private ActivityPubWorker(){
 		executor=new ForkJoinPool(Runtime.getRuntime().availableProcessors()*2);
+		deliveryQueue=new ActivityDeliveryQueue(executor);
+		deliveryQueue.start();
+		replyCrawler=new ReplyCrawler(executor);
+		replyCrawler.start();
 	}
 
 	public static void shutDown(){
 		if(instance==null)
 			return;
+		LOG.info("Stopping delivery queue");
+		instance.deliveryQueue.shutDown();
+		instance.replyCrawler.shutDown();
 		LOG.info("Stopping thread pool");
 		Utils.stopExecutorBlocking(instance.executor, LOG);
 		LOG.info("Stopped");
@@ -99,16 +105,47 @@ public class ActivityPubWorker{
 		return Math.abs(rand.nextLong());
 	}
 
+	public ActivityDeliveryQueue.QueueStats getDeliveryQueueStats() throws SQLException{
+		return deliveryQueue.getStats();
+	}
+
+	private void enqueueDelivery(Activity activity, Collection<URI> inboxes, Actor actor){
+		executor.submit(DatabaseConnectionManager.wrap(()->{
+			try{
+				deliveryQueue.enqueue(activity, inboxes, actor);
+			}catch(SQLException x){
+				LOG.error("Failed to queue activity {} for delivery", activity.activityPubID, x);
+			}
+		}));
+	}
+
+	private void enqueueDelivery(Activity activity, URI inbox, Actor actor){
+		enqueueDelivery(activity, Collections.singletonList(inbox), actor);
+	}
+
+	private void enqueueDeliverySequence(List<Activity> activities, URI inbox, Actor actor){
+		executor.submit(DatabaseConnectionManager.wrap(()->{
+			try{
+				deliveryQueue.enqueueSequence(activities, inbox, actor);
+			}catch(SQLException x){
+				LOG.error("Failed to queue activities {} for delivery", activities.stream().map(a->a.activityPubID).collect(Collectors.toList()), x);
+			}
+		}));
+	}
+
 	public void forwardActivity(String json, User signer, List<URI> inboxes, String originatingDomain){
-		for(URI inbox:inboxes){
-			if(inbox.getHost().equalsIgnoreCase(originatingDomain))
-				continue;
-			executor.submit(new ForwardOneActivityRunnable(json, inbox, signer));
-		}
+		List<URI> filteredInboxes=inboxes.stream().filter(inbox->!inbox.getHost().equalsIgnoreCase(originatingDomain)).collect(Collectors.toList());
+		executor.submit(DatabaseConnectionManager.wrap(()->{
+			try{
+				deliveryQueue.enqueueSigned(json, filteredInboxes, signer);
+			}catch(SQLException x){
+				LOG.error("Failed to queue a forwarded activity for delivery", x);
+			}
+		}));
 	}
 
-	private List<URI> getInboxesForPost(Post post) throws SQLException{
-		ArrayList<URI> inboxes=new ArrayList<>();
+	private Set<URI> getInboxesForPost(Post post) throws SQLException{
+		LinkedHashSet<URI> inboxes=new LinkedHashSet<>();
 		if(post.owner instanceof User){
 			boolean sendToFollowers=((User) post.owner).id==post.user.id;
 			if(post.owner instanceof ForeignUser){
@@ -128,29 +165,24 @@ public class ActivityPubWorker{
 			}
 		}
 		for(User user:post.mentionedUsers){
-			if(user instanceof ForeignUser){
-				URI inbox=actorInbox((ForeignUser) user);
-				if(!inboxes.contains(inbox))
-					inboxes.add(inbox);
-			}
+			if(user instanceof ForeignUser)
+				inboxes.add(actorInbox((ForeignUser) user));
 		}
 		return inboxes;
 	}
 
 	private void sendActivityForPost(Post post, Activity activity, Actor actor){
 		try{
-			List<URI> inboxes=getInboxesForPost(post);
+			Set<URI> inboxes=getInboxesForPost(post);
 			System.out.println("Inboxes: "+inboxes);
-			for(URI inbox:inboxes){
-				executor.submit(new SendOneActivityRunnable(activity, inbox, actor));
-			}
+			enqueueDelivery(activity, inboxes, actor);
 		}catch(SQLException x){
 			x.printStackTrace();
 		}
 	}
 
 	public void sendCreatePostActivity(final Post post){
-		executor.submit(new Runnable(){
+		executor.submit(DatabaseConnectionManager.wrap(new Runnable(){
 			@Override
 			public void run(){
 				Create create=new Create();
@@ -162,11 +194,11 @@ public class ActivityPubWorker{
 				create.activityPubID=Config.localURI(post.activityPubID.getPath()+"/activityCreate");
 				sendActivityForPost(post, create, post.user);
 			}
-		});
+		}));
 	}
 
 	public void sendAddPostToWallActivity(final Post post){
-		executor.submit(new Runnable(){
+		executor.submit(DatabaseConnectionManager.wrap(new Runnable(){
 			@Override
 			public void run(){
 				try{
@@ -184,37 +216,29 @@ public class ActivityPubWorker{
 					}
 					add.target=new LinkOrObject(post.owner.getWallURL());
 
-					ArrayList<URI> inboxes=new ArrayList<>();
+					LinkedHashSet<URI> inboxes=new LinkedHashSet<>();
 					if(post.owner instanceof User)
 						inboxes.addAll(UserStorage.getFollowerInboxes(((User) post.owner).id));
 					else
 						inboxes.addAll(GroupStorage.getGroupMemberInboxes(((Group) post.owner).id));
 
 					for(User user:post.mentionedUsers){
-						if(user instanceof ForeignUser){
-							URI inbox=actorInbox((ForeignUser) user);
-							if(!inboxes.contains(inbox))
-								inboxes.add(inbox);
-						}
-					}
-					if(post.user instanceof ForeignUser){
-						URI inbox=actorInbox((ForeignUser) post.user);
-						if(!inboxes.contains(inbox))
-							inboxes.add(inbox);
+						if(user instanceof ForeignUser)
+							inboxes.add(actorInbox((ForeignUser) user));
 					}
+					if(post.user instanceof ForeignUser)
+						inboxes.add(actorInbox((ForeignUser) post.user));
 
-					for(URI inbox:inboxes){
-						executor.submit(new SendOneActivityRunnable(add, inbox, post.owner));
-					}
+					enqueueDelivery(add, inboxes, post.owner);
 				}catch(SQLException x){
 					x.printStackTrace();
 				}
 			}
-		});
+		}));
 	}
 
 	public void sendDeletePostActivity(final Post post, final User actualActor){
-		executor.submit(new Runnable(){
+		executor.submit(DatabaseConnectionManager.wrap(new Runnable(){
 			@Override
 			public void run(){
 				Actor actor;
@@ -241,7 +265,7 @@ public class ActivityPubWorker{
 				delete.activityPubID=new UriBuilder(post.activityPubID).appendPath("delete").build();
 				sendActivityForPost(post, delete, actor);
 			}
-		});
+		}));
 	}
 
 	public void sendUnfriendActivity(User self, User target){
@@ -257,7 +281,7 @@ public class ActivityPubWorker{
 		follow.activityPubID=new UriBuilder(self.activityPubID).fragment("followUser"+target.id+"_"+rand()).build();
 		undo.object=new LinkOrObject(follow);
 
-		executor.submit(new SendOneActivityRunnable(undo, ((ForeignUser) target).inbox, self));
+		enqueueDelivery(undo, ((ForeignUser) target).inbox, self);
 	}
 
 	public void sendRemoveFromFriendsCollectionActivity(User self, User exFriend){
@@ -269,9 +293,7 @@ public class ActivityPubWorker{
 
 		try{
 			List<URI> inboxes=UserStorage.getFollowerInboxes(self.id);
-			for(URI inbox:inboxes){
-				executor.submit(new SendOneActivityRunnable(remove, inbox, self));
-			}
+			enqueueDelivery(remove, inboxes, self);
 		}catch(SQLException x){
 			x.printStackTrace();
 		}
@@ -286,9 +308,7 @@ public class ActivityPubWorker{
 
 		try{
 			List<URI> inboxes=UserStorage.getFollowerInboxes(self.id);
-			for(URI inbox:inboxes){
-				executor.submit(new SendOneActivityRunnable(add, inbox, self));
-			}
+			enqueueDelivery(add, inboxes, self);
 		}catch(SQLException x){
 			x.printStackTrace();
 		}
@@ -303,9 +323,7 @@ public class ActivityPubWorker{
 
 		try{
 			List<URI> inboxes=UserStorage.getFollowerInboxes(self.id);
-			for(URI inbox:inboxes){
-				executor.submit(new SendOneActivityRunnable(add, inbox, self));
-			}
+			enqueueDelivery(add, inboxes, self);
 		}catch(SQLException x){
 			x.printStackTrace();
 		}
@@ -320,9 +338,7 @@ public class ActivityPubWorker{
 
 		try{
 			List<URI> inboxes=UserStorage.getFollowerInboxes(self.id);
-			for(URI inbox:inboxes){
-				executor.submit(new SendOneActivityRunnable(remove, inbox, self));
-			}
+			enqueueDelivery(remove, inboxes, self);
 		}catch(SQLException x){
 			x.printStackTrace();
 		}
@@ -333,7 +349,7 @@ public class ActivityPubWorker{
 		follow.actor=new LinkOrObject(self.activityPubID);
 		follow.object=new LinkOrObject(target.activityPubID);
 		follow.activityPubID=new UriBuilder(self.activityPubID).fragment("followUser"+target.id+"_"+rand()).build();
-		executor.submit(new SendOneActivityRunnable(follow, target.inbox, self));
+		enqueueDelivery(follow, target.inbox, self);
 	}
 
 	public void sendFollowActivity(User self, ForeignGroup target){
@@ -341,7 +357,7 @@ public class ActivityPubWorker{
 		follow.actor=new LinkOrObject(self.activityPubID);
 		follow.object=new LinkOrObject(target.activityPubID);
 		follow.activityPubID=new UriBuilder(self.activityPubID).fragment("joinGroup"+target.id+"_"+rand()).build();
-		executor.submit(new SendOneActivityRunnable(follow, target.inbox, self));
+		enqueueDelivery(follow, target.inbox, self);
 	}
 
 	public void sendUnfollowActivity(User self, ForeignGroup target){
@@ -355,7 +371,7 @@ public class ActivityPubWorker{
 		follow.activityPubID=new UriBuilder(self.activityPubID).fragment("joinGroup"+target.id+"_"+rand()).build();
 		undo.object=new LinkOrObject(follow);
 
-		executor.submit(new SendOneActivityRunnable(undo, target.inbox, self));
+		enqueueDelivery(undo, target.inbox, self);
 	}
 
 	public void sendFriendRequestActivity(User self, ForeignUser target, String message){
@@ -374,9 +390,9 @@ public class ActivityPubWorker{
 			revFollow.actor=new LinkOrObject(target.activityPubID);
 			revFollow.object=new LinkOrObject(self.activityPubID);
 			offer.object=new LinkOrObject(revFollow);
-			executor.submit(new SendActivitySequenceRunnable(Arrays.asList(follow, offer), target.inbox, self));
+			enqueueDeliverySequence(Arrays.asList(follow, offer), target.inbox, self);
 		}else{
-			executor.submit(new SendOneActivityRunnable(follow, target.inbox, self));
+			enqueueDelivery(follow, target.inbox, self);
 		}
 	}
 
@@ -386,7 +402,7 @@ public class ActivityPubWorker{
 		accept.actor=new LinkOrObject(self.activityPubID);
 		accept.object=new LinkOrObject(follow);
 		accept.activityPubID=UriBuilder.local().rawPath(self.getTypeAndIdForURL()).fragment("acceptFollow"+actor.id).build();
-		executor.submit(new SendOneActivityRunnable(accept, actor.inbox, self));
+		enqueueDelivery(accept, actor.inbox, self);
 	}
 
 	public void sendRejectFriendRequestActivity(User self, ForeignUser target){
@@ -400,7 +416,7 @@ public class ActivityPubWorker{
 		reject.object=new LinkOrObject(offer);
 		reject.actor=new LinkOrObject(self.activityPubID);
 		reject.activityPubID=URI.create(self.activityPubID+"#rejectFriendReq"+target.id);
-		executor.submit(new SendOneActivityRunnable(reject, target.inbox, self));
+		enqueueDelivery(reject, target.inbox, self);
 	}
 
 	public void sendUpdateUserActivity(User user){
@@ -412,9 +428,7 @@ public class ActivityPubWorker{
 
 		try{
 			List<URI> inboxes=UserStorage.getFollowerInboxes(user.id);
-			for(URI inbox:inboxes){
-				executor.submit(new SendOneActivityRunnable(update, inbox, user));
-			}
+			enqueueDelivery(update, inboxes, user);
 		}catch(SQLException x){
 			x.printStackTrace();
 		}
@@ -429,9 +443,7 @@ public class ActivityPubWorker{
 
 		try{
 			List<URI> inboxes=GroupStorage.getGroupMemberInboxes(group.id);
-			for(URI inbox:inboxes){
-				executor.submit(new SendOneActivityRunnable(update, inbox, group));
-			}
+			enqueueDelivery(update, inboxes, group);
 		}catch(SQLException x){
 			x.printStackTrace();
 		}
@@ -444,9 +456,7 @@ public class ActivityPubWorker{
 		like.object=new LinkOrObject(post.activityPubID);
 		List<URI> inboxes=PostStorage.getInboxesForPostInteractionForwarding(post);
 		System.out.println("Inboxes:\n"+inboxes.stream().map(URI::toString).collect(Collectors.joining("\n")));
-		for(URI inbox:inboxes){
-			executor.submit(new SendOneActivityRunnable(like, inbox, user));
-		}
+		enqueueDelivery(like, inboxes, user);
 	}
 
 	public void sendUndoLikeActivity(Post post, User user, int likeID) throws SQLException{
@@ -460,9 +470,7 @@ public class ActivityPubWorker{
 		undo.actor=new LinkOrObject(user.activityPubID);
 		ActivityPubCache.putUndoneLike(likeID, undo);
 		List<URI> inboxes=PostStorage.getInboxesForPostInteractionForwarding(post);
-		for(URI inbox:inboxes){
-			executor.submit(new SendOneActivityRunnable(undo, inbox, user));
-		}
+		enqueueDelivery(undo, inboxes, user);
 	}
 
 	public void sendBlockActivity(Actor self, ForeignUser target) throws SQLException{
@@ -470,7 +478,7 @@ public class ActivityPubWorker{
 		block.activityPubID=new UriBuilder(self.activityPubID).fragment("blockUser"+target.id+"_"+System.currentTimeMillis()).build();
 		block.actor=new LinkOrObject(self.activityPubID);
 		block.object=new LinkOrObject(target.activityPubID);
-		executor.submit(new SendOneActivityRunnable(block, target.inbox, self));
+		enqueueDelivery(block, target.inbox, self);
 	}
 
 	public void sendUndoBlockActivity(Actor self, ForeignUser target) throws SQLException{
@@ -482,84 +490,38 @@ public class ActivityPubWorker{
 		undo.activityPubID=new UriBuilder(self.activityPubID).fragment("undoBlockUser"+target.id+"_"+System.currentTimeMillis()).build();
 		undo.actor=new LinkOrObject(self.activityPubID);
 		undo.object=new LinkOrObject(block);
-		executor.submit(new SendOneActivityRunnable(undo, target.inbox, self));
-	}
-
-	public synchronized Future<List<Post>> fetchReplyThread(Post post){
-		return fetchingReplyThreads.computeIfAbsent(post.activityPubID, (uri)->executor.submit(new FetchReplyThreadRunnable(post)));
+		enqueueDelivery(undo, target.inbox, self);
 	}
 
-	public synchronized Future<List<Post>> fetchReplyThreadAndThen(Post post, Consumer<List<Post>> action){
-		afterFetchReplyThreadActions.computeIfAbsent(post.activityPubID, (uri)->new ArrayList<>()).add(action);
-		return fetchReplyThread(post);
-	}
-
-	public synchronized Future<Post> fetchAllReplies(Post post){
-		return fetchingAllReplies.computeIfAbsent(post.activityPubID, (uri)->executor.submit(new FetchAllRepliesTask(post)));
-	}
-
-	private static class SendOneActivityRunnable implements Runnable{
-		private Activity activity;
-		private URI destination;
-		private Actor actor;
-
-		public SendOneActivityRunnable(Activity activity, URI destination, Actor actor){
-			this.activity=activity;
-			this.destination=destination;
-			this.actor=actor;
-		}
-
-		@Override
-		public void run(){
+	public CompletableFuture<List<Post>> fetchReplyThread(Post post){
+		CompletableFuture<List<Post>> future=new CompletableFuture<>();
+		CompletableFuture<List<Post>> existing=fetchingReplyThreads.putIfAbsent(post.activityPubID, future);
+		if(existing!=null)
+			return existing;
+		executor.submit(DatabaseConnectionManager.wrap(()->{
 			try{
-				ActivityPub.postActivity(destination, activity, actor);
+				future.complete(new FetchReplyThreadRunnable(post).call());
 			}catch(Exception x){
-				x.printStackTrace();
+				future.completeExceptionally(x);
+			}finally{
+				fetchingReplyThreads.remove(post.activityPubID, future);
 			}
-		}
+		}));
+		return future;
 	}
 
-	private static class SendActivitySequenceRunnable implements Runnable{
-		private List<Activity> activities;
-		private URI destination;
-		private User user;
-
-		public SendActivitySequenceRunnable(List<Activity> activities, URI destination, User user){
-			this.activities=activities;
-			this.destination=destination;
-			this.user=user;
-		}
-
-		@Override
-		public void run(){
-			try{
-				for(Activity activity:activities)
-					ActivityPub.postActivity(destination, activity, user);
-			}catch(Exception x){
-				x.printStackTrace();
-			}
-		}
+	public CompletableFuture<List<Post>> fetchReplyThreadAndThen(Post post, Consumer<List<Post>> action){
+		CompletableFuture<List<Post>> future=fetchReplyThread(post);
+		future.thenAcceptAsync(action, r->executor.submit(DatabaseConnectionManager.wrap(r)));
+		return future;
 	}
 
-	private static class ForwardOneActivityRunnable implements Runnable{
-		private String activity;
-		private URI destination;
-		private User user;
-
-		public ForwardOneActivityRunnable(String activity, URI destination, User user){
-			this.activity=activity;
-			this.destination=destination;
-			this.user=user;
-		}
+	public CompletableFuture<Post> fetchAllReplies(Post post){
+		return replyCrawler.fetchAllReplies(post);
+	}
 
-		@Override
-		public void run(){
-			try{
-				ActivityPub.postActivity(destination, activity, user);
-			}catch(Exception x){
-				x.printStackTrace();
-			}
-		}
+	public ReplyCrawler.CrawlerStats getReplyCrawlerStats(){
+		return replyCrawler.getStats();
 	}
 
 	private static class FetchReplyThreadRunnable implements Callable<List<Post>>{
@@ -605,175 +567,7 @@ public class ActivityPubWorker{
 				NotificationUtils.putNotificationsForPost(p, prev);
 			}
 			LOG.info("Done fetching parent thread for post {}", topLevel.activityPubID);
-			synchronized(instance){
-				instance.fetchingReplyThreads.remove(initialPost.activityPubID);
-				List<Consumer<List<Post>>> actions=instance.afterFetchReplyThreadActions.remove(initialPost.activityPubID);
-				if(actions!=null){
-					for(Consumer<List<Post>> action:actions){
-						instance.executor.submit(()->action.accept(thread));
-					}
-				}
-				return thread;
-			}
-		}
-	}
-
-	private static class FetchAllRepliesTask extends RecursiveTask<Post>{
-		protected Post post;
-		/**
-		 * This keeps track of all the posts we've seen in this comment thread, to prevent a DoS via infinite recursion.
-		 * NB: used from multiple threads simultaneously
-		 */
-		protected final Set<URI> seenPosts;
-
-		public FetchAllRepliesTask(Post post, Set<URI> seenPosts){
-			this.post=post;
-			this.seenPosts=seenPosts;
-		}
-
-		public FetchAllRepliesTask(Post post){
-			this(post, new HashSet<>());
-			if(post.getReplyLevel()>0)
-				throw new IllegalArgumentException("This constructor is only for top-level posts");
-		}
-
-		@Override
-		protected Post compute(){
-			LOG.debug("Started fetching full reply tree for post {}", post.activityPubID);
-			try{
-				if(post.replies==null){
-					if(post.local){
-						post.repliesObjects=PostStorage.getRepliesExact(post.getReplyKeyForReplies(), Integer.MAX_VALUE, 1000, null);
-					}else{
-						return post;
-					}
-				}else{
-					ActivityPubCollection collection;
-					if(post.replies.link!=null){
-						collection=ObjectLinkResolver.resolve(post.replies.link, ActivityPubCollection.class, true, false, false);
-					}else if(post.replies.object instanceof ActivityPubCollection){
-						collection=(ActivityPubCollection) post.replies.object;
-					}else{
-						LOG.warn("Post {} doesn't have a replies collection", post.activityPubID);
-						return post;
-					}
-					LOG.trace("collection: {}", collection);
-					if(collection.first==null){
-						LOG.warn("Post {} doesn't have replies.first", post.activityPubID);
-						return post;
-					}
-					CollectionPage page;
-					if(collection.first.link!=null){
-						page=ObjectLinkResolver.resolve(collection.first.link, CollectionPage.class, true, false, false);
-					}else if(collection.first.object instanceof CollectionPage){
-						page=(CollectionPage) collection.first.object;
-					}else{
-						LOG.warn("Post {} doesn't have a correct CollectionPage in replies.first", post.activityPubID);
-						return post;
-					}
-					LOG.trace("first page: {}", page);
-					if(page.items!=null && !page.items.isEmpty()){
-						doOneCollectionPage(page.items);
-					}
-					while(page.next!=null){
-						LOG.trace("getting next page: {}", page.next);
-						page=ObjectLinkResolver.resolve(page.next, CollectionPage.class, true, false, false);
-						if(page.items==null){ // you're supposed to not return the "next" field when there are no more pages, but mastodon still does...
-							LOG.debug("done fetching replies because page.items is empty");
-							break;
-						}
-						doOneCollectionPage(page.items);
-					}
-				}
-			}catch(Exception x){
-				completeExceptionally(x);
-			}
-			if(post.getReplyLevel()==0){
-				synchronized(instance){
-					instance.fetchingAllReplies.remove(post.activityPubID);
-					return post;
-				}
-			}
-			return post;
-		}
-
-		private void doOneCollectionPage(List<LinkOrObject> page) throws Exception{
-			ArrayList<FetchAllRepliesTask> subtasks=new ArrayList<>();
-			for(LinkOrObject item:page){
-				Post post;
-				if(item.link!=null){
-					synchronized(seenPosts){
-						if(seenPosts.contains(item.link)){
-							LOG.warn("Already seen post {}", item.link);
-							continue;
-						}
-						if(seenPosts.size()>=MAX_COMMENTS){
-							LOG.warn("Reached limit of {} on comment thread length. Stopping.", MAX_COMMENTS);
-							return;
-						}
-						seenPosts.add(item.link);
-					}
-					FetchPostAndRepliesTask subtask=new FetchPostAndRepliesTask(item.link, this.post, seenPosts);
-					subtasks.add(subtask);
-					subtask.fork();
-				}else if(item.object instanceof Post){
-					synchronized(seenPosts){
-						if(seenPosts.contains(item.object.activityPubID)){
-							LOG.warn("Already seen post {}", item.object.activityPubID);
-							continue;
-						}
-						if(seenPosts.size()>=MAX_COMMENTS){
-							LOG.warn("Reached limit of {} on comment thread length. Stopping.", MAX_COMMENTS);
-							return;
-						}
-						seenPosts.add(item.object.activityPubID);
-					}
-					post=(Post) item.object;
-					post.setParent(this.post);
-					post.resolveDependencies(true, true);
-					PostStorage.putForeignWallPost(post);
-					LOG.trace("got post: {}", post);
-					FetchAllRepliesTask subtask=new FetchAllRepliesTask(post, seenPosts);
-					subtasks.add(subtask);
-					subtask.fork();
-				}else{
-					LOG.warn("reply object isn't a post: {}", item.object);
-					continue;
-				}
-			}
-			for(FetchAllRepliesTask task:subtasks){
-				try{
-//					post.repliesObjects.add(task.join());
-					task.join();
-				}catch(Exception x){
-					LOG.warn("error fetching reply", x);
-				}
-			}
-		}
-	}
-
-	private static class FetchPostAndRepliesTask extends FetchAllRepliesTask{
-		private URI postID;
-		private Post parentPost;
-
-		public FetchPostAndRepliesTask(URI postID, Post parentPost, Set<URI> seenPosts){
-			super(null, seenPosts);
-			this.postID=postID;
-			this.parentPost=parentPost;
-		}
-
-		@Override
-		protected Post compute(){
-			try{
-				LOG.trace("Fetching remote reply from {}", postID);
-				post=ObjectLinkResolver.resolve(postID, Post.class, true, false, false);
-				post.setParent(parentPost);
-				post.storeDependencies();
-				PostStorage.putForeignWallPost(post);
-			}catch(Exception x){
-				completeExceptionally(x);
-			}
-			return super.compute();
+			return thread;
 		}
 	}
 }
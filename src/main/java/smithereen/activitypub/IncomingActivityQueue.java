@@ -0,0 +1,69 @@
+package smithereen.activitypub;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import smithereen.Config;
+import smithereen.Utils;
+import smithereen.storage.DatabaseConnectionManager;
+
+/**
+ * Bounded queue and worker pool for processing activities received into inboxes when activitypub.inbox.async is enabled.
+ * The inbox endpoint only does the cheap checks and answers right away; this does the rest.
+ */
+public class IncomingActivityQueue{
+	private static final Logger LOG=LoggerFactory.getLogger(IncomingActivityQueue.class);
+
+	private static ThreadPoolExecutor executor;
+	private static final AtomicLong rejectedCount=new AtomicLong();
+
+	private static synchronized ThreadPoolExecutor getExecutor(){
+		if(executor==null){
+			executor=new ThreadPoolExecutor(Config.inboxWorkerThreads, Config.inboxWorkerThreads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Config.inboxQueueSize));
+		}
+		return executor;
+	}
+
+	/**
+	 * @return false if the queue is full and the activity should be rejected
+	 */
+	public static boolean submit(Runnable task){
+		try{
+			getExecutor().execute(DatabaseConnectionManager.wrap(task));
+			return true;
+		}catch(RejectedExecutionException x){
+			rejectedCount.incrementAndGet();
+			return false;
+		}
+	}
+
+	public static QueueStats getStats(){
+		ThreadPoolExecutor executor=getExecutor();
+		QueueStats stats=new QueueStats();
+		stats.queued=executor.getQueue().size();
+		stats.capacity=Config.inboxQueueSize;
+		stats.activeWorkers=executor.getActiveCount();
+		stats.completed=executor.getCompletedTaskCount();
+		stats.rejected=rejectedCount.get();
+		return stats;
+	}
+
+	public static synchronized void shutDown(){
+		if(executor==null)
+			return;
+		LOG.info("Stopping thread pool");
+		Utils.stopExecutorBlocking(executor, LOG);
+		LOG.info("Stopped");
+	}
+
+	public static class QueueStats{
+		public int queued, capacity, activeWorkers;
+		public long completed, rejected;
+	}
+}
@@ -0,0 +1,97 @@
+package smithereen.activitypub;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.concurrent.atomic.AtomicLong;
+
+import smithereen.CacheRegistry;
+import smithereen.Config;
+import smithereen.LruCache;
+import smithereen.Utils;
+import smithereen.storage.ProcessedActivityStorage;
+
+/**
+ * Remembers recently processed incoming activities, so that copies of the same activity delivered to several inboxes,
+ * or redelivered after a timeout, are dropped before doing any of the expensive work. Activities are identified by
+ * a digest of their ID together with their body: some servers, Smithereen included, reuse IDs (e.g. for Accept and
+ * Reject of a follow that was undone and sent again), so only a byte-identical copy counts as already processed.
+ * Digests are kept for the TTL of the activitypub.processed_activities cache, in memory and, if
+ * activitypub.inbox.dedup_in_db is enabled, in the database.
+ */
+public class ProcessedActivities{
+	private static final LruCache<String, Boolean> recentDigests=CacheRegistry.create("activitypub.processed_activities", 20000, 60*60*1000L);
+	private static final AtomicLong checked=new AtomicLong(), duplicates=new AtomicLong();
+
+	public static boolean wasProcessed(URI activityID, String body) throws SQLException{
+		checked.incrementAndGet();
+		byte[] digest=digest(activityID, body);
+		String key=Utils.byteArrayToHexString(digest);
+		if(recentDigests.get(key)!=null){
+			duplicates.incrementAndGet();
+			return true;
+		}
+		if(Config.inboxDedupInDatabase && ProcessedActivityStorage.wasProcessedSince(digest, windowStart())){
+			recentDigests.put(key, Boolean.TRUE);
+			duplicates.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	public static void markProcessed(URI activityID, String body) throws SQLException{
+		byte[] digest=digest(activityID, body);
+		recentDigests.put(Utils.byteArrayToHexString(digest), Boolean.TRUE);
+		if(Config.inboxDedupInDatabase)
+			ProcessedActivityStorage.putProcessed(digest);
+	}
+
+	/**
+	 * Deletes the digests that are past the deduplication window from the database.
+	 */
+	public static void deleteExpired() throws SQLException{
+		if(Config.inboxDedupInDatabase && recentDigests.expireAfterWrite()>0)
+			ProcessedActivityStorage.deleteOlderThan(windowStart());
+	}
+
+	private static Timestamp windowStart(){
+		// A TTL of 0 means that activities are never forgotten
+		long window=recentDigests.expireAfterWrite();
+		return new Timestamp(window>0 ? System.currentTimeMillis()-window : 0);
+	}
+
+	private static byte[] digest(URI activityID, String body){
+		try{
+			MessageDigest md=MessageDigest.getInstance("MD5");
+			md.update(activityID.toString().getBytes(StandardCharsets.UTF_8));
+			md.update((byte)0);
+			md.update(body.getBytes(StandardCharsets.UTF_8));
+			return md.digest();
+		}catch(NoSuchAlgorithmException x){
+			throw new RuntimeException(x);
+		}
+	}
+
+	public static DedupStats getStats(){
+		DedupStats stats=new DedupStats();
+		stats.checked=checked.get();
+		stats.duplicates=duplicates.get();
+		stats.hitRate=stats.checked==0 ? 0 : (double)stats.duplicates/stats.checked;
+		stats.window=recentDigests.expireAfterWrite()/1000;
+		stats.inDatabase=Config.inboxDedupInDatabase;
+		return stats;
+	}
+
+	public static class DedupStats{
+		public long checked, duplicates;
+		public double hitRate;
+		/**
+		 * Seconds
+		 */
+		public long window;
+		public boolean inDatabase;
+	}
+}
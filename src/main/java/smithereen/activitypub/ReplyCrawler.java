@@ -0,0 +1,365 @@
+package smithereen.activitypub;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import smithereen.ObjectLinkResolver;
+import smithereen.activitypub.objects.ActivityPubCollection;
+import smithereen.activitypub.objects.CollectionPage;
+import smithereen.activitypub.objects.LinkOrObject;
+import smithereen.data.Post;
+import smithereen.data.QueuedReplyFetch;
+import smithereen.storage.DatabaseConnectionManager;
+import smithereen.storage.PostStorage;
+import smithereen.storage.ReplyCrawlStorage;
+
+/**
+ * Fetches the reply trees of remote posts. Every replies collection, collection page and reply is a separate job, and
+ * jobs of all the threads being fetched share a limit on concurrent requests, in total and per server, so that independent
+ * branches are fetched in parallel without hammering any one server. Pending jobs are stored in the database so that
+ * the threads that weren't fully fetched when the server stopped are resumed on startup.
+ */
+public class ReplyCrawler{
+	private static final Logger LOG=LoggerFactory.getLogger(ReplyCrawler.class);
+
+	/**
+	 * The maximum number of posts fetched in one thread, to prevent a DoS via infinitely long or recursive threads.
+	 */
+	private static final int MAX_COMMENTS=1000;
+	private static final int MAX_CONCURRENT_FETCHES=32;
+	private static final int MAX_FETCHES_PER_HOST=4;
+
+	private final ExecutorService executor;
+	/**
+	 * Threads being fetched, by the ID of their top-level post
+	 */
+	private final ConcurrentHashMap<Integer, Crawl> crawls=new ConcurrentHashMap<>();
+	private final Object dispatchLock=new Object();
+	// These three are guarded by dispatchLock
+	private final LinkedHashMap<String, ArrayDeque<Job>> waitingJobs=new LinkedHashMap<>();
+	private final HashMap<String, Integer> runningJobsByHost=new HashMap<>();
+	private int runningJobs;
+	private final AtomicLong completedJobs=new AtomicLong(), failedJobs=new AtomicLong();
+	private volatile boolean stopped;
+
+	ReplyCrawler(ExecutorService executor){
+		this.executor=executor;
+	}
+
+	void start(){
+		executor.submit(DatabaseConnectionManager.wrap(this::resume));
+	}
+
+	void shutDown(){
+		stopped=true;
+	}
+
+	/**
+	 * Fetches all replies to a top-level post, recursively, and stores them.
+	 * @return a future that completes with the post once its whole reply tree was fetched
+	 */
+	public CompletableFuture<Post> fetchAllReplies(Post post){
+		if(post.getReplyLevel()>0)
+			throw new IllegalArgumentException("Only top-level posts can have their reply trees fetched");
+		if(post.local || post.id==0 || post.getRepliesURL()==null)
+			return CompletableFuture.completedFuture(post);
+		Crawl crawl=new Crawl(post);
+		Crawl existing=crawls.putIfAbsent(post.id, crawl);
+		if(existing!=null)
+			return existing.future;
+		LOG.debug("Started fetching full reply tree for post {}", post.activityPubID);
+		crawl.seenPosts.add(post.activityPubID);
+		try{
+			enqueue(crawl, QueuedReplyFetch.Type.REPLIES, post.id, post.getRepliesURL(), post);
+		}catch(SQLException x){
+			crawls.remove(post.id, crawl);
+			crawl.future.completeExceptionally(x);
+			return crawl.future;
+		}
+		dispatch();
+		return crawl.future;
+	}
+
+	public CrawlerStats getStats(){
+		CrawlerStats stats=new CrawlerStats();
+		stats.threads=crawls.size();
+		synchronized(dispatchLock){
+			for(ArrayDeque<Job> jobs:waitingJobs.values())
+				stats.waitingFetches+=jobs.size();
+			stats.runningFetches=runningJobs;
+			stats.busyHosts=runningJobsByHost.size();
+		}
+		stats.completedFetches=completedJobs.get();
+		stats.failedFetches=failedJobs.get();
+		return stats;
+	}
+
+	private void resume(){
+		List<QueuedReplyFetch> fetches;
+		try{
+			fetches=ReplyCrawlStorage.getAllFetches();
+		}catch(SQLException x){
+			LOG.warn("Failed to load pending reply fetches", x);
+			return;
+		}
+		if(fetches.isEmpty())
+			return;
+		LOG.info("Resuming {} pending reply fetches", fetches.size());
+		for(QueuedReplyFetch fetch:fetches){
+			try{
+				Crawl crawl=crawls.get(fetch.rootPostID);
+				if(crawl==null){
+					Post root=PostStorage.getPostByID(fetch.rootPostID, false);
+					if(root==null){
+						ReplyCrawlStorage.deleteFetch(fetch.id);
+						continue;
+					}
+					crawl=new Crawl(root);
+					Crawl existing=crawls.putIfAbsent(root.id, crawl);
+					if(existing!=null)
+						crawl=existing;
+					else
+						crawl.seenPosts.add(root.activityPubID);
+				}
+				if(fetch.uri!=null){
+					if(fetch.type==QueuedReplyFetch.Type.POST)
+						crawl.seenPosts.add(fetch.uri);
+					else if(fetch.type==QueuedReplyFetch.Type.PAGE)
+						crawl.seenPages.add(fetch.uri);
+				}
+				crawl.pendingJobs.incrementAndGet();
+				addWaitingJob(new Job(crawl, fetch, null));
+			}catch(SQLException x){
+				LOG.warn("Failed to resume reply fetch {}", fetch, x);
+			}
+		}
+		dispatch();
+	}
+
+	private void enqueue(Crawl crawl, QueuedReplyFetch.Type type, int postID, URI uri, Post post) throws SQLException{
+		QueuedReplyFetch fetch=new QueuedReplyFetch();
+		fetch.rootPostID=crawl.rootPost.id;
+		fetch.postID=postID;
+		fetch.type=type;
+		fetch.uri=uri;
+		fetch.id=ReplyCrawlStorage.putFetch(fetch.rootPostID, postID, type, uri);
+		crawl.pendingJobs.incrementAndGet();
+		addWaitingJob(new Job(crawl, fetch, post));
+	}
+
+	private void addWaitingJob(Job job){
+		synchronized(dispatchLock){
+			waitingJobs.computeIfAbsent(job.getHost(), h->new ArrayDeque<>()).add(job);
+		}
+	}
+
+	/**
+	 * Starts as many waiting jobs as the limits allow.
+	 */
+	private void dispatch(){
+		if(stopped)
+			return;
+		ArrayList<Job> jobsToStart=new ArrayList<>();
+		synchronized(dispatchLock){
+			Iterator<Map.Entry<String, ArrayDeque<Job>>> itr=waitingJobs.entrySet().iterator();
+			while(runningJobs<MAX_CONCURRENT_FETCHES && itr.hasNext()){
+				Map.Entry<String, ArrayDeque<Job>> e=itr.next();
+				String host=e.getKey();
+				ArrayDeque<Job> jobs=e.getValue();
+				int runningForHost=runningJobsByHost.getOrDefault(host, 0);
+				while(runningForHost<MAX_FETCHES_PER_HOST && runningJobs<MAX_CONCURRENT_FETCHES && !jobs.isEmpty()){
+					jobsToStart.add(jobs.poll());
+					runningForHost++;
+					runningJobs++;
+				}
+				if(runningForHost>0)
+					runningJobsByHost.put(host, runningForHost);
+				if(jobs.isEmpty())
+					itr.remove();
+			}
+		}
+		for(Job job:jobsToStart){
+			executor.submit(DatabaseConnectionManager.wrap(()->runJob(job)));
+		}
+	}
+
+	private void runJob(Job job){
+		try{
+			switch(job.fetch.type){
+				case REPLIES -> fetchRepliesCollection(job);
+				case PAGE -> fetchPage(job);
+				case POST -> fetchPost(job);
+			}
+			completedJobs.incrementAndGet();
+		}catch(Exception x){
+			failedJobs.incrementAndGet();
+			LOG.warn("Error fetching replies: {}", job.fetch, x);
+		}
+		synchronized(dispatchLock){
+			runningJobs--;
+			runningJobsByHost.computeIfPresent(job.getHost(), (h, n)->n>1 ? n-1 : null);
+		}
+		finishJob(job);
+		dispatch();
+	}
+
+	private void finishJob(Job job){
+		try{
+			ReplyCrawlStorage.deleteFetch(job.fetch.id);
+		}catch(SQLException x){
+			LOG.warn("Failed to delete reply fetch {}", job.fetch, x);
+		}
+		Crawl crawl=job.crawl;
+		if(crawl.pendingJobs.decrementAndGet()==0){
+			crawls.remove(crawl.rootPost.id, crawl);
+			LOG.info("Done fetching replies for post {}", crawl.rootPost.activityPubID);
+			crawl.future.complete(crawl.rootPost);
+		}
+	}
+
+	private void fetchRepliesCollection(Job job) throws Exception{
+		Post post=job.post!=null ? job.post : PostStorage.getPostByID(job.fetch.postID, false);
+		if(post==null || post.replies==null)
+			return;
+		ActivityPubCollection collection;
+		if(post.replies.link!=null){
+			collection=ObjectLinkResolver.resolve(post.replies.link, ActivityPubCollection.class, true, false, false);
+		}else if(post.replies.object instanceof ActivityPubCollection){
+			collection=(ActivityPubCollection) post.replies.object;
+		}else{
+			LOG.warn("Post {} doesn't have a replies collection", post.activityPubID);
+			return;
+		}
+		if(collection.first==null){
+			LOG.warn("Post {} doesn't have replies.first", post.activityPubID);
+			return;
+		}
+		if(collection.first.link!=null){
+			if(job.crawl.seenPages.add(collection.first.link))
+				enqueue(job.crawl, QueuedReplyFetch.Type.PAGE, post.id, collection.first.link, null);
+		}else if(collection.first.object instanceof CollectionPage){
+			processPage(job.crawl, post, (CollectionPage) collection.first.object, true);
+		}else{
+			LOG.warn("Post {} doesn't have a correct CollectionPage in replies.first", post.activityPubID);
+		}
+	}
+
+	private void fetchPage(Job job) throws Exception{
+		Post parent=PostStorage.getPostByID(job.fetch.postID, false);
+		if(parent==null)
+			return;
+		CollectionPage page=ObjectLinkResolver.resolve(job.fetch.uri, CollectionPage.class, true, false, false);
+		processPage(job.crawl, parent, page, false);
+	}
+
+	private void fetchPost(Job job) throws Exception{
+		Post parent=PostStorage.getPostByID(job.fetch.postID, false);
+		if(parent==null)
+			return;
+		LOG.trace("Fetching remote reply from {}", job.fetch.uri);
+		Post post=ObjectLinkResolver.resolve(job.fetch.uri, Post.class, true, false, false);
+		post.setParent(parent);
+		post.storeDependencies();
+		PostStorage.putForeignWallPost(post);
+		if(post.getRepliesURL()!=null)
+			enqueue(job.crawl, QueuedReplyFetch.Type.REPLIES, post.id, post.getRepliesURL(), post);
+	}
+
+	/**
+	 * @param first whether this is the first page of the collection. Mastodon returns "next" on the last page too,
+	 *              so the subsequent pages stop being followed once one of them doesn't have items.
+	 */
+	private void processPage(Crawl crawl, Post parent, CollectionPage page, boolean first) throws Exception{
+		if(page.items==null && !first){
+			LOG.debug("Done fetching replies to {} because page.items is empty", parent.activityPubID);
+			return;
+		}
+		if(page.items!=null){
+			for(LinkOrObject item:page.items){
+				URI id=item.link!=null ? item.link : item.object!=null ? item.object.activityPubID : null;
+				if(id==null)
+					continue;
+				if(crawl.seenPosts.size()>=MAX_COMMENTS){
+					LOG.warn("Reached limit of {} on comment thread length. Stopping.", MAX_COMMENTS);
+					return;
+				}
+				if(!crawl.seenPosts.add(id)){
+					LOG.warn("Already seen post {}", id);
+					continue;
+				}
+				if(item.link!=null){
+					enqueue(crawl, QueuedReplyFetch.Type.POST, parent.id, item.link, null);
+				}else if(item.object instanceof Post){
+					Post post=(Post) item.object;
+					post.setParent(parent);
+					post.resolveDependencies(true, true);
+					PostStorage.putForeignWallPost(post);
+					LOG.trace("got post: {}", post);
+					if(post.getRepliesURL()!=null)
+						enqueue(crawl, QueuedReplyFetch.Type.REPLIES, post.id, post.getRepliesURL(), post);
+				}else{
+					LOG.warn("reply object isn't a post: {}", item.object);
+				}
+			}
+		}
+		if(page.next!=null && crawl.seenPages.add(page.next))
+			enqueue(crawl, QueuedReplyFetch.Type.PAGE, parent.id, page.next, null);
+	}
+
+	private static class Crawl{
+		final Post rootPost;
+		final CompletableFuture<Post> future=new CompletableFuture<>();
+		/**
+		 * Queued and running jobs. The crawl is done when this reaches 0.
+		 */
+		final AtomicInteger pendingJobs=new AtomicInteger();
+		final Set<URI> seenPosts=ConcurrentHashMap.newKeySet();
+		final Set<URI> seenPages=ConcurrentHashMap.newKeySet();
+
+		Crawl(Post rootPost){
+			this.rootPost=rootPost;
+		}
+	}
+
+	private static class Job{
+		final Crawl crawl;
+		final QueuedReplyFetch fetch;
+		/**
+		 * The post whose replies are fetched, if it's already in memory
+		 */
+		final Post post;
+
+		Job(Crawl crawl, QueuedReplyFetch fetch, Post post){
+			this.crawl=crawl;
+			this.fetch=fetch;
+			this.post=post;
+		}
+
+		String getHost(){
+			if(fetch.uri==null || fetch.uri.getRawAuthority()==null)
+				return "";
+			return fetch.uri.getRawAuthority().toLowerCase();
+		}
+	}
+
+	public static class CrawlerStats{
+		public int threads, waitingFetches, runningFetches, busyHosts;
+		public long completedFetches, failedFetches;
+	}
+}
@@ -0,0 +1,35 @@
+package smithereen.activitypub;
+
+import java.util.Collection;
+
+import smithereen.CacheRegistry;
+import smithereen.LruCache;
+
+/**
+ * Remembers the signatures of activities that were already successfully processed, so that duplicate deliveries
+ * (retries, the same activity forwarded by several servers) can be dropped without verifying or handling them again.
+ */
+public class SignatureCache{
+	private static final LruCache<String, Boolean> processedSignatures=CacheRegistry.create("activitypub.processed_signatures", 10000, 10*60*1000L);
+
+	/**
+	 * @param keys signature identifiers as returned by {@link #signatureKey(String, String)}
+	 * @return whether an activity with any of these signatures has been processed recently
+	 */
+	public static boolean wasProcessed(Collection<String> keys){
+		for(String key:keys){
+			if(processedSignatures.get(key)!=null)
+				return true;
+		}
+		return false;
+	}
+
+	public static void markProcessed(Collection<String> keys){
+		for(String key:keys)
+			processedSignatures.put(key, Boolean.TRUE);
+	}
+
+	public static String signatureKey(String keyID, String signature){
+		return keyID+" "+signature;
+	}
+}
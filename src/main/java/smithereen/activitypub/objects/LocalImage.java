@@ -11,10 +11,12 @@ import smithereen.activitypub.ContextCollector;
 import smithereen.activitypub.ParserContext;
 import smithereen.data.SizedImage;
 import smithereen.storage.ImgProxy;
+import smithereen.storage.MediaStorageUtils;
 
 public class LocalImage extends Image implements SizedImage{
 	public String path;
 	public Dimensions size=Dimensions.UNKNOWN;
+	public boolean hasDownscaledCopies;
 
 	@Override
 	protected ActivityPubObject parseActivityPubObject(JsonObject obj, ParserContext parserContext){
@@ -25,6 +27,7 @@ public class LocalImage extends Image implements SizedImage{
 		width=s.get(0).getAsInt();
 		height=s.get(1).getAsInt();
 		size=new Dimensions(width, height);
+		hasDownscaledCopies=obj.has("_ds") && obj.get("_ds").getAsBoolean();
 		return this;
 	}
 
@@ -56,13 +59,14 @@ public class LocalImage extends Image implements SizedImage{
 
 	@Override
 	public URI getUriForSizeAndFormat(Type size, Format format){
-		ImgProxy.UrlBuilder builder=new ImgProxy.UrlBuilder("local://"+Config.imgproxyLocalUploads+"/"+path+"/"+localID+".webp")
+		MediaStorageUtils.ImageSource src=MediaStorageUtils.getSourceForSize(localID, width, height, hasDownscaledCopies, size, cropRegion);
+		ImgProxy.UrlBuilder builder=new ImgProxy.UrlBuilder("local://"+Config.imgproxyLocalUploads+"/"+path+"/"+src.fileName)
 				.format(format)
 				.resize(size.getResizingType(), size.getMaxWidth(), size.getMaxHeight(), false, false);
 		if(cropRegion!=null && size.getResizingType()==ImgProxy.ResizingType.FILL){
-			int x=Math.round(cropRegion[0]*width);
-			int y=Math.round(cropRegion[1]*height);
-			builder.crop(x, y, Math.round(cropRegion[2]*width-x), Math.round(cropRegion[3]*height-y));
+			int x=Math.round(cropRegion[0]*src.width);
+			int y=Math.round(cropRegion[1]*src.height);
+			builder.crop(x, y, Math.round(cropRegion[2]*src.width-x), Math.round(cropRegion[3]*src.height-y));
 		}
 		return builder.build();
 	}
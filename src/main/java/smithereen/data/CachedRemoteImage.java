@@ -5,16 +5,19 @@ import java.net.URI;
 import smithereen.Config;
 import smithereen.storage.ImgProxy;
 import smithereen.storage.MediaCache;
+import smithereen.storage.MediaStorageUtils;
 
 public class CachedRemoteImage implements SizedImage{
 
 	private Dimensions dimensions;
 	private String cacheKey;
+	private boolean hasDownscaledCopies;
 	private float[] cropRegion;
 
 	public CachedRemoteImage(MediaCache.PhotoItem item){
 		dimensions=new Dimensions(item.width, item.height);
 		cacheKey=item.key;
+		hasDownscaledCopies=item.hasDownscaledCopies;
 	}
 
 	public CachedRemoteImage(MediaCache.PhotoItem item, float[] cropRegion){
@@ -30,14 +33,15 @@ public class CachedRemoteImage implements SizedImage{
 
 	@Override
 	public URI getUriForSizeAndFormat(Type size, Format format){
-		ImgProxy.UrlBuilder builder=new ImgProxy.UrlBuilder("local://"+Config.imgproxyLocalMediaCache+"/"+cacheKey+".webp")
+		MediaStorageUtils.ImageSource src=MediaStorageUtils.getSourceForSize(cacheKey, dimensions.width, dimensions.height, hasDownscaledCopies, size, cropRegion);
+		ImgProxy.UrlBuilder builder=new ImgProxy.UrlBuilder("local://"+Config.imgproxyLocalMediaCache+"/"+src.fileName)
 				.resize(size.getMaxWidth(), size.getMaxHeight())
 				.format(format)
 				.quality(90);
 		if(cropRegion!=null && size.getResizingType()==ImgProxy.ResizingType.FILL){
-			int x=Math.round(cropRegion[0]*dimensions.width);
-			int y=Math.round(cropRegion[1]*dimensions.height);
-			builder.crop(x, y, Math.round(cropRegion[2]*dimensions.width-x), Math.round(cropRegion[3]*dimensions.height-y));
+			int x=Math.round(cropRegion[0]*src.width);
+			int y=Math.round(cropRegion[1]*src.height);
+			builder.crop(x, y, Math.round(cropRegion[2]*src.width-x), Math.round(cropRegion[3]*src.height-y));
 		}
 		return builder.build();
 	}
@@ -13,6 +13,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Objects;
 
 import smithereen.Config;
 import smithereen.ObjectLinkResolver;
@@ -34,11 +35,11 @@ import smithereen.data.attachments.PhotoAttachment;
 import smithereen.data.attachments.VideoAttachment;
 import smithereen.storage.GroupStorage;
 import smithereen.storage.MediaCache;
-import smithereen.storage.PostStorage;
 import smithereen.storage.UserStorage;
+import smithereen.util.PostHTMLCache;
 import spark.utils.StringUtils;
 
-public class Post extends ActivityPubObject{
+public class Post extends ActivityPubObject implements Cloneable{
 	public int id;
 	public User user;
 	public Actor owner;
@@ -57,12 +58,19 @@ public class Post extends ActivityPubObject{
 	private ActivityPubObject activityPubTarget;
 
 	public static Post fromResultSet(ResultSet res) throws SQLException{
+		return fromResultSet(res, new PostReferences());
+	}
+
+	/**
+	 * @param refs preloaded users, groups and post IDs this post may reference, see PostStorage.postsFromResultSet
+	 */
+	public static Post fromResultSet(ResultSet res, PostReferences refs) throws SQLException{
 		Post post=new Post();
-		post.fillFromResultSet(res);
+		post.fillFromResultSet(res, refs);
 		return post;
 	}
 
-	protected void fillFromResultSet(ResultSet res) throws SQLException{
+	protected void fillFromResultSet(ResultSet res, PostReferences refs) throws SQLException{
 		id=res.getInt("id");
 
 		String apid=res.getString("ap_id");
@@ -81,7 +89,7 @@ public class Post extends ActivityPubObject{
 			replyKey=new int[0];
 
 		if(replyKey.length>0){
-			inReplyTo=PostStorage.getActivityPubID(replyKey[replyKey.length-1]);
+			inReplyTo=refs.getPostActivityPubID(replyKey[replyKey.length-1]);
 		}
 
 		String _replies=res.getString("ap_replies");
@@ -90,12 +98,12 @@ public class Post extends ActivityPubObject{
 
 		int uid=res.getInt("author_id");
 		if(!res.wasNull()){
-			user=UserStorage.getById(uid);
+			user=refs.getUser(uid);
 			int ownerUserID=res.getInt("owner_user_id");
 			if(!res.wasNull())
-				owner=UserStorage.getById(ownerUserID);
+				owner=refs.getUser(ownerUserID);
 			else
-				owner=GroupStorage.getById(res.getInt("owner_group_id"));
+				owner=refs.getGroup(res.getInt("owner_group_id"));
 		}else{
 			deleted=true;
 			return;
@@ -140,7 +148,7 @@ public class Post extends ActivityPubObject{
 			if(tag==null)
 				tag=new ArrayList<>();
 			for(int id:mentions){
-				User user=UserStorage.getById(id);
+				User user=refs.getUser(id);
 				if(user!=null){
 					mentionedUsers.add(user);
 					if(local){
@@ -160,6 +168,20 @@ public class Post extends ActivityPubObject{
 		return summary!=null;
 	}
 
+	/**
+	 * @return a key that changes whenever anything the post's text, content warning or attachments are rendered from changes.
+	 * Used to cache that part of the post templates.
+	 */
+	public String getRenderCacheKey(){
+		int attachmentsHash=0;
+		if(attachment!=null){
+			for(ActivityPubObject o:attachment){
+				attachmentsHash=attachmentsHash*31+(o instanceof LocalImage ? Objects.hashCode(((LocalImage) o).path) : Objects.hashCode(o.url));
+			}
+		}
+		return id+":"+Objects.hashCode(content)+":"+Objects.hashCode(summary)+":"+attachmentsHash+":"+PostHTMLCache.getUsernameGeneration();
+	}
+
 	@Override
 	public String getType(){
 		if(deleted)
@@ -186,7 +208,7 @@ public class Post extends ActivityPubObject{
 		root.addProperty("sensitive", hasContentWarning());
 		contextCollector.addAlias("sensitive", "as:sensitive");
 		if(root.has("content"))
-			root.addProperty("content", Utils.postprocessPostHTMLForActivityPub(content));
+			root.addProperty("content", PostHTMLCache.getActivityPubHTML(content));
 
 		if(getReplyLevel()==0 && (!(owner instanceof User) || user.id!=((User)owner).id)){
 			ActivityPubCollection wall=new ActivityPubCollection(false);
@@ -308,6 +330,19 @@ public class Post extends ActivityPubObject{
 		return deleted;
 	}
 
+	/**
+	 * @return a shallow copy with its own replies list, so that callers can attach replies to it without affecting the original
+	 */
+	public Post copy(){
+		try{
+			Post post=(Post) clone();
+			post.repliesObjects=new ArrayList<>();
+			return post;
+		}catch(CloneNotSupportedException x){
+			throw new RuntimeException(x);
+		}
+	}
+
 	// for use in templates
 	public int getReplyChainElement(int level){
 		return replyKey[level];
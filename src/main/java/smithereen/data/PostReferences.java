@@ -0,0 +1,45 @@
+package smithereen.data;
+
+import java.net.URI;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+
+import smithereen.storage.GroupStorage;
+import smithereen.storage.PostStorage;
+import smithereen.storage.UserStorage;
+
+/**
+ * Users, groups and parent post IDs referenced by posts that were loaded in bulk before the posts themselves are created.
+ * Anything that's missing is looked up one by one.
+ */
+public class PostReferences{
+	private final Map<Integer, User> users;
+	private final Map<Integer, Group> groups;
+	private final Map<Integer, URI> postActivityPubIDs;
+
+	public PostReferences(){
+		this(Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+	}
+
+	public PostReferences(Map<Integer, User> users, Map<Integer, Group> groups, Map<Integer, URI> postActivityPubIDs){
+		this.users=users;
+		this.groups=groups;
+		this.postActivityPubIDs=postActivityPubIDs;
+	}
+
+	public User getUser(int id) throws SQLException{
+		User user=users.get(id);
+		return user!=null ? user : UserStorage.getById(id);
+	}
+
+	public Group getGroup(int id) throws SQLException{
+		Group group=groups.get(id);
+		return group!=null ? group : GroupStorage.getById(id);
+	}
+
+	public URI getPostActivityPubID(int id) throws SQLException{
+		URI apID=postActivityPubIDs.get(id);
+		return apID!=null ? apID : PostStorage.getActivityPubID(id);
+	}
+}
@@ -0,0 +1,56 @@
+package smithereen.data;
+
+import java.net.URI;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * One pending activity delivery from the persistent outbound queue.
+ * The payload is either a single activity JSON object or, for activities that must arrive in order, a JSON array of them.
+ */
+public class QueuedDelivery{
+	public long id;
+	public URI inbox;
+	public String host;
+	public int actorUserID;
+	public int actorGroupID;
+	public String payload;
+	public int attempts;
+	public Timestamp createdAt;
+
+	public boolean isSequence(){
+		return payload.startsWith("[");
+	}
+
+	/**
+	 * @return the key deliveries are grouped by, the lowercased host and port of the inbox URL
+	 */
+	public static String getHostKey(URI inbox){
+		return inbox.getRawAuthority().toLowerCase();
+	}
+
+	public static QueuedDelivery fromResultSet(ResultSet res) throws SQLException{
+		QueuedDelivery d=new QueuedDelivery();
+		d.id=res.getLong("id");
+		d.inbox=URI.create(res.getString("inbox"));
+		d.host=res.getString("host");
+		d.actorUserID=res.getInt("actor_user_id");
+		d.actorGroupID=res.getInt("actor_group_id");
+		d.payload=res.getString("payload");
+		d.attempts=res.getInt("attempts");
+		d.createdAt=res.getTimestamp("created_at");
+		return d;
+	}
+
+	@Override
+	public String toString(){
+		return "QueuedDelivery{"+
+				"id="+id+
+				", inbox="+inbox+
+				", actorUserID="+actorUserID+
+				", actorGroupID="+actorGroupID+
+				", attempts="+attempts+
+				'}';
+	}
+}
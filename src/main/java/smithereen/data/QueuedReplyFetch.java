@@ -0,0 +1,61 @@
+package smithereen.data;
+
+import java.net.URI;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * One pending step of fetching the reply tree of a remote post. These are persisted so that an interrupted crawl
+ * continues where it stopped after a restart.
+ */
+public class QueuedReplyFetch{
+	public long id;
+	/**
+	 * The top-level post whose reply tree is being fetched
+	 */
+	public int rootPostID;
+	/**
+	 * For {@link Type#REPLIES}, the post whose replies collection is to be fetched. For others, the post the fetched replies are replies to.
+	 */
+	public int postID;
+	public Type type;
+	public URI uri;
+
+	public static QueuedReplyFetch fromResultSet(ResultSet res) throws SQLException{
+		QueuedReplyFetch f=new QueuedReplyFetch();
+		f.id=res.getLong("id");
+		f.rootPostID=res.getInt("root_post_id");
+		f.postID=res.getInt("post_id");
+		f.type=Type.values()[res.getInt("type")];
+		String uri=res.getString("uri");
+		if(uri!=null)
+			f.uri=URI.create(uri);
+		return f;
+	}
+
+	@Override
+	public String toString(){
+		return "QueuedReplyFetch{"+
+				"id="+id+
+				", rootPostID="+rootPostID+
+				", postID="+postID+
+				", type="+type+
+				", uri="+uri+
+				'}';
+	}
+
+	public enum Type{
+		/**
+		 * Fetch the replies collection of a post that's already stored
+		 */
+		REPLIES,
+		/**
+		 * Fetch a page of a replies collection
+		 */
+		PAGE,
+		/**
+		 * Fetch and store a reply, then its replies
+		 */
+		POST
+	}
+}
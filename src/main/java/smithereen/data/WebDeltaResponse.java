@@ -4,14 +4,24 @@ import com.google.gson.annotations.SerializedName;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 
 import smithereen.Utils;
+import smithereen.lang.Lang;
+import smithereen.templates.RenderedTemplateResponse;
+import smithereen.util.JsonStringWriter;
 import spark.Response;
 
 public class WebDeltaResponse{
+	private static final Logger LOG=LoggerFactory.getLogger(WebDeltaResponse.class);
+
 	private ArrayList<Command> commands=new ArrayList<>();
 
 	public WebDeltaResponse(){
@@ -27,6 +37,11 @@ public class WebDeltaResponse{
 		return this;
 	}
 
+	public WebDeltaResponse setContent(@NotNull String containerID, @NotNull RenderedTemplateResponse template){
+		commands.add(new SetContentCommand(containerID, null).withTemplate("c", template));
+		return this;
+	}
+
 	public WebDeltaResponse remove(@NotNull String... ids){
 		commands.add(new RemoveElementsCommand(ids));
 		return this;
@@ -47,11 +62,26 @@ public class WebDeltaResponse{
 		return this;
 	}
 
+	public WebDeltaResponse box(@NotNull String title, @NotNull RenderedTemplateResponse content, @Nullable String id, boolean scrollable){
+		commands.add(new BoxCommand(title, null, id, scrollable, null).withTemplate("c", content));
+		return this;
+	}
+
+	public WebDeltaResponse box(@NotNull String title, @NotNull RenderedTemplateResponse content, @Nullable String id, int width){
+		commands.add(new BoxCommand(title, null, id, null, width).withTemplate("c", content));
+		return this;
+	}
+
 	public WebDeltaResponse formBox(@NotNull String title, @NotNull String content, @NotNull String formAction, @NotNull String button){
 		commands.add(new FormBoxCommand(content, title, button, formAction));
 		return this;
 	}
 
+	public WebDeltaResponse formBox(@NotNull String title, @NotNull RenderedTemplateResponse content, @NotNull String formAction, @NotNull String button){
+		commands.add(new FormBoxCommand(null, title, button, formAction).withTemplate("m", content));
+		return this;
+	}
+
 	public WebDeltaResponse show(@NotNull String... ids){
 		commands.add(new ShowHideElementsCommand(true, ids));
 		return this;
@@ -67,6 +97,11 @@ public class WebDeltaResponse{
 		return this;
 	}
 
+	public WebDeltaResponse insertHTML(@NotNull ElementInsertionMode mode, @NotNull String id, @NotNull RenderedTemplateResponse template){
+		commands.add(new InsertHtmlCommand(id, null, mode).withTemplate("c", template));
+		return this;
+	}
+
 	public WebDeltaResponse setInputValue(@NotNull String id, @NotNull String value){
 		commands.add(new SetInputValueCommand(id, value));
 		return this;
@@ -103,7 +138,46 @@ public class WebDeltaResponse{
 	}
 
 	public String json(){
-		return Utils.gson.toJson(commands);
+		StringWriter writer=new StringWriter();
+		try{
+			writeTo(writer);
+		}catch(IOException ignore){}
+		return writer.toString();
+	}
+
+	/**
+	 * Writes the commands as JSON. Templates passed instead of HTML strings are rendered right into the writer,
+	 * so their output doesn't need to be kept in memory. If a template fails to render, the command it belongs to
+	 * is replaced with an error message box, so the client still gets a well-formed response and doesn't apply
+	 * half-rendered HTML. Only exceptions thrown by the writer itself are propagated.
+	 */
+	public void writeTo(Writer out) throws IOException{
+		out.write('[');
+		for(int i=0;i<commands.size();i++){
+			if(i>0)
+				out.write(',');
+			Command cmd=commands.get(i);
+			if(cmd.template==null){
+				Utils.gson.toJson(cmd, out);
+			}else{
+				// The template goes first so that the action, which comes after it, can still be changed if it fails.
+				// Gson output always has at least the action, so it's never an empty object.
+				out.write("{\""+cmd.templateField+"\":\"");
+				Command rest=cmd;
+				try{
+					cmd.template.renderToWriter(new JsonStringWriter(out));
+				}catch(RuntimeException x){
+					LOG.warn("Failed to render template for command {}", cmd.action, x);
+					Lang l=Lang.get(cmd.template.getLocale());
+					// Overrides the partially written field when it has the same name, JSON.parse keeps the last value
+					rest=new MessageBoxCommand(l.get("error"), l.get("err_content_render_failed"), l.get("ok"));
+				}
+				out.write("\",");
+				String json=Utils.gson.toJson(rest);
+				out.write(json, 1, json.length()-1);
+			}
+		}
+		out.write(']');
 	}
 
 	@Override
@@ -111,6 +185,9 @@ public class WebDeltaResponse{
 		return json();
 	}
 
+	/**
+	 * Commands that were given templates can only be serialized by {@link #writeTo(Writer)}.
+	 */
 	public List<Command> commands(){
 		return commands;
 	}
@@ -130,9 +207,18 @@ public class WebDeltaResponse{
 		@SerializedName("a")
 		public String action;
 
+		transient RenderedTemplateResponse template;
+		transient String templateField;
+
 		public Command(String action){
 			this.action=action;
 		}
+
+		Command withTemplate(String field, RenderedTemplateResponse template){
+			templateField=field;
+			this.template=template;
+			return this;
+		}
 	}
 
 	private static class SetContentCommand extends Command{
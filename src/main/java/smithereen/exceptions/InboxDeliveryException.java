@@ -0,0 +1,26 @@
+package smithereen.exceptions;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a remote server responds to an activity delivery with a non-2xx status code.
+ */
+public class InboxDeliveryException extends IOException{
+	private final int responseCode;
+
+	public InboxDeliveryException(int responseCode, String message){
+		super(message);
+		this.responseCode=responseCode;
+	}
+
+	public int getResponseCode(){
+		return responseCode;
+	}
+
+	/**
+	 * @return true if retrying the same request later is pointless (a 4xx other than 408 and 429)
+	 */
+	public boolean isPermanent(){
+		return responseCode>=400 && responseCode<500 && responseCode!=408 && responseCode!=429;
+	}
+}
@@ -15,7 +15,10 @@ public class JLDContext implements Cloneable{
 	@Override
 	public JLDContext clone(){
 		try{
-			return (JLDContext) super.clone();
+			JLDContext c=(JLDContext) super.clone();
+			// Term definitions themselves are never modified after being created, but the map is
+			c.termDefinitions=new HashMap<>(termDefinitions);
+			return c;
 		}catch(CloneNotSupportedException x){
 			throw new RuntimeException(x);
 		}
@@ -18,12 +18,25 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import smithereen.CacheRegistry;
+import smithereen.LruCache;
 
 public class JLDProcessor{
 
-	private static HashMap<String, JsonObject> schemaCache=new HashMap<>();
+	private static ConcurrentHashMap<String, JsonObject> schemaCache=new ConcurrentHashMap<>();
+	/**
+	 * Fully processed contexts keyed by base IRI and normalized @context value. Almost all incoming objects use one of a handful of contexts.
+	 * The cached objects must never be modified; {@link #updateContext(JLDContext, JsonElement, ArrayList, URI)} always works on a copy.
+	 */
+	private static final LruCache<String, JLDContext> compiledContexts=CacheRegistry.create("jsonld.contexts", 100);
+	private static final LruCache<String, JsonObject> inverseContexts=CacheRegistry.create("jsonld.inverse_contexts", 20);
 	private static final JsonObject inverseLocalContext;
 	private static final JLDContext localContext;
+	private static final URI RDF_TYPE=URI.create(RDF.NS_RDF+"type");
+	private static final URI RDF_STRING=URI.create(RDF.NS_RDF+"string");
+	private static final URI RDF_LANG_STRING=URI.create(RDF.NS_RDF+"langString");
 
 	private static final Comparator<String> SHORTEST_LEAST=(o1, o2)->{
 		if(o1.length()!=o2.length())
@@ -73,7 +86,16 @@ public class JLDProcessor{
 		JsonElement jcontext=null;
 		if(src.isJsonObject())
 			jcontext=src.getAsJsonObject().get("@context");
-		JLDContext context=updateContext(new JLDContext(), jcontext, new ArrayList<String>(), baseURI);
+		JLDContext context=getCompiledContext(jcontext, baseURI);
+		if(jcontext!=null && !jcontext.isJsonNull()){
+			// The compiled context already has the top-level @context applied, don't let expand() process it again
+			JsonObject withoutContext=new JsonObject();
+			for(Map.Entry<String, JsonElement> e:src.getAsJsonObject().entrySet()){
+				if(!"@context".equals(e.getKey()))
+					withoutContext.add(e.getKey(), e.getValue());
+			}
+			src=withoutContext;
+		}
 		Object result=expand(context, null, src);
 		if(result instanceof JsonArray)
 			return (JsonArray) result;
@@ -92,8 +114,13 @@ public class JLDProcessor{
 	}
 
 	public static JsonObject compact(JsonElement src, JsonElement context, boolean compactArrays, URI baseURI){
-		JLDContext localContext=updateContext(new JLDContext(), context, new ArrayList<>(), baseURI);
-		JsonObject inverseContext=createReverseContext(localContext);
+		JLDContext localContext=getCompiledContext(context, baseURI);
+		String key=contextCacheKey(context, baseURI);
+		JsonObject inverseContext=inverseContexts.get(key);
+		if(inverseContext==null){
+			inverseContext=createReverseContext(localContext);
+			inverseContexts.put(key, inverseContext);
+		}
 		JsonElement _result=compact(localContext, inverseContext, null, src, compactArrays);
 		JsonObject result;
 		if(_result.isJsonObject())
@@ -118,6 +145,25 @@ public class JLDProcessor{
 		return compactToLocalContext(expandToArray(src));
 	}
 
+	private static String contextCacheKey(JsonElement context, URI baseURI){
+		// ["https://www.w3.org/ns/activitystreams"] and "https://www.w3.org/ns/activitystreams" are the same thing
+		if(context!=null && context.isJsonArray() && context.getAsJsonArray().size()==1)
+			context=context.getAsJsonArray().get(0);
+		return (baseURI==null ? "" : baseURI.toString())+" "+context;
+	}
+
+	private static JLDContext getCompiledContext(JsonElement context, URI baseURI){
+		if(context==null)
+			return updateContext(new JLDContext(), null, new ArrayList<>(), baseURI);
+		String key=contextCacheKey(context, baseURI);
+		JLDContext compiled=compiledContexts.get(key);
+		if(compiled==null){
+			compiled=updateContext(new JLDContext(), context, new ArrayList<>(), baseURI);
+			compiledContexts.put(key, compiled);
+		}
+		return compiled;
+	}
+
 	private static JsonObject idAndTypeObject(String id, String type){
 		JsonObject o=new JsonObject();
 		o.addProperty("@id", id);
@@ -148,8 +194,9 @@ public class JLDProcessor{
 		if(iri.endsWith("/litepub-0.1.jsonld")){ // This avoids caching multiple copies of the same schema for different instances
 			iri="https://example.com/schemas/litepub-0.1.jsonld";
 		}
-		if(schemaCache.containsKey(iri))
-			return schemaCache.get(iri);
+		JsonObject cached=schemaCache.get(iri);
+		if(cached!=null)
+			return cached;
 		String file=null;
 		switch(iri){
 			case "https://www.w3.org/ns/activitystreams":
@@ -1635,7 +1682,12 @@ public class JLDProcessor{
 		}else{
 			valueStr=value.getAsString();
 		}
-		return new RDFLiteral(valueStr, URI.create(datatype), item.has("@language") ? item.get("@language").getAsString() : null);
+		URI datatypeURI=switch(datatype){
+			case RDF.NS_RDF+"string" -> RDF_STRING;
+			case RDF.NS_RDF+"langString" -> RDF_LANG_STRING;
+			default -> URI.create(datatype);
+		};
+		return new RDFLiteral(valueStr, datatypeURI, item.has("@language") ? item.get("@language").getAsString() : null);
 	}
 
 	private static Object listToRDF(JsonArray list, ArrayList<RDFTriple> triples, BlankNodeIdentifierGenerator idGen){
@@ -1657,21 +1709,19 @@ public class JLDProcessor{
 		return bnodes.isEmpty() ? RDF.NS_RDF+"nil" : bnodes.get(0);
 	}
 
+	private static String iriSortKey(String iri){
+		if(iri.startsWith("@"))
+			return '<'+RDF.NS_RDF+iri.substring(1)+'>';
+		else if(!iri.startsWith("_:"))
+			return '<'+iri+'>';
+		return iri;
+	}
+
 	public static ArrayList<RDFTriple> toRDF(JsonElement input, URI baseURI){
-		final Comparator<String> iriComparator=new Comparator<String>(){
-			@Override
-			public int compare(String o1, String o2){
-				if(o1.startsWith("@"))
-					o1='<'+RDF.NS_RDF+o1.substring(1)+'>';
-				else if(!o1.startsWith("_:"))
-					o1='<'+o1+'>';
-				if(o2.startsWith("@"))
-					o2='<'+RDF.NS_RDF+o2.substring(1)+'>';
-				else if(!o2.startsWith("_:"))
-					o2='<'+o2+'>';
-				return o1.compareTo(o2);
-			}
-		};
+		// Sort keys are computed once per string instead of on every comparison, same for parsed property IRIs
+		final HashMap<String, String> iriSortKeys=new HashMap<>();
+		final Comparator<String> iriComparator=Comparator.comparing(s->iriSortKeys.computeIfAbsent(s, JLDProcessor::iriSortKey));
+		final HashMap<String, URI> propertyURIs=new HashMap<>();
 		boolean produceGeneralizedRDF=false;
 		ArrayList<RDFTriple> allTriples=new ArrayList<>();
 
@@ -1708,26 +1758,27 @@ public class JLDProcessor{
 					if(property.equals("@type")){
 						for(JsonElement _type:values){
 							String type=_type.getAsString();
-							triples.add(new RDFTriple(subjectURI==null ? subject : subjectURI, URI.create(RDF.NS_RDF+"type"), type.charAt(0)=='_' ? type : URI.create(type)));
+							triples.add(new RDFTriple(subjectURI==null ? subject : subjectURI, RDF_TYPE, type.charAt(0)=='_' ? type : URI.create(type)));
 						}
 					}else if(isKeyword(property)){
 						continue;
 					}else if(property.startsWith("_:b") && !produceGeneralizedRDF){
 						continue;
-					}else if(!URI.create(property).isAbsolute()){
+					}else if(!propertyURIs.computeIfAbsent(property, URI::create).isAbsolute()){
 						continue;
 					}else{
+						URI propertyURI=propertyURIs.get(property);
 						for(Object _item:values){
 							JsonObject item=(JsonObject)_item;
 							if(isListObject(item)){
 								ArrayList<RDFTriple> listTriples=new ArrayList<>();
 								Object listHead=listToRDF(item.getAsJsonArray("@list"), listTriples, idGen);
-								triples.add(new RDFTriple(subjectURI==null ? subject : subjectURI, URI.create(property), listHead));
+								triples.add(new RDFTriple(subjectURI==null ? subject : subjectURI, propertyURI, listHead));
 								triples.addAll(listTriples);
 							}else{
 								Object result=objectToRDF(item);
 								if(result!=null){
-									triples.add(new RDFTriple(subjectURI==null ? subject : subjectURI, URI.create(property), result));
+									triples.add(new RDFTriple(subjectURI==null ? subject : subjectURI, propertyURI, result));
 								}
 							}
 						}
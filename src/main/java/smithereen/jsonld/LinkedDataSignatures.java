@@ -4,7 +4,6 @@ import com.google.gson.JsonObject;
 
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
@@ -13,24 +12,25 @@ import java.security.SignatureException;
 import java.util.Base64;
 import java.util.Date;
 
+import smithereen.CacheRegistry;
+import smithereen.LruCache;
 import smithereen.Utils;
 
 public class LinkedDataSignatures{
+	private static final ThreadLocal<Signature> rsaVerifier=new ThreadLocal<>();
+	private static final LruCache<String, String> optionsHashes=CacheRegistry.create("jsonld.options_hashes", 1000);
+
 	public static void sign(JsonObject toSign, PrivateKey pkey, String keyID){
 		JsonObject options=new JsonObject();
 		options.addProperty("creator", keyID);
 		options.addProperty("created", Utils.formatDateAsISO(new Date()));
 		options.addProperty("@context", JLD.W3_IDENTITY);
 
-		String cOptions=URDNA2015.canonicalize(options, null);
-		String cData=URDNA2015.canonicalize(toSign, null);
+		String optionsHash=URDNA2015.sha256Hex(URDNA2015.canonicalize(options, null));
+		String dataHash=URDNA2015.sha256Hex(URDNA2015.canonicalize(toSign, null));
+		byte[] sigData=(optionsHash+dataHash).getBytes(StandardCharsets.UTF_8);
 
 		try{
-			MessageDigest sha256=MessageDigest.getInstance("SHA-256");
-			String optionsHash=Utils.byteArrayToHexString(sha256.digest(cOptions.getBytes(StandardCharsets.UTF_8)));
-			String dataHash=Utils.byteArrayToHexString(sha256.digest(cData.getBytes(StandardCharsets.UTF_8)));
-			byte[] sigData=(optionsHash+dataHash).getBytes(StandardCharsets.UTF_8);
-
 			Signature signer=Signature.getInstance("SHA256withRSA");
 			signer.initSign(pkey);
 			signer.update(sigData);
@@ -68,21 +68,42 @@ public class LinkedDataSignatures{
 				data.add(key, obj.get(key));
 		}
 
-		String cOptions=URDNA2015.canonicalize(options, null);
-		String cData=URDNA2015.canonicalize(data, null);
+		String optionsHash=getOptionsHash(options);
+		String dataHash=URDNA2015.sha256Hex(URDNA2015.canonicalize(data, null));
+		byte[] sigData=(optionsHash+dataHash).getBytes(StandardCharsets.UTF_8);
 
 		try{
-			MessageDigest sha256=MessageDigest.getInstance("SHA-256");
-			String optionsHash=Utils.byteArrayToHexString(sha256.digest(cOptions.getBytes(StandardCharsets.UTF_8)));
-			String dataHash=Utils.byteArrayToHexString(sha256.digest(cData.getBytes(StandardCharsets.UTF_8)));
-			byte[] sigData=(optionsHash+dataHash).getBytes(StandardCharsets.UTF_8);
-
-			Signature verifier=Signature.getInstance("SHA256withRSA");
-			verifier.initVerify(pkey);
-			verifier.update(sigData);
-			return verifier.verify(signature);
+			return verifyRsaSha256(sigData, signature, pkey);
 		}catch(NoSuchAlgorithmException|SignatureException|InvalidKeyException ignore){}
 
 		return false;
 	}
+
+	/**
+	 * The options object only has the creator, the creation date and the context, so the same one is seen again whenever
+	 * the same signed activity arrives more than once (forwarded by several servers, redelivered after a timeout).
+	 */
+	private static String getOptionsHash(JsonObject options){
+		String key=options.toString();
+		String hash=optionsHashes.get(key);
+		if(hash==null){
+			hash=URDNA2015.sha256Hex(URDNA2015.canonicalize(options, null));
+			optionsHashes.put(key, hash);
+		}
+		return hash;
+	}
+
+	/**
+	 * Verifies an RSA-SHA256 signature reusing a per-thread {@link Signature} instance.
+	 */
+	public static boolean verifyRsaSha256(byte[] data, byte[] signature, PublicKey pkey) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException{
+		Signature verifier=rsaVerifier.get();
+		if(verifier==null){
+			verifier=Signature.getInstance("SHA256withRSA");
+			rsaVerifier.set(verifier);
+		}
+		verifier.initVerify(pkey);
+		verifier.update(data);
+		return verifier.verify(signature);
+	}
 }
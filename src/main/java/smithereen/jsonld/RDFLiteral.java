@@ -3,6 +3,9 @@ package smithereen.jsonld;
 import java.net.URI;
 
 public class RDFLiteral{
+	private static final String RDF_STRING=RDF.NS_RDF+"string";
+	private static final String RDF_LANG_STRING=RDF.NS_RDF+"langString";
+
 	public String lexicalForm;
 	public URI datatype;
 	public String languageTag;
@@ -15,17 +18,36 @@ public class RDFLiteral{
 		this.languageTag=languageTag;
 	}
 
-	private static String quote(String s){
-		return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n").replace("\r", "\\r");
+	/*package*/ void appendTo(StringBuilder sb){
+		sb.append('"');
+		for(int i=0;i<lexicalForm.length();i++){
+			char c=lexicalForm.charAt(i);
+			switch(c){
+				case '\\' -> sb.append("\\\\");
+				case '"' -> sb.append("\\\"");
+				case '\n' -> sb.append("\\n");
+				case '\r' -> sb.append("\\r");
+				default -> sb.append(c);
+			}
+		}
+		sb.append('"');
+		String dt=datatype.toString();
+		if(dt.equals(RDF_STRING))
+			return;
+		if(dt.equals(RDF_LANG_STRING)){
+			sb.append('@');
+			sb.append(languageTag);
+		}else{
+			sb.append("^^<");
+			sb.append(dt);
+			sb.append('>');
+		}
 	}
 
 	@Override
 	public String toString(){
-		if(datatype.toString().equals(RDF.NS_RDF+"string")){
-			return '"'+quote(lexicalForm)+'"';
-		}else if(datatype.toString().equals(RDF.NS_RDF+"langString")){
-			return '"'+quote(lexicalForm)+"\"@"+languageTag;
-		}
-		return '"'+quote(lexicalForm)+"\"^^<"+datatype+'>';
+		StringBuilder sb=new StringBuilder(lexicalForm.length()+10);
+		appendTo(sb);
+		return sb.toString();
 	}
 }
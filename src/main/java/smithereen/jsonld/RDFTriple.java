@@ -3,10 +3,12 @@ package smithereen.jsonld;
 import com.google.gson.JsonParser;
 
 import java.net.URI;
+import java.util.function.UnaryOperator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class RDFTriple{
+	private static final Pattern LITERAL_PATTERN=Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"(?:\\^\\^<([^>]+)>|@(\\w+))?");
 
 	// IRI or blank node
 	public Object subject;
@@ -62,8 +64,7 @@ public class RDFTriple{
 				graphName=_object.substring(index+1);
 			}
 		}else{
-			Pattern ptn=Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"(?:\\^\\^<([^>]+)>|@(\\w+))?");
-			Matcher m=ptn.matcher(_object);
+			Matcher m=LITERAL_PATTERN.matcher(_object);
 			if(!m.find())
 				throw new IllegalArgumentException("Malformed RDF literal "+_object);
 			String lex=JsonParser.parseString("[\""+m.group(1)+"\"]").getAsJsonArray().get(0).getAsString();
@@ -88,37 +89,41 @@ public class RDFTriple{
 		return r;
 	}
 
-	@Override
-	public String toString(){
-		StringBuilder sb=new StringBuilder();
-		if(subject instanceof URI){
-			sb.append('<');
-			sb.append(subject);
-			sb.append("> ");
-		}else{
-			sb.append(subject);
-			sb.append(' ');
-		}
-		sb.append('<');
+	/**
+	 * Appends this quad in N-Quads form, without the trailing newline.
+	 * @param blankNodeLabels if not null, used to relabel blank nodes instead of copying the quad to do so
+	 */
+	/*package*/ void appendTo(StringBuilder sb, UnaryOperator<String> blankNodeLabels){
+		appendTerm(sb, subject, blankNodeLabels);
+		sb.append(" <");
 		sb.append(predicate);
 		sb.append("> ");
-		if(object instanceof URI){
-			sb.append('<');
-			sb.append(object);
-			sb.append('>');
-		}else{
-			sb.append(object);
-		}
-		if(graphName!=null)
+		appendTerm(sb, object, blankNodeLabels);
+		if(graphName!=null){
 			sb.append(' ');
-		if(graphName instanceof URI){
+			appendTerm(sb, graphName, blankNodeLabels);
+		}
+		sb.append(" .");
+	}
+
+	private static void appendTerm(StringBuilder sb, Object term, UnaryOperator<String> blankNodeLabels){
+		if(term instanceof URI){
 			sb.append('<');
-			sb.append(graphName);
+			sb.append(term);
 			sb.append('>');
-		}else if(graphName!=null){
-			sb.append(graphName);
+		}else if(term instanceof RDFLiteral){
+			((RDFLiteral) term).appendTo(sb);
+		}else if(term instanceof String && blankNodeLabels!=null){
+			sb.append(blankNodeLabels.apply((String)term));
+		}else{
+			sb.append(term);
 		}
-		sb.append(" .");
+	}
+
+	@Override
+	public String toString(){
+		StringBuilder sb=new StringBuilder();
+		appendTo(sb, null);
 		return sb.toString();
 	}
 }
@@ -10,23 +10,52 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 
 import smithereen.Utils;
 
 public class URDNA2015{
 
+	private static final ThreadLocal<MessageDigest> sha256=ThreadLocal.withInitial(()->{
+		try{
+			return MessageDigest.getInstance("SHA-256");
+		}catch(NoSuchAlgorithmException x){
+			throw new IllegalStateException(x);
+		}
+	});
+
 	public static List<RDFTriple> normalize(List<RDFTriple> input){
-		return new NormalizationState().normalize(input);
+		NormalizationState state=new NormalizationState(input);
+		state.issueCanonicalIdentifiers();
+		ArrayList<RDFTriple> normalized=new ArrayList<>(input.size());
+		for(RDFTriple quad:input){
+			RDFTriple quadCopy=new RDFTriple(quad);
+			if(quadCopy.subject instanceof String)
+				quadCopy.subject=state.canonicalIssuer.issue((String)quadCopy.subject);
+			if(quadCopy.object instanceof String)
+				quadCopy.object=state.canonicalIssuer.issue((String)quadCopy.object);
+			if(quadCopy.graphName instanceof String)
+				quadCopy.graphName=state.canonicalIssuer.issue((String)quadCopy.graphName);
+			normalized.add(quadCopy);
+		}
+		return normalized;
 	}
 
 	public static String canonicalize(JsonObject json, URI baseURI){
-		List<RDFTriple> norm=normalize(JLDProcessor.toRDF(json, baseURI));
-		ArrayList<String> lines=new ArrayList<>(norm.size());
-		for(RDFTriple t:norm)
-			lines.add(t.toString());
-		Collections.sort(lines);
+		List<RDFTriple> input=JLDProcessor.toRDF(json, baseURI);
+		NormalizationState state=new NormalizationState(input);
+		state.issueCanonicalIdentifiers();
+		// Serialize straight from the input quads with canonical labels substituted instead of copying them first
+		ArrayList<String> lines=new ArrayList<>(input.size());
 		StringBuilder sb=new StringBuilder();
+		for(RDFTriple quad:input){
+			sb.setLength(0);
+			quad.appendTo(sb, state.canonicalIssuer::issue);
+			lines.add(sb.toString());
+		}
+		Collections.sort(lines);
+		sb.setLength(0);
 		for(String line:lines){
 			sb.append(line);
 			sb.append('\n');
@@ -34,51 +63,41 @@ public class URDNA2015{
 		return sb.toString();
 	}
 
+	/**
+	 * @return lowercase hex SHA-256 of the UTF-8 encoding of the string, using a per-thread {@link MessageDigest}
+	 */
+	/*package*/ static String sha256Hex(String src){
+		return Utils.byteArrayToHexString(sha256.get().digest(src.getBytes(StandardCharsets.UTF_8)));
+	}
+
 	private static class NormalizationState{
 		public HashMap<String, ArrayList<RDFTriple>> blankNodeToQuadsMap=new HashMap<>();
 		public HashMap<String, ArrayList<String>> hashToBlankNodesMap=new HashMap<>();
 		public BlankNodeIssuer canonicalIssuer=new BlankNodeIssuer("_:c14n");
+		// The first degree hash of a blank node only depends on the input, but hashRelatedBlankNode asks for the same ones over and over
+		private HashMap<String, String> firstDegreeHashes=new HashMap<>();
+		private StringBuilder quadBuffer=new StringBuilder();
 
-		private MessageDigest sha256;
-
-		{
-			try{
-				sha256=MessageDigest.getInstance("SHA-256");
-			}catch(NoSuchAlgorithmException ignore){}
-		}
-
-		public List<RDFTriple> normalize(List<RDFTriple> input){
+		public NormalizationState(List<RDFTriple> input){
 			for(RDFTriple quad:input){
-				if(quad.object instanceof String){
-					String bnode=(String)quad.object;
-					if(!blankNodeToQuadsMap.containsKey(bnode))
-						blankNodeToQuadsMap.put(bnode, new ArrayList<>());
-					blankNodeToQuadsMap.get(bnode).add(quad);
-				}
-				if(quad.subject instanceof String){
-					String bnode=(String)quad.subject;
-					if(!blankNodeToQuadsMap.containsKey(bnode))
-						blankNodeToQuadsMap.put(bnode, new ArrayList<>());
-					blankNodeToQuadsMap.get(bnode).add(quad);
-				}
-				if(quad.graphName instanceof String){
-					String bnode=(String)quad.graphName;
-					if(!blankNodeToQuadsMap.containsKey(bnode))
-						blankNodeToQuadsMap.put(bnode, new ArrayList<>());
-					blankNodeToQuadsMap.get(bnode).add(quad);
-				}
+				if(quad.object instanceof String)
+					blankNodeToQuadsMap.computeIfAbsent((String)quad.object, k->new ArrayList<>()).add(quad);
+				if(quad.subject instanceof String)
+					blankNodeToQuadsMap.computeIfAbsent((String)quad.subject, k->new ArrayList<>()).add(quad);
+				if(quad.graphName instanceof String)
+					blankNodeToQuadsMap.computeIfAbsent((String)quad.graphName, k->new ArrayList<>()).add(quad);
 			}
+		}
 
-			ArrayList<String> nonNormalizedIdentifiers=new ArrayList<>(blankNodeToQuadsMap.keySet());
+		public void issueCanonicalIdentifiers(){
+			LinkedHashSet<String> nonNormalizedIdentifiers=new LinkedHashSet<>(blankNodeToQuadsMap.keySet());
 			boolean simple=true;
 			while(simple){
 				simple=false;
 				hashToBlankNodesMap.clear();
 				for(String identifier:nonNormalizedIdentifiers){
 					String hash=hashFirstDegreeQuads(identifier);
-					if(!hashToBlankNodesMap.containsKey(hash))
-						hashToBlankNodesMap.put(hash, new ArrayList<>());
-					hashToBlankNodesMap.get(hash).add(identifier);
+					hashToBlankNodesMap.computeIfAbsent(hash, k->new ArrayList<>()).add(identifier);
 				}
 				ArrayList<String> hashes=new ArrayList<>(hashToBlankNodesMap.keySet());
 				Collections.sort(hashes);
@@ -104,76 +123,41 @@ public class URDNA2015{
 					tempIssuer.issue(id);
 					hashPathList.add(hashNDegreeQuads(id, tempIssuer));
 				}
-				hashPathList.sort(new Comparator<HashNResult>(){
-					@Override
-					public int compare(HashNResult o1, HashNResult o2){
-						return o1.hash.compareTo(o2.hash);
-					}
-				});
+				hashPathList.sort(Comparator.comparing(r->r.hash));
 				for(HashNResult result:hashPathList){
 					for(String existingID:result.issuer.issuedIdentifiersList){
 						canonicalIssuer.issue(existingID);
 					}
 				}
 			}
-
-			ArrayList<RDFTriple> normalized=new ArrayList<>();
-			for(RDFTriple quad:input){
-				RDFTriple quadCopy=new RDFTriple(quad);
-				if(quadCopy.subject instanceof String)
-					quadCopy.subject=canonicalIssuer.issue((String)quadCopy.subject);
-				if(quadCopy.object instanceof String)
-					quadCopy.object=canonicalIssuer.issue((String)quadCopy.object);
-				if(quadCopy.graphName instanceof String)
-					quadCopy.graphName=canonicalIssuer.issue((String)quadCopy.graphName);
-				normalized.add(quadCopy);
-			}
-
-			return normalized;
 		}
 
 		private String hashFirstDegreeQuads(String refBlankNodeID){
-			ArrayList<String> nquads=new ArrayList<>();
+			String cached=firstDegreeHashes.get(refBlankNodeID);
+			if(cached!=null)
+				return cached;
 			ArrayList<RDFTriple> quads=blankNodeToQuadsMap.get(refBlankNodeID);
+			ArrayList<String> nquads=new ArrayList<>(quads.size());
 			for(RDFTriple quad:quads){
-				RDFTriple _quad=quad;
-				if(quad.object instanceof String){
-					String bnode=(String)quad.object;
-					_quad=new RDFTriple(quad);
-					if(bnode.equals(refBlankNodeID))
-						_quad.object="_:a";
-					else
-						_quad.object="_:z";
-				}
-				if(quad.subject instanceof String){
-					String bnode=(String)quad.subject;
-					if(_quad==quad)
-						_quad=new RDFTriple(quad);
-					if(bnode.equals(refBlankNodeID))
-						_quad.subject="_:a";
-					else
-						_quad.subject="_:z";
-				}
-				if(quad.graphName instanceof String){
-					String bnode=(String)quad.graphName;
-					if(_quad==quad)
-						_quad=new RDFTriple(quad);
-					if(bnode.equals(refBlankNodeID))
-						_quad.graphName="_:a";
-					else
-						_quad.graphName="_:z";
-				}
-				String serialized=_quad.toString();
-				nquads.add(serialized);
+				quadBuffer.setLength(0);
+				quad.appendTo(quadBuffer, bnode->bnode.equals(refBlankNodeID) ? "_:a" : "_:z");
+				nquads.add(quadBuffer.toString());
 			}
 			Collections.sort(nquads);
-			return hash(String.join("\n", nquads)+'\n');
+			quadBuffer.setLength(0);
+			for(String nquad:nquads){
+				quadBuffer.append(nquad);
+				quadBuffer.append('\n');
+			}
+			String hash=sha256Hex(quadBuffer.toString());
+			firstDegreeHashes.put(refBlankNodeID, hash);
+			return hash;
 		}
 
 		private <T> List<List<T>> listPermutations(List<T> list) {
-			if (list.size() == 0) {
+			if (list.size() <= 1) {
 				List<List<T>> result = new ArrayList<>();
-				result.add(new ArrayList<T>());
+				result.add(new ArrayList<T>(list));
 				return result;
 			}
 			List<List<T>> returnMe = new ArrayList<>();
@@ -198,28 +182,22 @@ public class URDNA2015{
 				if(quad.subject instanceof String){
 					String bnode=(String)quad.subject;
 					if(!bnode.equals(identifier)){
-						String hash=hashRelatedBlankNode(bnode, quad, issuer, "s");
-						if(!hashToRelatedBlankNodesMap.containsKey(hash))
-							hashToRelatedBlankNodesMap.put(hash, new ArrayList<>());
-						hashToRelatedBlankNodesMap.get(hash).add(bnode);
+						String hash=hashRelatedBlankNode(bnode, quad, issuer, 's');
+						hashToRelatedBlankNodesMap.computeIfAbsent(hash, k->new ArrayList<>()).add(bnode);
 					}
 				}
 				if(quad.object instanceof String){
 					String bnode=(String)quad.object;
 					if(!bnode.equals(identifier)){
-						String hash=hashRelatedBlankNode(bnode, quad, issuer, "o");
-						if(!hashToRelatedBlankNodesMap.containsKey(hash))
-							hashToRelatedBlankNodesMap.put(hash, new ArrayList<>());
-						hashToRelatedBlankNodesMap.get(hash).add(bnode);
+						String hash=hashRelatedBlankNode(bnode, quad, issuer, 'o');
+						hashToRelatedBlankNodesMap.computeIfAbsent(hash, k->new ArrayList<>()).add(bnode);
 					}
 				}
 				if(quad.graphName instanceof String){
 					String bnode=(String)quad.graphName;
 					if(!bnode.equals(identifier)){
-						String hash=hashRelatedBlankNode(bnode, quad, issuer, "g");
-						if(!hashToRelatedBlankNodesMap.containsKey(hash))
-							hashToRelatedBlankNodesMap.put(hash, new ArrayList<>());
-						hashToRelatedBlankNodesMap.get(hash).add(bnode);
+						String hash=hashRelatedBlankNode(bnode, quad, issuer, 'g');
+						hashToRelatedBlankNodesMap.computeIfAbsent(hash, k->new ArrayList<>()).add(bnode);
 					}
 				}
 			}
@@ -239,14 +217,15 @@ public class URDNA2015{
 					StringBuilder path=new StringBuilder();
 					ArrayList<String> recursionList=new ArrayList<>();
 					for(String related:permutation){
-						if(canonicalIssuer.issuedIdentifiersMap.containsKey(related)){
-							path.append(canonicalIssuer.issuedIdentifiersMap.get(related));
+						String canonicalID=canonicalIssuer.issuedIdentifiersMap.get(related);
+						if(canonicalID!=null){
+							path.append(canonicalID);
 						}else{
 							if(!issuerCopy.issuedIdentifiersMap.containsKey(related))
 								recursionList.add(related);
 							path.append(issuerCopy.issue(related));
 						}
-						if(!chosenPath.isEmpty() && path.length()>=chosenPath.length() && path.toString().compareTo(chosenPath)>0)
+						if(!chosenPath.isEmpty() && path.length()>=chosenPath.length() && CharSequence.compare(path, chosenPath)>0)
 							continue permutationLoop;
 					}
 					for(String related:recursionList){
@@ -256,10 +235,10 @@ public class URDNA2015{
 						path.append(result.hash);
 						path.append('>');
 						issuerCopy=result.issuer;
-						if(!chosenPath.isEmpty() && path.length()>=chosenPath.length() && path.toString().compareTo(chosenPath)>0)
+						if(!chosenPath.isEmpty() && path.length()>=chosenPath.length() && CharSequence.compare(path, chosenPath)>0)
 							continue permutationLoop;
 					}
-					if(chosenPath.isEmpty() || path.toString().compareTo(chosenPath)<0){
+					if(chosenPath.isEmpty() || CharSequence.compare(path, chosenPath)<0){
 						chosenPath=path.toString();
 						chosenIssuer=issuerCopy;
 					}
@@ -268,31 +247,26 @@ public class URDNA2015{
 				issuer=chosenIssuer;
 			}
 			HashNResult result=new HashNResult();
-			result.hash=hash(dataToHash.toString());
+			result.hash=sha256Hex(dataToHash.toString());
 			result.issuer=issuer;
 			return result;
 		}
 
-		private String hashRelatedBlankNode(String related, RDFTriple quad, BlankNodeIssuer issuer, String position){
-			String identifier;
-			if(canonicalIssuer.issuedIdentifiersMap.containsKey(related))
-				identifier=canonicalIssuer.issuedIdentifiersMap.get(related);
-			else if(issuer.issuedIdentifiersMap.containsKey(related))
+		private String hashRelatedBlankNode(String related, RDFTriple quad, BlankNodeIssuer issuer, char position){
+			String identifier=canonicalIssuer.issuedIdentifiersMap.get(related);
+			if(identifier==null)
 				identifier=issuer.issuedIdentifiersMap.get(related);
-			else
+			if(identifier==null)
 				identifier=hashFirstDegreeQuads(related);
-			StringBuilder input=new StringBuilder(position);
-			if(!"g".equals(position)){
+			StringBuilder input=new StringBuilder();
+			input.append(position);
+			if(position!='g'){
 				input.append('<');
 				input.append(quad.predicate);
 				input.append('>');
 			}
 			input.append(identifier);
-			return hash(input.toString());
-		}
-
-		private String hash(String src){
-			return Utils.byteArrayToHexString(sha256.digest(src.getBytes(StandardCharsets.UTF_8)));
+			return sha256Hex(input.toString());
 		}
 
 		private static class HashNResult{
@@ -319,9 +293,10 @@ public class URDNA2015{
 		}
 
 		public String issue(String existingID){
-			if(issuedIdentifiersMap.containsKey(existingID))
-				return issuedIdentifiersMap.get(existingID);
-			String issuedID=identifierPrefix+identifierCounter;
+			String issuedID=issuedIdentifiersMap.get(existingID);
+			if(issuedID!=null)
+				return issuedID;
+			issuedID=identifierPrefix+identifierCounter;
 			issuedIdentifiersList.add(existingID);
 			issuedIdentifiersMap.put(existingID, issuedID);
 			identifierCounter++;
@@ -28,6 +28,8 @@ class LibVips{
 	static native String vips_foreign_find_load(String filename);
 	static native void vips_leak_set(boolean leak);
 	static native Pointer vips_image_new_from_file(String name, Pointer _null);
+	static native String vips_foreign_find_load_buffer(Pointer data, long size);
+	static native Pointer vips_image_new_from_buffer(Pointer buf, long len, String optionString, Pointer _null);
 	static native String vips_error_buffer();
 	static native void vips_error_clear();
 	static native int vips_image_get_width(Pointer img);
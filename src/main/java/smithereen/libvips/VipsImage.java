@@ -1,5 +1,6 @@
 package smithereen.libvips;
 
+import com.sun.jna.Memory;
 import com.sun.jna.Pointer;
 import com.sun.jna.ptr.PointerByReference;
 
@@ -17,9 +18,20 @@ public class VipsImage{
 			"VipsForeignLoadGifFile",
 			"VipsForeignLoadWebpFile",
 			"VipsForeignLoadHeifFile");
+	private static final List<String> BUFFER_LOADER_WHITELIST=List.of(
+			"VipsForeignLoadJpegBuffer",
+			"VipsForeignLoadPngBuffer",
+			"VipsForeignLoadGifBuffer",
+			"VipsForeignLoadWebpBuffer",
+			"VipsForeignLoadHeifBuffer");
 
 	Pointer nativePtr;
 	private boolean released;
+	/**
+	 * libvips doesn't copy the buffer an image is loaded from and decodes it lazily, so it has to stay alive as long as
+	 * this image or any image derived from it does
+	 */
+	private final Memory buffer;
 
 	public VipsImage(String filePath) throws IOException{
 		String loader=vips_foreign_find_load(filePath);
@@ -36,10 +48,33 @@ public class VipsImage{
 		if(nativePtr==Pointer.NULL){
 			throwError();
 		}
+		buffer=null;
 	}
 
-	private VipsImage(Pointer ptr){
+	/**
+	 * Loads an image from an encoded file in memory, e.g. one read from a request or response body.
+	 */
+	public VipsImage(byte[] data) throws IOException{
+		if(data.length==0)
+			throw new IOException("File format not supported");
+		buffer=new Memory(data.length);
+		buffer.write(0, data, 0, data.length);
+		String loader=vips_foreign_find_load_buffer(buffer, data.length);
+		if(loader==null)
+			throw new IOException("File format not supported");
+		if(!BUFFER_LOADER_WHITELIST.contains(loader)){
+			System.out.println("libvips loader not allowed: "+loader);
+			throw new IOException("File format not supported");
+		}
+		nativePtr=vips_image_new_from_buffer(buffer, data.length, loader.equals("VipsForeignLoadJpegBuffer") ? "autorotate=true" : "", Pointer.NULL);
+		if(nativePtr==Pointer.NULL){
+			throwError();
+		}
+	}
+
+	private VipsImage(Pointer ptr, Memory buffer){
 		nativePtr=ptr;
+		this.buffer=buffer;
 	}
 
 	public int getWidth(){
@@ -64,7 +99,7 @@ public class VipsImage{
 		if(vips_resize(nativePtr, out, scale, Pointer.NULL)!=0){
 			throwError();
 		}
-		return new VipsImage(out.getValue());
+		return new VipsImage(out.getValue(), buffer);
 	}
 
 	public VipsImage resize(double hscale, double vscale) throws IOException{
@@ -73,7 +108,7 @@ public class VipsImage{
 		if(vips_resize(nativePtr, out, hscale, "vscale", vscale, Pointer.NULL)!=0){
 			throwError();
 		}
-		return new VipsImage(out.getValue());
+		return new VipsImage(out.getValue(), buffer);
 	}
 
 	public VipsImage crop(int left, int top, int width, int height) throws IOException{
@@ -82,7 +117,7 @@ public class VipsImage{
 		if(vips_crop(nativePtr, out, left, top, width, height, Pointer.NULL)!=0){
 			throwError();
 		}
-		return new VipsImage(out.getValue());
+		return new VipsImage(out.getValue(), buffer);
 	}
 
 	public void writeToFile(String fileName) throws IOException{
@@ -108,7 +143,7 @@ public class VipsImage{
 		}finally{
 			vips_area_unref(arr);
 		}
-		return new VipsImage(out.getValue());
+		return new VipsImage(out.getValue(), buffer);
 	}
 
 	public int getBands(){
@@ -126,7 +161,7 @@ public class VipsImage{
 		PointerByReference out=new PointerByReference();
 		if(vips_cast_uchar(nativePtr, out, Pointer.NULL)!=0)
 			throwError();
-		return new VipsImage(out.getValue());
+		return new VipsImage(out.getValue(), buffer);
 	}
 
 	public List<String> getFields(){
@@ -156,7 +191,7 @@ public class VipsImage{
 		PointerByReference out=new PointerByReference();
 		if(vips_icc_transform(nativePtr, out, outputProfile, Pointer.NULL)!=0)
 			throwError();
-		return new VipsImage(out.getValue());
+		return new VipsImage(out.getValue(), buffer);
 	}
 
 	public boolean hasColorProfile(){
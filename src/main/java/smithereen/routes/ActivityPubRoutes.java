@@ -1,5 +1,6 @@
 package smithereen.routes;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
@@ -16,7 +17,6 @@ import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.Signature;
 import java.security.SignatureException;
 import java.sql.SQLException;
 import java.text.ParseException;
@@ -25,6 +25,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -41,7 +42,10 @@ import smithereen.activitypub.ActivityPubCache;
 import smithereen.activitypub.ActivityPubWorker;
 import smithereen.activitypub.ActivityTypeHandler;
 import smithereen.activitypub.DoublyNestedActivityTypeHandler;
+import smithereen.activitypub.IncomingActivityQueue;
 import smithereen.activitypub.NestedActivityTypeHandler;
+import smithereen.activitypub.ProcessedActivities;
+import smithereen.activitypub.SignatureCache;
 import smithereen.activitypub.handlers.AcceptFollowGroupHandler;
 import smithereen.activitypub.handlers.AcceptFollowPersonHandler;
 import smithereen.activitypub.handlers.AddGroupHandler;
@@ -126,6 +130,10 @@ import static smithereen.Utils.parseSignatureHeader;
 public class ActivityPubRoutes{
 
 	private static final Logger LOG=LoggerFactory.getLogger(ActivityPubRoutes.class);
+	/**
+	 * Seconds to tell remote servers to wait before retrying when the incoming activity queue is full
+	 */
+	private static final int INBOX_RETRY_AFTER=30;
 
 	private static ArrayList<ActivityTypeHandlerRecord<?, ?, ?, ?, ?>> typeHandlers=new ArrayList<>();
 
@@ -560,9 +568,68 @@ public class ActivityPubRoutes{
 				throw new BadRequestException("Digest verification failed");
 			}
 		}
-		String body=req.body();
+		InboxRequest inboxRequest=new InboxRequest(req);
+		if(!Config.inboxAsync)
+			return processInboxRequest(inboxRequest);
+
+		// Only what's cheap is checked here, the rest (including the signature itself) is verified by the worker
+		JsonObject rawActivity=inboxRequest.getJson();
+		if(!rawActivity.has("type") || !rawActivity.has("actor"))
+			throw new BadRequestException("Not an activity");
+		if(rawActivity.get("actor").isJsonPrimitive() && Config.isLocal(URI.create(rawActivity.get("actor").getAsString())))
+			throw new BadRequestException("User domain must be different from this server");
+		if(inboxRequest.header("signature")==null)
+			throw new BadRequestException("Request is missing Signature header");
+		try{
+			verifySignatureDate(inboxRequest);
+		}catch(ParseException x){
+			throw new BadRequestException(x);
+		}
+		if(SignatureCache.wasProcessed(inboxRequest.getSignatureKeys())){
+			resp.status(202);
+			return "";
+		}
+		URI activityID=inboxRequest.getActivityID();
+		if(activityID!=null && ProcessedActivities.wasProcessed(activityID, inboxRequest.body)){
+			resp.status(202);
+			return "";
+		}
+
+		boolean accepted=IncomingActivityQueue.submit(()->{
+			try{
+				processInboxRequest(inboxRequest);
+			}catch(BadRequestException|ObjectNotFoundException x){
+				LOG.debug("Rejected incoming activity: {}", x.getMessage());
+			}catch(Exception x){
+				LOG.warn("Error processing incoming activity", x);
+			}
+		});
+		if(!accepted){
+			resp.status(429);
+			resp.header("Retry-After", String.valueOf(INBOX_RETRY_AFTER));
+			return "";
+		}
+		resp.status(202);
+		return "";
+	}
+
+	private static Object processInboxRequest(InboxRequest req) throws SQLException{
+		URI activityID=req.getActivityID();
+		if(SignatureCache.wasProcessed(req.getSignatureKeys()) || (activityID!=null && ProcessedActivities.wasProcessed(activityID, req.body))){
+			LOG.debug("Skipping an already processed activity");
+			return "";
+		}
+		Object result=handleInboxRequest(req);
+		SignatureCache.markProcessed(req.getSignatureKeys());
+		if(activityID!=null)
+			ProcessedActivities.markProcessed(activityID, req.body);
+		return result;
+	}
+
+	private static Object handleInboxRequest(InboxRequest req) throws SQLException{
+		String body=req.body;
 		System.out.println(body);
-		JsonObject rawActivity=JsonParser.parseString(body).getAsJsonObject();
+		JsonObject rawActivity=req.getJson();
 		JsonObject obj=JLDProcessor.convertToLocalContext(rawActivity);
 
 		Activity activity;
@@ -767,8 +834,8 @@ public class ActivityPubRoutes{
 
 
 
-	private static Actor verifyHttpSignature(Request req, Actor userHint) throws ParseException, NoSuchAlgorithmException, InvalidKeyException, SignatureException, SQLException{
-		String sigHeader=req.headers("Signature");
+	private static Actor verifyHttpSignature(InboxRequest req, Actor userHint) throws ParseException, NoSuchAlgorithmException, InvalidKeyException, SignatureException, SQLException{
+		String sigHeader=req.header("Signature");
 		if(sigHeader==null)
 			throw new BadRequestException("Request is missing Signature header");
 		List<Map<String, String>> values=parseSignatureHeader(sigHeader);
@@ -802,15 +869,7 @@ public class ActivityPubRoutes{
 		if(!headers.contains("host"))
 			throw new BadRequestException("host is not in signed headers");
 
-		SimpleDateFormat dateFormat=new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
-		dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-		long unixtime=dateFormat.parse(req.headers("date")).getTime();
-		long now=System.currentTimeMillis();
-		long diff=now-unixtime;
-		if(diff>30000L)
-			throw new BadRequestException("Date is too far in the future (difference: "+diff+"ms)");
-		if(diff<-30000L)
-			throw new BadRequestException("Date is too far in the past (difference: "+diff+"ms)");
+		verifySignatureDate(req);
 
 		URI userID=Utils.userIdFromKeyId(URI.create(keyId));
 		Actor user;
@@ -825,17 +884,14 @@ public class ActivityPubRoutes{
 		for(String header:headers){
 			String value;
 			if(header.equals("(request-target)")){
-				value=req.requestMethod().toLowerCase()+" "+req.pathInfo();
+				value=req.method.toLowerCase()+" "+req.path;
 			}else{
-				value=req.headers(header);
+				value=req.header(header);
 			}
 			sigParts.add(header+": "+value);
 		}
 		String sigStr=String.join("\n", sigParts);
-		Signature sig=Signature.getInstance("SHA256withRSA");
-		sig.initVerify(user.publicKey);
-		sig.update(sigStr.getBytes(StandardCharsets.UTF_8));
-		if(!sig.verify(signature)){
+		if(!LinkedDataSignatures.verifyRsaSha256(sigStr.getBytes(StandardCharsets.UTF_8), signature, user.publicKey)){
 			System.out.println("Failed sig: "+sigHeader);
 			System.out.println("Failed sig string: '"+sigStr+"'");
 			throw new BadRequestException("Signature failed to verify");
@@ -843,6 +899,23 @@ public class ActivityPubRoutes{
 		return user;
 	}
 
+	/**
+	 * Checks the Date header against the time the request was received, which may be a while ago if it was queued.
+	 */
+	private static void verifySignatureDate(InboxRequest req) throws ParseException{
+		String date=req.header("date");
+		if(date==null)
+			throw new BadRequestException("Request is missing Date header");
+		SimpleDateFormat dateFormat=new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
+		dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+		long unixtime=dateFormat.parse(date).getTime();
+		long diff=req.receivedAt-unixtime;
+		if(diff>30000L)
+			throw new BadRequestException("Date is too far in the future (difference: "+diff+"ms)");
+		if(diff<-30000L)
+			throw new BadRequestException("Date is too far in the past (difference: "+diff+"ms)");
+	}
+
 	private static boolean verifyHttpDigest(String digestHeader, byte[] bodyData){
 		String[] parts=digestHeader.split(",");
 		for(String part:parts){
@@ -862,6 +935,92 @@ public class ActivityPubRoutes{
 		return true;
 	}
 
+	/**
+	 * The parts of an inbox POST request needed to process it, detached from the Jetty request so it can be processed later.
+	 */
+	private static class InboxRequest{
+		final String body;
+		final String method;
+		final String path;
+		final long receivedAt;
+		private final HashMap<String, String> headers=new HashMap<>();
+		private JsonObject json;
+		private List<String> signatureKeys;
+
+		InboxRequest(Request req){
+			body=req.body();
+			method=req.requestMethod();
+			path=req.pathInfo();
+			receivedAt=System.currentTimeMillis();
+			for(String name:req.headers()){
+				headers.put(name.toLowerCase(), req.headers(name));
+			}
+		}
+
+		String header(String name){
+			return headers.get(name.toLowerCase());
+		}
+
+		JsonObject getJson(){
+			if(json==null){
+				try{
+					json=JsonParser.parseString(body).getAsJsonObject();
+				}catch(JsonParseException|IllegalStateException x){
+					throw new BadRequestException("Failed to parse activity: "+x.getMessage());
+				}
+			}
+			return json;
+		}
+
+		/**
+		 * @return the ID of the activity for {@link ProcessedActivities}, or null if it doesn't have one or if it's on
+		 * a different host than its actor, in which case it can't be trusted to identify this activity
+		 */
+		URI getActivityID(){
+			JsonObject json=getJson();
+			if(!json.has("id") || !json.get("id").isJsonPrimitive())
+				return null;
+			JsonElement actor=json.get("actor");
+			if(actor!=null && actor.isJsonObject())
+				actor=actor.getAsJsonObject().get("id");
+			if(actor==null || !actor.isJsonPrimitive())
+				return null;
+			try{
+				URI id=new URI(json.get("id").getAsString());
+				URI actorID=new URI(actor.getAsString());
+				if(id.getHost()==null || !id.getHost().equalsIgnoreCase(actorID.getHost()))
+					return null;
+				return id;
+			}catch(URISyntaxException x){
+				return null;
+			}
+		}
+
+		/**
+		 * @return identifiers of the HTTP signature and the LD-signature (if any) of this request, for {@link SignatureCache}
+		 */
+		List<String> getSignatureKeys(){
+			if(signatureKeys==null){
+				ArrayList<String> keys=new ArrayList<>();
+				String sigHeader=header("signature");
+				if(sigHeader!=null){
+					for(Map<String, String> sig:parseSignatureHeader(sigHeader)){
+						if(sig.containsKey("keyId") && sig.containsKey("signature"))
+							keys.add(SignatureCache.signatureKey(sig.get("keyId"), sig.get("signature")));
+					}
+				}
+				JsonObject json=getJson();
+				if(json.has("signature") && json.get("signature").isJsonObject()){
+					JsonObject ldSig=json.getAsJsonObject("signature");
+					if(ldSig.has("creator") && ldSig.has("signatureValue"))
+						keys.add(SignatureCache.signatureKey(ldSig.get("creator").getAsString(), ldSig.get("signatureValue").getAsString()));
+				}
+				signatureKeys=keys;
+			}
+			return signatureKeys;
+		}
+	}
+
 	private static class ActivityTypeHandlerRecord<A extends Actor, T extends Activity, N extends Activity, NN extends Activity, O extends ActivityPubObject>{
 		@NotNull
 		final Class<A> actorClass;
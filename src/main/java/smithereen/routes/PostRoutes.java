@@ -8,6 +8,7 @@ import org.jetbrains.annotations.Nullable;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -269,10 +270,26 @@ public class PostRoutes{
 
 	public static Object feed(Request req, Response resp, Account self) throws SQLException{
 		int userID=self.user.id;
-		int startFromID=parseIntOrDefault(req.queryParams("startFrom"), 0);
-		int offset=parseIntOrDefault(req.queryParams("offset"), 0);
-		int[] total={0};
-		List<NewsfeedEntry> feed=PostStorage.getFeed(userID, startFromID, offset, total);
+		// The cursor is "<time of the last entry of the previous page in milliseconds>_<its ID>"
+		Timestamp beforeTime=null;
+		int beforeID=0;
+		String before=req.queryParams("before");
+		if(before!=null){
+			String[] parts=before.split("_", 2);
+			if(parts.length==2){
+				try{
+					beforeID=Integer.parseInt(parts[1]);
+					beforeTime=new Timestamp(Long.parseLong(parts[0]));
+				}catch(NumberFormatException ignore){}
+			}
+		}
+		List<NewsfeedEntry> feed=PostStorage.getFeed(userID, beforeTime, beforeID, 26);
+		String nextPageURL=null;
+		if(feed.size()>25){
+			feed.remove(25);
+			NewsfeedEntry last=feed.get(24);
+			nextPageURL="/feed?before="+last.time.toEpochMilli()+"_"+last.id;
+		}
 		HashSet<Integer> postIDs=new HashSet<>();
 		for(NewsfeedEntry e:feed){
 			if(e instanceof PostNewsfeedEntry){
@@ -301,11 +318,9 @@ public class PostRoutes{
 			}
 		}
 		HashMap<Integer, UserInteractions> interactions=PostStorage.getPostInteractions(postIDs, self.user.id);
-		if(!feed.isEmpty() && startFromID==0)
-			startFromID=feed.get(0).id;
 		Utils.jsLangKey(req, "yes", "no", "delete_post", "delete_post_confirm", "delete", "post_form_cw", "post_form_cw_placeholder", "cancel", "attach_menu_photo", "attach_menu_cw", "max_file_size_exceeded");
 		return new RenderedTemplateResponse("feed", req).with("title", Utils.lang(req).get("feed")).with("feed", feed).with("postInteractions", interactions)
-				.with("paginationURL", "/feed?startFrom="+startFromID+"&offset=").with("total", total[0]).with("offset", offset)
+				.with("nextPageURL", nextPageURL).with("isFirstPage", beforeTime==null)
 				.with("draftAttachments", Utils.sessionInfo(req).postDraftAttachments);
 	}
 
@@ -571,9 +586,9 @@ public class PostRoutes{
 		model.with("pageOffset", offset).with("total", interactions.likeCount).with("paginationUrlPrefix", "/posts/"+postID+"/likes?fromPagination&offset=");
 		if(isAjax(req)){
 			if(req.queryParams("fromPagination")==null)
-				return new WebDeltaResponse(resp).box(lang(req).get("likes_title"), model.renderToString(), "likesList", 610);
+				return new WebDeltaResponse(resp).box(lang(req).get("likes_title"), model, "likesList", 610);
 			else
-				return new WebDeltaResponse(resp).setContent("likesList", model.renderToString());
+				return new WebDeltaResponse(resp).setContent("likesList", model);
 		}
 		model.with("contentTemplate", "user_grid").with("title", lang(req).get("likes_title"));
 		return model;
@@ -702,7 +717,7 @@ public class PostRoutes{
 					.with("preview", true)
 					.with("replyFormID", "wallPostForm_commentReplyPost"+post.id);
 		WebDeltaResponse rb=new WebDeltaResponse(resp)
-				.insertHTML(WebDeltaResponse.ElementInsertionMode.AFTER_BEGIN, "postReplies"+post.id, model.renderToString())
+				.insertHTML(WebDeltaResponse.ElementInsertionMode.AFTER_BEGIN, "postReplies"+post.id, model)
 				.hide("prevLoader"+post.id);
 		if(total[0]>100){
 			rb.show("loadPrevBtn"+post.id).setAttribute("loadPrevBtn"+post.id, "data-first-id", comments.get(0).id+"");
@@ -727,7 +742,7 @@ public class PostRoutes{
 		HashMap<Integer, UserInteractions> interactions=PostStorage.getPostInteractions(postIDs, self!=null ? self.user.id : 0);
 		model.with("postInteractions", interactions).with("replyFormID", "wallPostForm_commentReplyPost"+post.getReplyChainElement(0));
 		return new WebDeltaResponse(resp)
-				.insertHTML(WebDeltaResponse.ElementInsertionMode.AFTER_BEGIN, "postReplies"+post.id, model.renderToString())
+				.insertHTML(WebDeltaResponse.ElementInsertionMode.AFTER_BEGIN, "postReplies"+post.id, model)
 				.remove("loadRepliesLink"+post.id, "repliesLoader"+post.id);
 	}
 }
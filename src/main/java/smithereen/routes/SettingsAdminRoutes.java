@@ -6,16 +6,23 @@ import java.time.Instant;
 import java.util.List;
 import java.util.Map;
 
+import smithereen.CacheRegistry;
 import smithereen.Config;
 import smithereen.Mailer;
 import smithereen.Utils;
+import smithereen.activitypub.ActivityPubWorker;
+import smithereen.activitypub.IncomingActivityQueue;
+import smithereen.activitypub.ProcessedActivities;
 import smithereen.data.Account;
 import smithereen.data.User;
 import smithereen.data.WebDeltaResponse;
 import smithereen.exceptions.ObjectNotFoundException;
 import smithereen.lang.Lang;
+import smithereen.storage.DatabaseConnectionManager;
+import smithereen.storage.MediaCache;
 import smithereen.storage.UserStorage;
 import smithereen.templates.RenderedTemplateResponse;
+import smithereen.util.JsonObjectBuilder;
 import spark.Request;
 import spark.Response;
 import spark.utils.StringUtils;
@@ -244,4 +251,18 @@ public class SettingsAdminRoutes{
 		resp.redirect("/settings/admin/other");
 		return "";
 	}
+
+	public static Object serverStats(Request req, Response resp, Account self) throws SQLException{
+		resp.type("application/json");
+		return new JsonObjectBuilder()
+				.add("database", Utils.gson.toJsonTree(DatabaseConnectionManager.getPoolStats()))
+				.add("deliveryQueue", Utils.gson.toJsonTree(ActivityPubWorker.getInstance().getDeliveryQueueStats()))
+				.add("inboxQueue", Utils.gson.toJsonTree(IncomingActivityQueue.getStats()))
+				.add("replyCrawler", Utils.gson.toJsonTree(ActivityPubWorker.getInstance().getReplyCrawlerStats()))
+				.add("inboxDedup", Utils.gson.toJsonTree(ProcessedActivities.getStats()))
+				.add("caches", Utils.gson.toJsonTree(CacheRegistry.getStats()))
+				.add("mediaCache", Utils.gson.toJsonTree(MediaCache.getStats()))
+				.build()
+				.toString();
+	}
 }
@@ -2,6 +2,7 @@ package smithereen.routes;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
@@ -189,7 +190,8 @@ public class SystemRoutes{
 
 	public static Object uploadPostPhoto(Request req, Response resp, Account self) throws SQLException{
 		try{
-			req.attribute("org.eclipse.jetty.multipartConfig", new MultipartConfigElement(null, 10*1024*1024, -1L, 0));
+			// The threshold is the same as the size limit so that Jetty keeps the part in memory instead of writing it to a file
+			req.attribute("org.eclipse.jetty.multipartConfig", new MultipartConfigElement(null, 10*1024*1024, -1L, 10*1024*1024));
 			Part part=req.raw().getPart("file");
 			if(part.getSize()>10*1024*1024){
 				throw new IOException("file too large");
@@ -201,10 +203,12 @@ public class SystemRoutes{
 			if(!mime.startsWith("image/"))
 				throw new IOException("incorrect mime type");
 
-			File tmpDir = new File(System.getProperty("java.io.tmpdir"));
-			File temp=new File(tmpDir, keyHex);
-			part.write(keyHex);
-			VipsImage img=new VipsImage(temp.getAbsolutePath());
+			byte[] data;
+			try(InputStream in=part.getInputStream()){
+				data=in.readAllBytes();
+			}
+			part.delete();
+			VipsImage img=new VipsImage(data);
 			if(img.hasAlpha()){
 				VipsImage flat=img.flatten(255, 255, 255);
 				img.release();
@@ -218,7 +222,7 @@ public class SystemRoutes{
 //				MediaStorageUtils.writeResizedImages(img, new int[]{200, 400, 800, 1280, 2560}, new PhotoSize.Type[]{PhotoSize.Type.XSMALL, PhotoSize.Type.SMALL, PhotoSize.Type.MEDIUM, PhotoSize.Type.LARGE, PhotoSize.Type.XLARGE},
 //						93, 87, keyHex, postMediaDir, Config.uploadURLPath+"/post_media", photo.sizes);
 				int[] outSize={0,0};
-				MediaStorageUtils.writeResizedWebpImage(img, 2560, 0, 93, keyHex, postMediaDir, outSize);
+				MediaStorageUtils.writeResizedWebpImages(img, 2560, 93, keyHex, postMediaDir, outSize);
 
 				SessionInfo sess=Utils.sessionInfo(req);
 				photo.localID=keyHex;
@@ -226,12 +230,11 @@ public class SystemRoutes{
 				photo.path="post_media";
 				photo.width=outSize[0];
 				photo.height=outSize[1];
+				photo.hasDownscaledCopies=true;
 				photo.blurHash=BlurHash.encode(img, 4, 4);
 				if(req.queryParams("draft")!=null)
 					sess.postDraftAttachments.add(photo);
 				MediaCache.putDraftAttachment(photo, self.id);
-
-				temp.delete();
 			}finally{
 				img.release();
 			}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 
+import smithereen.storage.DatabaseConnectionManager;
 import spark.serialization.Serializer;
 
 public class ExtendedStreamingSerializer extends Serializer{
@@ -21,11 +22,16 @@ public class ExtendedStreamingSerializer extends Serializer{
 
 	@Override
 	public void process(OutputStream outputStream, Object element) throws IOException{
-		for(Entry<?> e:typeSerializers){
-			if(e.type.isInstance(element)){
-				e.serialize(outputStream, element);
-				return;
+		try{
+			for(Entry<?> e:typeSerializers){
+				if(e.type.isInstance(element)){
+					e.serialize(outputStream, element);
+					return;
+				}
 			}
+		}finally{
+			// Serialization happens after the afterAfter filters, and rendering templates may still hit the database
+			DatabaseConnectionManager.closeConnection();
 		}
 	}
 
@@ -1,42 +1,432 @@
 package smithereen.storage;
 
+import com.mysql.cj.MysqlConnection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import smithereen.Config;
+import smithereen.util.MaintenanceScheduler;
 
+/**
+ * A bounded pool of MySQL connections.
+ *
+ * Storage classes keep calling {@link #getConnection()} as many times as they like; the first call on a thread
+ * borrows a connection from the pool and binds it to that thread, subsequent calls return the same one.
+ * The connection goes back to the pool when {@link #closeConnection()} is called at the end of the unit of work
+ * (an HTTP request, a background task). Use {@link #wrap(Runnable)} and {@link #wrapCallable(Callable)}
+ * for anything submitted to an executor. Any transaction the unit of work left open is rolled back when the connection is returned.
+ * As a safety net, a connection that a thread hasn't touched for {@link #LEASE_IDLE_TIMEOUT} ms is taken away from it and closed;
+ * the thread gets a new one if it ever asks again.
+ */
 public class DatabaseConnectionManager{
-	private static ThreadLocal<ConnectionWrapper> connection=new ThreadLocal<>();
+	private static final Logger LOG=LoggerFactory.getLogger(DatabaseConnectionManager.class);
+	/**
+	 * Connections that have been sitting idle for longer than this are checked with {@link Connection#isValid(int)} before being handed out.
+	 */
+	private static final long VALIDATE_AFTER_IDLE=30_000;
+	/**
+	 * Connections bound to a thread that hasn't called {@link #getConnection()} for longer than this are considered leaked.
+	 */
+	private static final long LEASE_IDLE_TIMEOUT=10*60_000;
+
+	private static final ThreadLocal<PooledConnection> currentConnection=new ThreadLocal<>();
+	private static final Object poolLock=new Object();
+	// All of the following are guarded by poolLock
+	private static final ArrayDeque<PooledConnection> idleConnections=new ArrayDeque<>();
+	private static final HashMap<Thread, PooledConnection> leasedConnections=new HashMap<>();
+	private static int totalConnections;
+	private static int waitingThreads;
+	private static long borrowCount, waitCount, totalWaitTime, maxWaitTime, timeoutCount, openedCount, closedCount;
+	private static boolean maintenanceScheduled;
 
 	public static Connection getConnection() throws SQLException{
-		ConnectionWrapper conn=connection.get();
+		PooledConnection conn=currentConnection.get();
 		if(conn!=null){
-			if(System.currentTimeMillis()-conn.lastUsed<5*60000){
+			if(!conn.revoked){
 				conn.lastUsed=System.currentTimeMillis();
 				return conn.connection;
-			}else{
-				conn.connection.close();
 			}
+			currentConnection.remove();
 		}
-		System.out.println("Opening new database connection for thread "+Thread.currentThread().getName());
+		conn=borrow();
+		currentConnection.set(conn);
+		return conn.connection;
+	}
+
+	/**
+	 * @return whether the current thread is currently holding a connection borrowed from the pool
+	 */
+	public static boolean hasConnection(){
+		PooledConnection conn=currentConnection.get();
+		return conn!=null && !conn.revoked;
+	}
+
+	/**
+	 * Returns the connection held by the current thread, if any, back to the pool.
+	 */
+	public static void closeConnection(){
+		PooledConnection conn=currentConnection.get();
 		if(conn==null)
-			conn=new ConnectionWrapper();
-//		long t=System.currentTimeMillis();
-		conn.connection=DriverManager.getConnection("jdbc:mysql://"+Config.dbHost+"/"+Config.dbName+"?serverTimezone=GMT&connectionTimeZone=GMT&useUnicode=true&characterEncoding=UTF-8&forceConnectionTimeZoneToSession=true&useSSL=false",
+			return;
+		currentConnection.remove();
+		// A revoked connection has already been closed and accounted for by the maintenance task
+		if(!conn.revoked)
+			giveBack(conn, Thread.currentThread());
+	}
+
+	/**
+	 * Wraps a task so that the connection it borrows is returned to the pool when it completes.
+	 * If the thread already held a connection when the task started (e.g. a fork-join task run inline from another one), it is left alone.
+	 */
+	public static Runnable wrap(Runnable r){
+		return ()->{
+			boolean hadConnection=hasConnection();
+			try{
+				r.run();
+			}finally{
+				if(!hadConnection)
+					closeConnection();
+			}
+		};
+	}
+
+	/**
+	 * @see #wrap(Runnable)
+	 */
+	public static <T> Callable<T> wrapCallable(Callable<T> c){
+		return ()->{
+			boolean hadConnection=hasConnection();
+			try{
+				return c.call();
+			}finally{
+				if(!hadConnection)
+					closeConnection();
+			}
+		};
+	}
+
+	/**
+	 * Opens the configured minimum number of idle connections so that the first requests after startup don't have to,
+	 * and schedules the periodic pool maintenance.
+	 */
+	public static void warmUp() throws SQLException{
+		ArrayList<PooledConnection> opened=new ArrayList<>();
+		synchronized(poolLock){
+			int needed=Math.min(Config.dbPoolMinIdle, Config.dbPoolMaxSize)-totalConnections;
+			if(needed<=0){
+				scheduleMaintenance();
+				return;
+			}
+			totalConnections+=needed;
+			for(int i=0;i<needed;i++)
+				opened.add(null);
+		}
+		int failed=0;
+		SQLException error=null;
+		for(int i=0;i<opened.size();i++){
+			try{
+				opened.set(i, openConnection());
+			}catch(SQLException x){
+				failed++;
+				error=x;
+			}
+		}
+		synchronized(poolLock){
+			totalConnections-=failed;
+			for(PooledConnection conn:opened){
+				if(conn!=null)
+					idleConnections.addLast(conn);
+			}
+			poolLock.notifyAll();
+			scheduleMaintenance();
+		}
+		LOG.info("Database connection pool warmed up with {} connections", opened.size()-failed);
+		if(error!=null)
+			throw error;
+	}
+
+	public static PoolStats getPoolStats(){
+		synchronized(poolLock){
+			PoolStats stats=new PoolStats();
+			stats.total=totalConnections;
+			stats.active=leasedConnections.size();
+			stats.idle=idleConnections.size();
+			stats.maxSize=Config.dbPoolMaxSize;
+			stats.waitingThreads=waitingThreads;
+			stats.borrowCount=borrowCount;
+			stats.waitCount=waitCount;
+			stats.totalWaitTime=totalWaitTime;
+			stats.maxWaitTime=maxWaitTime;
+			stats.timeoutCount=timeoutCount;
+			stats.openedCount=openedCount;
+			stats.closedCount=closedCount;
+			return stats;
+		}
+	}
+
+	private static PooledConnection borrow() throws SQLException{
+		long waitStartTime=0;
+		while(true){
+			PooledConnection conn=null;
+			boolean openNew=false;
+			synchronized(poolLock){
+				while(true){
+					conn=idleConnections.pollFirst();
+					if(conn!=null)
+						break;
+					if(totalConnections<Config.dbPoolMaxSize){
+						totalConnections++;
+						openNew=true;
+						break;
+					}
+					if(waitStartTime==0){
+						waitStartTime=System.currentTimeMillis();
+						waitCount++;
+					}
+					long remaining=waitStartTime+Config.dbPoolBorrowTimeout-System.currentTimeMillis();
+					if(remaining<=0){
+						timeoutCount++;
+						throw new SQLTransientConnectionException("Timed out after "+Config.dbPoolBorrowTimeout+" ms waiting for a database connection ("+leasedConnections.size()+" in use)");
+					}
+					waitingThreads++;
+					try{
+						poolLock.wait(remaining);
+					}catch(InterruptedException x){
+						Thread.currentThread().interrupt();
+						throw new SQLTransientConnectionException("Interrupted while waiting for a database connection", x);
+					}finally{
+						waitingThreads--;
+					}
+				}
+			}
+
+			if(openNew){
+				try{
+					conn=openConnection();
+				}catch(SQLException x){
+					synchronized(poolLock){
+						totalConnections--;
+						poolLock.notify();
+					}
+					throw x;
+				}
+			}else if(System.currentTimeMillis()-conn.lastUsed>VALIDATE_AFTER_IDLE && !isHealthy(conn)){
+				LOG.debug("Discarding a broken idle database connection");
+				discard(conn);
+				continue;
+			}
+
+			conn.lastUsed=System.currentTimeMillis();
+			synchronized(poolLock){
+				leasedConnections.put(Thread.currentThread(), conn);
+				borrowCount++;
+				if(waitStartTime!=0){
+					long waited=System.currentTimeMillis()-waitStartTime;
+					totalWaitTime+=waited;
+					maxWaitTime=Math.max(maxWaitTime, waited);
+				}
+			}
+			return conn;
+		}
+	}
+
+	private static void giveBack(PooledConnection conn, Thread owner){
+		boolean usable=resetSessionState(conn);
+		if(!usable){
+			try{
+				conn.connection.close();
+			}catch(SQLException ignore){}
+		}
+		conn.lastUsed=System.currentTimeMillis();
+		synchronized(poolLock){
+			if(leasedConnections.get(owner)==conn)
+				leasedConnections.remove(owner);
+			if(!usable){
+				totalConnections--;
+				closedCount++;
+			}else{
+				// LIFO so that the least recently used connections stay idle and can be closed by the maintenance task
+				idleConnections.addFirst(conn);
+			}
+			poolLock.notify();
+		}
+	}
+
+	/**
+	 * Puts the connection back into the state the next borrower expects: no open transaction and autocommit on.
+	 * Storage code uses explicit START TRANSACTION/COMMIT/ROLLBACK, so an exception between them would otherwise leave
+	 * the transaction open, with its locks, for whoever gets the connection next.
+	 * @return false if the connection is closed or couldn't be reset and must be discarded
+	 */
+	private static boolean resetSessionState(PooledConnection conn){
+		try{
+			Connection connection=conn.connection;
+			if(connection.isClosed())
+				return false;
+			// Both checks use the state the driver tracks locally, so a clean connection costs no round trip
+			if(!connection.getAutoCommit()){
+				LOG.warn("Database connection returned with autocommit off, rolling back");
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}else if(connection.unwrap(MysqlConnection.class).getSession().getServerSession().inTransactionOnServer()){
+				LOG.warn("Database connection returned with an open transaction, rolling back");
+				try(Statement stmt=connection.createStatement()){
+					stmt.execute("ROLLBACK");
+				}
+			}
+			return true;
+		}catch(SQLException x){
+			LOG.warn("Failed to reset a database connection, discarding it", x);
+			return false;
+		}
+	}
+
+	private static void discard(PooledConnection conn){
+		try{
+			conn.connection.close();
+		}catch(SQLException ignore){}
+		synchronized(poolLock){
+			totalConnections--;
+			closedCount++;
+			poolLock.notify();
+		}
+	}
+
+	private static boolean isHealthy(PooledConnection conn){
+		try{
+			return conn.connection.isValid(5);
+		}catch(SQLException x){
+			return false;
+		}
+	}
+
+	private static PooledConnection openConnection() throws SQLException{
+		LOG.debug("Opening new database connection for thread {}", Thread.currentThread().getName());
+		Connection connection=DriverManager.getConnection("jdbc:mysql://"+Config.dbHost+"/"+Config.dbName+"?serverTimezone=GMT&connectionTimeZone=GMT&useUnicode=true&characterEncoding=UTF-8&forceConnectionTimeZoneToSession=true&useSSL=false",
 				Config.dbUser, Config.dbPassword);
-//		System.out.println("open: "+(System.currentTimeMillis()-t));
-		conn.connection.createStatement().execute("SET @@SQL_MODE = REPLACE(@@SQL_MODE, 'STRICT_TRANS_TABLES', '')");
-//		System.out.println("set mode: "+(System.currentTimeMillis()-t));
-		conn.connection.createStatement().execute("SET @@session.time_zone='+00:00'");
-//		System.out.println("set tz: "+(System.currentTimeMillis()-t));
+		// Both settings in one round trip
+		connection.createStatement().execute("SET @@SQL_MODE = REPLACE(@@SQL_MODE, 'STRICT_TRANS_TABLES', ''), @@session.time_zone='+00:00'");
+		PooledConnection conn=new PooledConnection();
+		conn.connection=connection;
 		conn.lastUsed=System.currentTimeMillis();
-		connection.set(conn);
-		return conn.connection;
+		synchronized(poolLock){
+			openedCount++;
+		}
+		return conn;
+	}
+
+	private static void scheduleMaintenance(){
+		if(maintenanceScheduled)
+			return;
+		maintenanceScheduled=true;
+		MaintenanceScheduler.runPeriodically(DatabaseConnectionManager::doMaintenance, 1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Reclaims connections held by threads that died without returning them, revokes the ones held by live threads
+	 * that haven't used them for too long, and closes connections that have been idle for too long while keeping
+	 * at least the minimum number around.
+	 */
+	private static void doMaintenance(){
+		ArrayList<PooledConnection> toClose=new ArrayList<>();
+		ArrayList<PooledConnection> reclaimed=new ArrayList<>();
+		ArrayList<String> revokedFrom=new ArrayList<>();
+		long now=System.currentTimeMillis();
+		synchronized(poolLock){
+			Iterator<Map.Entry<Thread, PooledConnection>> itr=leasedConnections.entrySet().iterator();
+			while(itr.hasNext()){
+				Map.Entry<Thread, PooledConnection> e=itr.next();
+				PooledConnection conn=e.getValue();
+				if(!e.getKey().isAlive()){
+					itr.remove();
+					reclaimed.add(conn);
+				}else if(now-conn.lastUsed>LEASE_IDLE_TIMEOUT){
+					// The thread may still hold on to the Connection object, so this one can't be handed out to anyone else
+					itr.remove();
+					conn.revoked=true;
+					toClose.add(conn);
+					revokedFrom.add(e.getKey().getName());
+				}
+			}
+		}
+		if(!reclaimed.isEmpty())
+			LOG.warn("Reclaimed {} database connections from threads that exited without returning them", reclaimed.size());
+		if(!revokedFrom.isEmpty())
+			LOG.warn("Revoked database connections unused for over {} ms from threads {}", LEASE_IDLE_TIMEOUT, revokedFrom);
+		for(PooledConnection conn:reclaimed){
+			if(!resetSessionState(conn)){
+				toClose.add(conn);
+				conn.revoked=true;
+			}
+		}
+		synchronized(poolLock){
+			for(PooledConnection conn:reclaimed){
+				if(!conn.revoked)
+					idleConnections.addLast(conn);
+			}
+			Iterator<PooledConnection> idleItr=idleConnections.descendingIterator();
+			while(idleItr.hasNext() && totalConnections-toClose.size()>Config.dbPoolMinIdle){
+				PooledConnection conn=idleItr.next();
+				if(now-conn.lastUsed>Config.dbPoolIdleTimeout){
+					idleItr.remove();
+					toClose.add(conn);
+				}else{
+					break;
+				}
+			}
+			if(!reclaimed.isEmpty())
+				poolLock.notifyAll();
+		}
+		for(PooledConnection conn:toClose){
+			discard(conn);
+		}
+		if(LOG.isTraceEnabled())
+			LOG.trace("Database connection pool: {}", getPoolStats());
 	}
 
-	private static class ConnectionWrapper{
+	private static class PooledConnection{
 		public Connection connection;
-		public long lastUsed;
+		public volatile long lastUsed;
+		/**
+		 * Set when the maintenance task takes the connection away from the thread it's bound to
+		 */
+		public volatile boolean revoked;
+	}
+
+	public static class PoolStats{
+		public int total, active, idle, maxSize, waitingThreads;
+		public long borrowCount, waitCount, totalWaitTime, maxWaitTime, timeoutCount, openedCount, closedCount;
+
+		@Override
+		public String toString(){
+			return "PoolStats{"+
+					"total="+total+
+					", active="+active+
+					", idle="+idle+
+					", maxSize="+maxSize+
+					", waitingThreads="+waitingThreads+
+					", borrowCount="+borrowCount+
+					", waitCount="+waitCount+
+					", totalWaitTime="+totalWaitTime+
+					", maxWaitTime="+maxWaitTime+
+					", timeoutCount="+timeoutCount+
+					", openedCount="+openedCount+
+					", closedCount="+closedCount+
+					'}';
+		}
 	}
 }
@@ -9,7 +9,7 @@ import smithereen.Config;
 import smithereen.Utils;
 
 public class DatabaseSchemaUpdater{
-	public static final int SCHEMA_VERSION=12;
+	public static final int SCHEMA_VERSION=19;
 
 	public static void maybeUpdate() throws SQLException{
 		if(Config.dbSchemaVersion==0){
@@ -214,6 +214,72 @@ public class DatabaseSchemaUpdater{
 			}
 		}else if(target==12){
 			conn.createStatement().execute("ALTER TABLE wall_posts ADD `ap_replies` varchar(300) DEFAULT NULL");
+		}else if(target==13){
+			conn.createStatement().execute("""
+					CREATE TABLE `delivery_queue` (
+					  `id` bigint(20) unsigned NOT NULL AUTO_INCREMENT,
+					  `inbox` varchar(300) CHARACTER SET ascii NOT NULL,
+					  `actor_user_id` int(11) unsigned DEFAULT NULL,
+					  `actor_group_id` int(11) unsigned DEFAULT NULL,
+					  `payload` mediumtext NOT NULL,
+					  `attempts` int(10) unsigned NOT NULL DEFAULT '0',
+					  `next_attempt_at` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+					  `created_at` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+					  `last_error` text,
+					  `dead` tinyint(1) NOT NULL DEFAULT '0',
+					  PRIMARY KEY (`id`),
+					  KEY `dead` (`dead`,`next_attempt_at`),
+					  KEY `inbox` (`inbox`),
+					  KEY `actor_user_id` (`actor_user_id`),
+					  KEY `actor_group_id` (`actor_group_id`),
+					  CONSTRAINT `delivery_queue_ibfk_1` FOREIGN KEY (`actor_user_id`) REFERENCES `users` (`id`) ON DELETE CASCADE,
+					  CONSTRAINT `delivery_queue_ibfk_2` FOREIGN KEY (`actor_group_id`) REFERENCES `groups` (`id`) ON DELETE CASCADE
+					) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;""");
+		}else if(target==14){
+			conn.createStatement().execute("ALTER TABLE delivery_queue ADD `host` varchar(100) CHARACTER SET ascii NOT NULL DEFAULT '' AFTER `inbox`");
+			conn.createStatement().execute("UPDATE delivery_queue SET `host`=LOWER(SUBSTRING_INDEX(SUBSTRING_INDEX(`inbox`, '/', 3), '/', -1))");
+		}else if(target==15){
+			conn.createStatement().execute("""
+					CREATE TABLE `newsfeed_timeline` (
+					  `owner_id` int(11) unsigned NOT NULL,
+					  `entry_id` int(10) unsigned NOT NULL,
+					  `time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+					  PRIMARY KEY (`owner_id`,`entry_id`),
+					  KEY `time` (`owner_id`,`time`,`entry_id`),
+					  KEY `entry_id` (`entry_id`),
+					  CONSTRAINT `newsfeed_timeline_ibfk_1` FOREIGN KEY (`owner_id`) REFERENCES `users` (`id`) ON DELETE CASCADE,
+					  CONSTRAINT `newsfeed_timeline_ibfk_2` FOREIGN KEY (`entry_id`) REFERENCES `newsfeed` (`id`) ON DELETE CASCADE
+					) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;""");
+			// Existing timelines are filled in the background after startup, see NewsfeedStorage.startTimelineBackfill()
+			Config.updateInDatabase("NewsfeedBackfillPosition", "0");
+			Config.newsfeedBackfillPosition=0;
+		}else if(target==16){
+			conn.createStatement().execute("ALTER TABLE wall_posts ADD `like_count` int(10) unsigned NOT NULL DEFAULT 0");
+			LikeStorage.recountAllPostLikes();
+		}else if(target==17){
+			conn.createStatement().execute("""
+					CREATE TABLE `processed_activities` (
+					  `id_hash` binary(16) NOT NULL,
+					  `time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+					  PRIMARY KEY (`id_hash`),
+					  KEY `time` (`time`)
+					) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;""");
+		}else if(target==18){
+			conn.createStatement().execute("""
+					CREATE TABLE `reply_crawl_queue` (
+					  `id` bigint(20) unsigned NOT NULL AUTO_INCREMENT,
+					  `root_post_id` int(11) unsigned NOT NULL,
+					  `post_id` int(11) unsigned NOT NULL,
+					  `type` tinyint(3) unsigned NOT NULL,
+					  `uri` varchar(300) CHARACTER SET ascii DEFAULT NULL,
+					  PRIMARY KEY (`id`),
+					  KEY `root_post_id` (`root_post_id`),
+					  KEY `post_id` (`post_id`),
+					  CONSTRAINT `reply_crawl_queue_ibfk_1` FOREIGN KEY (`root_post_id`) REFERENCES `wall_posts` (`id`) ON DELETE CASCADE,
+					  CONSTRAINT `reply_crawl_queue_ibfk_2` FOREIGN KEY (`post_id`) REFERENCES `wall_posts` (`id`) ON DELETE CASCADE
+					) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;""");
+		}else if(target==19){
+			conn.createStatement().execute("ALTER TABLE delivery_queue ADD KEY `host` (`host`,`dead`,`next_attempt_at`)");
 		}
 	}
 }
@@ -0,0 +1,184 @@
+package smithereen.storage;
+
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import smithereen.data.QueuedDelivery;
+
+public class DeliveryQueueStorage{
+	private static final int INSERT_BATCH_SIZE=200;
+
+	public static void putDeliveries(Collection<URI> inboxes, int actorUserID, int actorGroupID, String payload) throws SQLException{
+		if(inboxes.isEmpty())
+			return;
+		Connection conn=DatabaseConnectionManager.getConnection();
+		ArrayList<URI> list=new ArrayList<>(inboxes);
+		for(int offset=0;offset<list.size();offset+=INSERT_BATCH_SIZE){
+			List<URI> batch=list.subList(offset, Math.min(list.size(), offset+INSERT_BATCH_SIZE));
+			PreparedStatement stmt=conn.prepareStatement("INSERT INTO `delivery_queue` (`inbox`, `host`, `actor_user_id`, `actor_group_id`, `payload`) VALUES "+String.join(", ", Collections.nCopies(batch.size(), "(?, ?, ?, ?, ?)")));
+			int i=1;
+			for(URI inbox:batch){
+				stmt.setString(i++, inbox.toASCIIString());
+				stmt.setString(i++, QueuedDelivery.getHostKey(inbox));
+				stmt.setObject(i++, actorUserID!=0 ? actorUserID : null);
+				stmt.setObject(i++, actorGroupID!=0 ? actorGroupID : null);
+				stmt.setString(i++, payload);
+			}
+			stmt.execute();
+		}
+	}
+
+	/**
+	 * Only returns the IDs and hosts of the due deliveries. Use {@link #getDeliveries(Collection)} to load the ones
+	 * that are actually going to be sent.
+	 * @param excludedHosts hosts that already have as many deliveries in progress as they're allowed to
+	 */
+	public static List<QueuedDelivery> getDueDeliveries(int limit, Collection<String> excludedHosts) throws SQLException{
+		String where="dead=0 AND next_attempt_at<=CURRENT_TIMESTAMP()";
+		if(!excludedHosts.isEmpty())
+			where+=" AND host NOT IN ("+String.join(",", Collections.nCopies(excludedHosts.size(), "?"))+")";
+		PreparedStatement stmt=new SQLQueryBuilder()
+				.selectFrom("delivery_queue")
+				.columns("id", "host")
+				.where(where, excludedHosts.toArray())
+				.orderBy("next_attempt_at ASC")
+				.limit(limit, 0)
+				.createStatement();
+		ArrayList<QueuedDelivery> list=new ArrayList<>();
+		try(ResultSet res=stmt.executeQuery()){
+			while(res.next()){
+				QueuedDelivery d=new QueuedDelivery();
+				d.id=res.getLong(1);
+				d.host=res.getString(2);
+				list.add(d);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * @return the deliveries with these IDs, in ascending ID order. Those that no longer exist are skipped.
+	 */
+	public static List<QueuedDelivery> getDeliveries(Collection<Long> ids) throws SQLException{
+		ArrayList<QueuedDelivery> list=new ArrayList<>();
+		if(ids.isEmpty())
+			return list;
+		PreparedStatement stmt=new SQLQueryBuilder()
+				.selectFrom("delivery_queue")
+				.allColumns()
+				.whereIn("id", ids)
+				.orderBy("id ASC")
+				.createStatement();
+		try(ResultSet res=stmt.executeQuery()){
+			while(res.next()){
+				list.add(QueuedDelivery.fromResultSet(res));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Moves next_attempt_at forward for deliveries that are being picked up by a worker, so that they're retried
+	 * after that time if the process dies before they complete.
+	 */
+	public static void leaseDeliveries(Collection<Long> ids, Timestamp until) throws SQLException{
+		if(ids.isEmpty())
+			return;
+		new SQLQueryBuilder()
+				.update("delivery_queue")
+				.value("next_attempt_at", until)
+				.whereIn("id", ids)
+				.createStatement()
+				.execute();
+	}
+
+	public static void deleteDelivery(long id) throws SQLException{
+		new SQLQueryBuilder()
+				.deleteFrom("delivery_queue")
+				.where("id=?", id)
+				.createStatement()
+				.execute();
+	}
+
+	/**
+	 * @param payload if not null, replaces the payload (what's left of a partially delivered sequence)
+	 */
+	public static void rescheduleDelivery(long id, int attempts, Timestamp nextAttempt, String error, String payload) throws SQLException{
+		SQLQueryBuilder b=new SQLQueryBuilder()
+				.update("delivery_queue")
+				.value("attempts", attempts)
+				.value("next_attempt_at", nextAttempt)
+				.value("last_error", error);
+		if(payload!=null)
+			b.value("payload", payload);
+		b.where("id=?", id)
+				.createStatement()
+				.execute();
+	}
+
+	/**
+	 * Pushes back all other pending deliveries to an inbox that just failed, so that a server that's down doesn't get
+	 * hit with every activity queued for it.
+	 */
+	public static void postponeDeliveriesToInbox(URI inbox, Timestamp until) throws SQLException{
+		new SQLQueryBuilder()
+				.update("delivery_queue")
+				.value("next_attempt_at", until)
+				.where("inbox=? AND dead=0 AND next_attempt_at<?", inbox.toASCIIString(), until)
+				.createStatement()
+				.execute();
+	}
+
+	/**
+	 * Same as {@link #postponeDeliveriesToInbox(URI, Timestamp)} but for all inboxes on a server that can't be reached at all.
+	 */
+	public static void postponeDeliveriesToHost(String host, Timestamp until) throws SQLException{
+		new SQLQueryBuilder()
+				.update("delivery_queue")
+				.value("next_attempt_at", until)
+				.where("host=? AND dead=0 AND next_attempt_at<?", host, until)
+				.createStatement()
+				.execute();
+	}
+
+	public static void markDeliveryAsDead(long id, int attempts, String error) throws SQLException{
+		new SQLQueryBuilder()
+				.update("delivery_queue")
+				.value("attempts", attempts)
+				.value("last_error", error)
+				.value("dead", true)
+				.where("id=?", id)
+				.createStatement()
+				.execute();
+	}
+
+	public static void deleteDeadDeliveriesOlderThan(Timestamp time) throws SQLException{
+		new SQLQueryBuilder()
+				.deleteFrom("delivery_queue")
+				.where("dead=1 AND created_at<?", time)
+				.createStatement()
+				.execute();
+	}
+
+	/**
+	 * @return the number of pending deliveries at index 0 and the number of dead ones at index 1
+	 */
+	public static int[] getDeliveryCounts() throws SQLException{
+		Connection conn=DatabaseConnectionManager.getConnection();
+		int[] counts=new int[2];
+		try(ResultSet res=conn.createStatement().executeQuery("SELECT `dead`, COUNT(*) FROM `delivery_queue` GROUP BY `dead`")){
+			while(res.next()){
+				counts[res.getBoolean(1) ? 1 : 0]=res.getInt(2);
+			}
+		}
+		return counts;
+	}
+}
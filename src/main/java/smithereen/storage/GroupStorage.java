@@ -22,8 +22,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
+import smithereen.CacheRegistry;
 import smithereen.Config;
 import smithereen.LruCache;
 import smithereen.Utils;
@@ -33,13 +35,21 @@ import smithereen.data.Group;
 import smithereen.data.GroupAdmin;
 import smithereen.data.ListAndTotal;
 import smithereen.data.User;
+import smithereen.util.StripedLock;
 import spark.utils.StringUtils;
 
 public class GroupStorage{
 
-	private static final LruCache<Integer, Group> cacheByID=new LruCache<>(500);
-	private static final LruCache<String, Group> cacheByUsername=new LruCache<>(500);
-	private static final LruCache<URI, ForeignGroup> cacheByActivityPubID=new LruCache<>(500);
+	private static final LruCache<Integer, Group> cacheByID=CacheRegistry.create("groups.by_id", 500);
+	private static final LruCache<String, Group> cacheByUsername=CacheRegistry.create("groups.by_username", 500);
+	private static final LruCache<URI, ForeignGroup> cacheByActivityPubID=CacheRegistry.create("groups.by_ap_id", 500);
+	private static final InboxSetCache memberInboxes=new InboxSetCache("groups.member_inboxes", 500);
+	/**
+	 * Incremented whenever a cached group is replaced or removed, so that a lookup that queried the database before that
+	 * doesn't put the group it read into the cache afterwards.
+	 */
+	private static final AtomicInteger cacheGeneration=new AtomicInteger();
+	private static final StripedLock foreignGroupLocks=new StripedLock(64);
 
 	private static final Object adminUpdateLock=new Object();
 
@@ -93,7 +103,14 @@ public class GroupStorage{
 		return id;
 	}
 
-	public static synchronized void putOrUpdateForeignGroup(ForeignGroup group) throws SQLException{
+	public static void putOrUpdateForeignGroup(ForeignGroup group) throws SQLException{
+		// Serialized per actor because this is a select followed by an insert and ap_id is unique
+		synchronized(foreignGroupLocks.forKey(group.activityPubID)){
+			doPutOrUpdateForeignGroup(group);
+		}
+	}
+
+	private static void doPutOrUpdateForeignGroup(ForeignGroup group) throws SQLException{
 		Connection conn=DatabaseConnectionManager.getConnection();
 		int existingGroupID;
 		PreparedStatement stmt=new SQLQueryBuilder(conn)
@@ -199,25 +216,27 @@ public class GroupStorage{
 		}
 	}
 
-	public static synchronized Group getById(int id) throws SQLException{
+	public static Group getById(int id) throws SQLException{
 		Group g=cacheByID.get(id);
 		if(g!=null)
 			return g;
+		int generation=cacheGeneration.get();
 		PreparedStatement stmt=new SQLQueryBuilder().selectFrom("groups").allColumns().where("id=?", id).createStatement();
 		try(ResultSet res=stmt.executeQuery()){
 			if(res.first()){
 				g=Group.fromResultSet(res);
-				putIntoCache(g);
+				putIntoCache(g, generation);
 				return g;
 			}
 			return null;
 		}
 	}
 
-	public static synchronized Group getByUsername(String username) throws SQLException{
+	public static Group getByUsername(String username) throws SQLException{
 		Group g=cacheByUsername.get(username.toLowerCase());
 		if(g!=null)
 			return g;
+		int generation=cacheGeneration.get();
 		String domain;
 		if(username.contains("@")){
 			String[] parts=username.split("@", 2);
@@ -230,22 +249,23 @@ public class GroupStorage{
 		try(ResultSet res=stmt.executeQuery()){
 			if(res.first()){
 				g=Group.fromResultSet(res);
-				putIntoCache(g);
+				putIntoCache(g, generation);
 				return g;
 			}
 			return null;
 		}
 	}
 
-	public static synchronized ForeignGroup getForeignGroupByActivityPubID(URI id) throws SQLException{
+	public static ForeignGroup getForeignGroupByActivityPubID(URI id) throws SQLException{
 		ForeignGroup g=cacheByActivityPubID.get(id);
 		if(g!=null)
 			return g;
+		int generation=cacheGeneration.get();
 		PreparedStatement stmt=new SQLQueryBuilder().selectFrom("groups").allColumns().where("ap_id=?", id.toString()).createStatement();
 		try(ResultSet res=stmt.executeQuery()){
 			if(res.first()){
 				g=ForeignGroup.fromResultSet(res);
-				putIntoCache(g);
+				putIntoCache(g, generation);
 				return g;
 			}
 			return null;
@@ -273,19 +293,18 @@ public class GroupStorage{
 		}
 		Set<Integer> ids=new HashSet<>(_ids);
 		Map<Integer, Group> result=new HashMap<>(ids.size());
-		synchronized(GroupStorage.class){
-			Iterator<Integer> itr=ids.iterator();
-			while(itr.hasNext()){
-				Integer id=itr.next();
-				Group group=cacheByID.get(id);
-				if(group!=null){
-					itr.remove();
-					result.put(id, group);
-				}
+		Iterator<Integer> itr=ids.iterator();
+		while(itr.hasNext()){
+			Integer id=itr.next();
+			Group group=cacheByID.get(id);
+			if(group!=null){
+				itr.remove();
+				result.put(id, group);
 			}
 		}
 		if(ids.isEmpty())
 			return result;
+		int generation=cacheGeneration.get();
 		PreparedStatement stmt=new SQLQueryBuilder()
 				.selectFrom("groups")
 				.allColumns()
@@ -302,10 +321,10 @@ public class GroupStorage{
 					group=Group.fromResultSet(res);
 				result.put(group.id, group);
 			}
-			synchronized(GroupStorage.class){
-				for(int id:ids){
-					putIntoCache(result.get(id));
-				}
+			for(int id:ids){
+				Group group=result.get(id);
+				if(group!=null)
+					putIntoCache(group, generation);
 			}
 			return result;
 		}
@@ -366,14 +385,21 @@ public class GroupStorage{
 		}finally{
 			conn.createStatement().execute(success ? "COMMIT" : "ROLLBACK");
 		}
+		if(accepted)
+			memberInboxes.add(group.id, UserStorage.getDeliveryInbox(userID));
 	}
 
 	public static void leaveGroup(Group group, int userID, boolean tentative) throws SQLException{
 		Connection conn=DatabaseConnectionManager.getConnection();
 		conn.createStatement().execute("START TRANSACTION");
-		boolean success=false;
+		boolean success=false, wasAccepted=false;
 		try{
-			PreparedStatement stmt=conn.prepareStatement("DELETE FROM group_memberships WHERE user_id=? AND group_id=?");
+			PreparedStatement stmt=SQLQueryBuilder.prepareStatement(conn, "SELECT accepted FROM group_memberships WHERE user_id=? AND group_id=?", userID, group.id);
+			try(ResultSet res=stmt.executeQuery()){
+				wasAccepted=res.first() && res.getBoolean(1);
+			}
+
+			stmt=conn.prepareStatement("DELETE FROM group_memberships WHERE user_id=? AND group_id=?");
 			stmt.setInt(1, userID);
 			stmt.setInt(2, group.id);
 			stmt.execute();
@@ -389,6 +415,8 @@ public class GroupStorage{
 		}finally{
 			conn.createStatement().execute(success ? "COMMIT" : "ROLLBACK");
 		}
+		if(wasAccepted)
+			memberInboxes.remove(group.id, UserStorage.getDeliveryInbox(userID));
 	}
 
 	public static List<Group> getUserGroups(int userID) throws SQLException{
@@ -462,17 +490,28 @@ public class GroupStorage{
 		return Collections.emptyList();
 	}
 
+	/**
+	 * @return the distinct inboxes, shared where possible, of this group's accepted remote members
+	 */
 	public static List<URI> getGroupMemberInboxes(int groupID) throws SQLException{
-		Connection conn=DatabaseConnectionManager.getConnection();
-		PreparedStatement stmt=conn.prepareStatement("SELECT DISTINCT IFNULL(ap_shared_inbox, ap_inbox) FROM users WHERE id IN (SELECT user_id FROM group_memberships WHERE group_id=? AND accepted=1) AND ap_inbox IS NOT NULL");
-		stmt.setInt(1, groupID);
-		ArrayList<URI> inboxes=new ArrayList<>();
+		List<URI> inboxes=memberInboxes.get(groupID);
+		if(inboxes!=null)
+			return inboxes;
+		int generation=memberInboxes.getGeneration();
+		PreparedStatement stmt=SQLQueryBuilder.prepareStatement(DatabaseConnectionManager.getConnection(),
+				"SELECT IFNULL(ap_shared_inbox, ap_inbox) AS inbox, COUNT(*) FROM users WHERE id IN (SELECT user_id FROM group_memberships WHERE group_id=? AND accepted=1) AND ap_inbox IS NOT NULL GROUP BY inbox", groupID);
+		return memberInboxes.put(groupID, UserStorage.inboxCountsFromResultSet(stmt), generation);
+	}
+
+	/**
+	 * Must be called when a remote user's inbox changes, to update the cached inboxes of the groups they're a member of.
+	 */
+	static void memberInboxChanged(int userID, URI oldInbox, URI newInbox) throws SQLException{
+		PreparedStatement stmt=new SQLQueryBuilder().selectFrom("group_memberships").columns("group_id").where("user_id=? AND accepted=1", userID).createStatement();
 		try(ResultSet res=stmt.executeQuery()){
-			res.beforeFirst();
-			while(res.next()){
-				inboxes.add(URI.create(res.getString(1)));
+			for(int groupID:DatabaseUtils.intResultSetToList(res)){
+				memberInboxes.replace(groupID, oldInbox, newInbox);
 			}
-			return inboxes;
 		}
 	}
 
@@ -494,6 +533,7 @@ public class GroupStorage{
 				.where("group_id=? AND user_id=?", groupID, userID)
 				.createStatement()
 				.execute();
+		memberInboxes.invalidate(groupID);
 	}
 
 	public static List<GroupAdmin> getGroupAdmins(int groupID) throws SQLException{
@@ -639,9 +679,7 @@ public class GroupStorage{
 				.where("id=?", group.id)
 				.createStatement()
 				.execute();
-		synchronized(GroupStorage.class){
-			removeFromCache(group);
-		}
+		removeFromCache(group);
 	}
 
 	public static void updateGroupGeneralInfo(Group group, String name, String about) throws SQLException{
@@ -661,9 +699,7 @@ public class GroupStorage{
 				.createStatement()
 				.execute();
 
-		synchronized(GroupStorage.class){
-			removeFromCache(group);
-		}
+		removeFromCache(group);
 	}
 
 	public static boolean isUserBlocked(int ownerID, int targetID) throws SQLException{
@@ -691,6 +727,7 @@ public class GroupStorage{
 				.where("user_id=? AND group_id=?", targetID, selfID)
 				.createStatement()
 				.execute();
+		memberInboxes.invalidate(selfID);
 	}
 
 	public static void unblockUser(int selfID, int targetID) throws SQLException{
@@ -762,7 +799,25 @@ public class GroupStorage{
 		return DatabaseUtils.oneFieldToInt(res);
 	}
 
+	/**
+	 * For freshly written groups.
+	 */
 	private static void putIntoCache(Group group){
+		cacheGeneration.incrementAndGet();
+		doPutIntoCache(group);
+	}
+
+	/**
+	 * For groups that were just read from the database.
+	 * @param generation the value of cacheGeneration from before the query
+	 */
+	private static void putIntoCache(Group group, int generation){
+		doPutIntoCache(group);
+		if(cacheGeneration.get()!=generation)
+			doRemoveFromCache(group);
+	}
+
+	private static void doPutIntoCache(Group group){
 		cacheByID.put(group.id, group);
 		cacheByUsername.put(group.getFullUsername().toLowerCase(), group);
 		if(group instanceof ForeignGroup)
@@ -770,6 +825,11 @@ public class GroupStorage{
 	}
 
 	private static void removeFromCache(Group group){
+		cacheGeneration.incrementAndGet();
+		doRemoveFromCache(group);
+	}
+
+	private static void doRemoveFromCache(Group group){
 		cacheByID.remove(group.id);
 		cacheByUsername.remove(group.getFullUsername().toLowerCase());
 		if(group instanceof ForeignGroup)
@@ -0,0 +1,118 @@
+package smithereen.storage;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import smithereen.CacheRegistry;
+import smithereen.LruCache;
+
+/**
+ * Caches the delivery inboxes of the remote followers (or members) of local actors. Every inbox, which is the shared
+ * inbox whenever the remote server has one, is stored with the number of followers it's used by, so the cached sets can
+ * be kept up to date as people follow and unfollow instead of being reloaded.
+ *
+ * Loading a set is a query that may race with a change, so loads go through the same generation check as the user cache:
+ * a set that was loaded while anything changed is returned, but not cached.
+ */
+class InboxSetCache{
+	private final LruCache<Integer, InboxSet> cache;
+	private int generation;
+
+	InboxSetCache(String name, int defaultSize){
+		cache=CacheRegistry.create(name, defaultSize);
+	}
+
+	/**
+	 * @return the cached inboxes or null if they aren't cached
+	 */
+	List<URI> get(int actorID){
+		InboxSet set=cache.get(actorID);
+		return set!=null ? set.getInboxes() : null;
+	}
+
+	synchronized int getGeneration(){
+		return generation;
+	}
+
+	/**
+	 * @param counts inbox -> number of followers that use it, as loaded from the database
+	 * @param generation the value of {@link #getGeneration()} from before the query
+	 */
+	List<URI> put(int actorID, Map<URI, Integer> counts, int generation){
+		InboxSet set=new InboxSet(counts);
+		synchronized(this){
+			if(this.generation==generation)
+				cache.put(actorID, set);
+		}
+		return set.getInboxes();
+	}
+
+	/**
+	 * Must be called after a follower is added, once the change is committed.
+	 */
+	synchronized void add(int actorID, URI inbox){
+		generation++;
+		InboxSet set=cache.get(actorID);
+		if(set!=null && inbox!=null)
+			set.add(inbox);
+	}
+
+	/**
+	 * Must be called after a follower is removed, once the change is committed.
+	 */
+	synchronized void remove(int actorID, URI inbox){
+		generation++;
+		InboxSet set=cache.get(actorID);
+		if(set!=null && inbox!=null)
+			set.remove(inbox);
+	}
+
+	/**
+	 * Drops the cached set, for changes whose effect on it isn't known.
+	 */
+	synchronized void invalidate(int actorID){
+		generation++;
+		cache.remove(actorID);
+	}
+
+	/**
+	 * Must be called for every actor a remote user follows when the user's inbox changes.
+	 */
+	synchronized void replace(int actorID, URI oldInbox, URI newInbox){
+		generation++;
+		InboxSet set=cache.get(actorID);
+		if(set!=null){
+			if(oldInbox!=null)
+				set.remove(oldInbox);
+			if(newInbox!=null)
+				set.add(newInbox);
+		}
+	}
+
+	private static class InboxSet{
+		private final HashMap<URI, Integer> counts;
+		private List<URI> inboxes;
+
+		InboxSet(Map<URI, Integer> counts){
+			this.counts=new HashMap<>(counts);
+		}
+
+		synchronized List<URI> getInboxes(){
+			if(inboxes==null)
+				inboxes=List.copyOf(counts.keySet());
+			return inboxes;
+		}
+
+		synchronized void add(URI inbox){
+			counts.merge(inbox, 1, Integer::sum);
+			inboxes=null;
+		}
+
+		synchronized void remove(URI inbox){
+			counts.computeIfPresent(inbox, (k, n)->n>1 ? n-1 : null);
+			inboxes=null;
+		}
+	}
+}
@@ -9,6 +9,8 @@ import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import smithereen.Config;
 import smithereen.activitypub.objects.LinkOrObject;
@@ -18,12 +20,41 @@ import smithereen.data.ListAndTotal;
 import smithereen.data.User;
 
 public class LikeStorage{
+	private static final int RECONCILE_BATCH_SIZE=500;
+	/**
+	 * Posts whose likes changed since the last {@link #reconcilePostLikeCounts()}
+	 */
+	private static final Set<Integer> recentlyLikedPosts=ConcurrentHashMap.newKeySet();
 
+	/**
+	 * Also keeps wall_posts.like_count up to date, in the same transaction.
+	 * @return the ID of the like that was created or deleted, or 0 if the post was already (not) liked
+	 */
 	public static int setPostLiked(int userID, int objectID, boolean liked) throws SQLException{
-		if(liked)
-			return putLike(userID, objectID, Like.ObjectType.POST, null);
-		else
-			return deleteLike(userID, objectID, Like.ObjectType.POST);
+		Connection conn=DatabaseConnectionManager.getConnection();
+		conn.createStatement().execute("START TRANSACTION");
+		int id;
+		try{
+			if(liked)
+				id=putLike(userID, objectID, Like.ObjectType.POST, null);
+			else
+				id=deleteLike(userID, objectID, Like.ObjectType.POST);
+			if(id!=0){
+				new SQLQueryBuilder(conn)
+						.update("wall_posts")
+						.valueExpr("like_count", liked ? "like_count+1" : "GREATEST(1, like_count)-1")
+						.where("id=?", objectID)
+						.createStatement()
+						.execute();
+			}
+			conn.createStatement().execute("COMMIT");
+		}catch(SQLException x){
+			conn.createStatement().execute("ROLLBACK");
+			throw new SQLException(x);
+		}
+		if(id!=0)
+			recentlyLikedPosts.add(objectID);
+		return id;
 	}
 
 	private static int putLike(int userID, int objectID, Like.ObjectType type, URI apID) throws SQLException{
@@ -34,7 +65,8 @@ public class LikeStorage{
 				.value("object_type", type)
 				.value("ap_id", Objects.toString(apID, null))
 				.createStatement(Statement.RETURN_GENERATED_KEYS);
-		stmt.execute();
+		if(stmt.executeUpdate()==0)
+			return 0;
 		return DatabaseUtils.oneFieldToInt(stmt.getGeneratedKeys());
 	}
 
@@ -48,12 +80,13 @@ public class LikeStorage{
 		try(ResultSet res=stmt.executeQuery()){
 			if(res.first()){
 				int id=res.getInt(1);
-				new SQLQueryBuilder(conn)
+				// 0 rows if a concurrent request has deleted it first, the counter must then only be decremented once
+				int deleted=new SQLQueryBuilder(conn)
 						.deleteFrom("likes")
 						.where("id=?", id)
 						.createStatement()
-						.execute();
-				return id;
+						.executeUpdate();
+				return deleted>0 ? id : 0;
 			}
 			return 0;
 		}
@@ -102,6 +135,36 @@ public class LikeStorage{
 		return result;
 	}
 
+	/**
+	 * Recalculates wall_posts.like_count for the posts whose likes changed since the last time this ran.
+	 * The counter is updated in the same transaction as the likes, so this is only a safety net against the changes
+	 * to the likes table made elsewhere, and there's no need to go over all likes to do it.
+	 */
+	public static void reconcilePostLikeCounts() throws SQLException{
+		ArrayList<Integer> ids=new ArrayList<>(recentlyLikedPosts);
+		recentlyLikedPosts.removeAll(ids);
+		Connection conn=DatabaseConnectionManager.getConnection();
+		for(int offset=0;offset<ids.size();offset+=RECONCILE_BATCH_SIZE){
+			List<Integer> batch=ids.subList(offset, Math.min(ids.size(), offset+RECONCILE_BATCH_SIZE));
+			new SQLQueryBuilder(conn)
+					.update("wall_posts")
+					.valueExpr("like_count", "(SELECT COUNT(*) FROM `likes` WHERE `object_type`=? AND `object_id`=`wall_posts`.`id`)", Like.ObjectType.POST.ordinal())
+					.whereIn("id", batch)
+					.createStatement()
+					.execute();
+		}
+	}
+
+	/**
+	 * Recalculates wall_posts.like_count for all posts. Used to populate the column when it's added.
+	 */
+	public static void recountAllPostLikes() throws SQLException{
+		Connection conn=DatabaseConnectionManager.getConnection();
+		SQLQueryBuilder.prepareStatement(conn, "UPDATE `wall_posts` JOIN (SELECT `object_id`, COUNT(*) AS `cnt` FROM `likes` WHERE `object_type`=? GROUP BY `object_id`) AS `counts` "+
+				"ON `counts`.`object_id`=`wall_posts`.`id` SET `wall_posts`.`like_count`=`counts`.`cnt` WHERE `wall_posts`.`like_count`<>`counts`.`cnt`", Like.ObjectType.POST).execute();
+		SQLQueryBuilder.prepareStatement(conn, "UPDATE `wall_posts` SET `like_count`=0 WHERE `like_count`>0 AND NOT EXISTS (SELECT 1 FROM `likes` WHERE `object_type`=? AND `object_id`=`wall_posts`.`id`)", Like.ObjectType.POST).execute();
+	}
+
 	public static Like getByID(int id) throws SQLException{
 		Connection conn=DatabaseConnectionManager.getConnection();
 		PreparedStatement stmt=conn.prepareStatement("SELECT user_id, object_id, object_type FROM likes WHERE id=?");
@@ -3,13 +3,14 @@ package smithereen.storage;
 import com.google.gson.JsonParser;
 
 import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -20,15 +21,27 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import okhttp3.Call;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import smithereen.CacheRegistry;
 import smithereen.Config;
 import smithereen.DisallowLocalhostInterceptor;
 import smithereen.LruCache;
@@ -38,29 +51,49 @@ import smithereen.activitypub.objects.ActivityPubObject;
 import smithereen.activitypub.objects.Document;
 import smithereen.activitypub.objects.LocalImage;
 import smithereen.libvips.VipsImage;
+import smithereen.util.MaintenanceScheduler;
 
 public class MediaCache{
+	private static final Logger LOG=LoggerFactory.getLogger(MediaCache.class);
 
 	private static MediaCache instance=new MediaCache();
 
-	private LruCache<String, Item> metaCache=new LruCache<>(500);
-	private MessageDigest md5;
+	private LruCache<String, Item> metaCache=CacheRegistry.create("media_cache.meta", 500);
 	private ExecutorService asyncUpdater;
+	/**
+	 * Downloads and transcodes files, so that there's a limit on how many of them run at once regardless of how many
+	 * requests are waiting for them
+	 */
+	private ThreadPoolExecutor downloader;
+	/**
+	 * Downloads in progress by key. Everyone who requests the same file while it's being downloaded waits for the same future.
+	 */
+	private final ConcurrentHashMap<String, CompletableFuture<Item>> pendingDownloads=new ConcurrentHashMap<>();
+	/**
+	 * Keys of the items that were accessed since the last {@link #flushLastAccess()}
+	 */
+	private final ConcurrentHashMap<String, Boolean> pendingAccesses=new ConcurrentHashMap<>();
+	private final AtomicBoolean evictionRunning=new AtomicBoolean();
+	private final AtomicLong evictionRuns=new AtomicLong(), evictedFiles=new AtomicLong(), evictedBytes=new AtomicLong();
 	private OkHttpClient httpClient;
 	private long cacheSize=-1;
 	private final Object cacheSizeLock=new Object();
 
 	private static final int TYPE_PHOTO=0;
+	/**
+	 * Eviction stops once the cache is this fraction of the maximum size, so that it doesn't run again after every new file
+	 */
+	private static final double EVICTION_TARGET=0.9;
+	private static final int EVICTION_BATCH_SIZE=100;
+	private static final int ACCESS_FLUSH_BATCH_SIZE=500;
 
 	public static MediaCache getInstance(){
 		return instance;
 	}
 
 	private MediaCache(){
-		try{
-			md5=MessageDigest.getInstance("MD5");
-		}catch(NoSuchAlgorithmException ignore){}
 		asyncUpdater=Executors.newFixedThreadPool(1);
+		downloader=new ThreadPoolExecutor(Config.mediaCacheDownloadThreads, Config.mediaCacheDownloadThreads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Config.mediaCacheDownloadQueueSize));
 		httpClient=new OkHttpClient.Builder()
 				.addNetworkInterceptor(new DisallowLocalhostInterceptor())
 				.build();
@@ -69,6 +102,14 @@ public class MediaCache{
 		}catch(SQLException x){
 			x.printStackTrace();
 		}
+		MaintenanceScheduler.runPeriodically(()->{
+			try{
+				flushLastAccess();
+			}catch(SQLException x){
+				LOG.warn("Failed to update media cache access times", x);
+			}
+			evictIfNeeded();
+		}, 1, TimeUnit.MINUTES);
 	}
 
 	private void updateTotalSize() throws SQLException{
@@ -86,7 +127,7 @@ public class MediaCache{
 		String keyHex=Utils.byteArrayToHexString(key);
 		Item item=metaCache.get(keyHex);
 		if(item!=null){
-			asyncUpdater.submit(new LastAccessUpdater(key));
+			pendingAccesses.put(keyHex, Boolean.TRUE);
 			return item;
 		}
 		Connection conn=DatabaseConnectionManager.getConnection();
@@ -96,7 +137,7 @@ public class MediaCache{
 			if(res.first()){
 				Item result=itemFromResultSet(res);
 				metaCache.put(keyHex, result);
-				asyncUpdater.submit(new LastAccessUpdater(key));
+				pendingAccesses.put(keyHex, Boolean.TRUE);
 				return result;
 			}
 		}
@@ -125,7 +166,55 @@ public class MediaCache{
 		return result;
 	}
 
+	/**
+	 * Downloads a file into the cache, or waits for it if it's already being downloaded.
+	 * @return the cached item, or null if the remote server returned an error
+	 * @throws IOException if the download or transcoding failed, or if there are too many downloads pending
+	 */
 	public Item downloadAndPut(URI uri, String mime, ItemType type) throws IOException, SQLException{
+		String keyHex=Utils.byteArrayToHexString(keyForURI(uri));
+		CompletableFuture<Item> future=new CompletableFuture<>();
+		CompletableFuture<Item> existing=pendingDownloads.putIfAbsent(keyHex, future);
+		if(existing!=null)
+			return waitForDownload(existing);
+		try{
+			downloader.execute(DatabaseConnectionManager.wrap(()->{
+				try{
+					// Another download of the same file might have finished after the caller checked the cache
+					Item item=get(uri);
+					if(item==null)
+						item=doDownloadAndPut(uri, mime, type);
+					future.complete(item);
+				}catch(Throwable x){
+					future.completeExceptionally(x);
+				}finally{
+					pendingDownloads.remove(keyHex, future);
+				}
+			}));
+		}catch(RejectedExecutionException x){
+			pendingDownloads.remove(keyHex, future);
+			throw new IOException("Too many pending media downloads");
+		}
+		return waitForDownload(future);
+	}
+
+	private Item waitForDownload(CompletableFuture<Item> future) throws IOException, SQLException{
+		try{
+			return future.get();
+		}catch(InterruptedException x){
+			Thread.currentThread().interrupt();
+			throw new IOException(x);
+		}catch(ExecutionException x){
+			Throwable cause=x.getCause();
+			if(cause instanceof IOException)
+				throw (IOException) cause;
+			if(cause instanceof SQLException)
+				throw (SQLException) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	private Item doDownloadAndPut(URI uri, String mime, ItemType type) throws IOException, SQLException{
 		byte[] key=keyForURI(uri);
 		String keyHex=Utils.byteArrayToHexString(key);
 
@@ -144,15 +233,17 @@ public class MediaCache{
 			if(body.contentLength()>Config.mediaCacheFileSizeLimit){
 				throw new IOException("File too large");
 			}
-			File tmp=File.createTempFile(keyHex, null);
-			InputStream in=body.byteStream();
-			FileOutputStream out=new FileOutputStream(tmp);
-			int read;
-			byte[] buf=new byte[10240];
-			while((read=in.read(buf))>0){
-				out.write(buf, 0, read);
+			// Read the body into memory and decode it from there. The length check above doesn't cover chunked responses.
+			ByteArrayOutputStream data=new ByteArrayOutputStream(body.contentLength()>0 ? (int)body.contentLength() : 10240);
+			try(InputStream in=body.byteStream()){
+				int read;
+				byte[] buf=new byte[10240];
+				while((read=in.read(buf))>0){
+					if(data.size()+read>Config.mediaCacheFileSizeLimit)
+						throw new IOException("File too large");
+					data.write(buf, 0, read);
+				}
 			}
-			out.close();
 
 			if(!Config.mediaCachePath.exists()){
 				Config.mediaCachePath.mkdirs();
@@ -163,7 +254,7 @@ public class MediaCache{
 				result=photo;
 				VipsImage img=null;
 				try{
-					img=new VipsImage(tmp.getAbsolutePath());
+					img=new VipsImage(data.toByteArray());
 					//System.out.println(img.getWidth()+"x"+img.getHeight());
 					if(img.hasAlpha()){
 						VipsImage flat=img.flatten(255, 255, 255);
@@ -171,10 +262,11 @@ public class MediaCache{
 						img=flat;
 					}
 					int[] size={0,0};
-					photo.totalSize=MediaStorageUtils.writeResizedWebpImage(img, 2560, 0, 93, keyHex, Config.mediaCachePath, size);
+					photo.totalSize=MediaStorageUtils.writeResizedWebpImages(img, 2560, 93, keyHex, Config.mediaCachePath, size);
 					photo.width=size[0];
 					photo.height=size[1];
 					photo.key=keyHex;
+					photo.hasDownscaledCopies=true;
 //					photo.totalSize=MediaStorageUtils.writeResizedImages(img, dimensions, heights, sizes, jpegQuality, webpQuality, keyHex, Config.mediaCachePath, Config.mediaCacheURLPath, photo.sizes);
 				}catch(IOException x){
 					throw new IOException(x);
@@ -183,35 +275,152 @@ public class MediaCache{
 						img.release();
 				}
 			}
-			tmp.delete();
 		}
 		//System.out.println("Total size: "+result.totalSize);
 		metaCache.put(keyHex, result);
 
 		Connection conn=DatabaseConnectionManager.getConnection();
-		PreparedStatement stmt=conn.prepareStatement("INSERT INTO `media_cache` (`url_hash`, `size`, `info`, `type`) VALUES (?, ?, ?, ?)");
+		PreparedStatement stmt=conn.prepareStatement("INSERT IGNORE INTO `media_cache` (`url_hash`, `size`, `info`, `type`) VALUES (?, ?, ?, ?)");
 		stmt.setBytes(1, key);
 		stmt.setInt(2, (int) result.totalSize);
 		ByteArrayOutputStream buf=new ByteArrayOutputStream();
 		result.serialize(new DataOutputStream(buf));
 		stmt.setBytes(3, buf.toByteArray());
 		stmt.setInt(4, result.getType());
-		stmt.execute();
+		// 0 rows means another server process sharing this database got here first and has already accounted for the size
+		if(stmt.executeUpdate()==0)
+			return result;
 
 		if(cacheSize==-1)
 			updateTotalSize();
+		boolean needEviction;
 		synchronized(cacheSizeLock){
 			cacheSize+=result.totalSize;
-			if(cacheSize>Config.mediaCacheMaxSize){
-				asyncUpdater.submit(new OldFileDeleter());
-			}
+			needEviction=cacheSize>Config.mediaCacheMaxSize;
 		}
+		if(needEviction)
+			asyncUpdater.submit(DatabaseConnectionManager.wrap(this::evictIfNeeded));
 
 		return result;
 	}
 
+	/**
+	 * Writes the access times buffered since the last call, one UPDATE per batch of keys.
+	 */
+	public void flushLastAccess() throws SQLException{
+		if(pendingAccesses.isEmpty())
+			return;
+		ArrayList<byte[]> keys=new ArrayList<>();
+		for(String keyHex:pendingAccesses.keySet()){
+			pendingAccesses.remove(keyHex);
+			keys.add(Utils.hexStringToByteArray(keyHex));
+		}
+		Timestamp now=new Timestamp(System.currentTimeMillis());
+		Connection conn=DatabaseConnectionManager.getConnection();
+		for(int i=0;i<keys.size();i+=ACCESS_FLUSH_BATCH_SIZE){
+			List<byte[]> batch=keys.subList(i, Math.min(keys.size(), i+ACCESS_FLUSH_BATCH_SIZE));
+			new SQLQueryBuilder(conn)
+					.update("media_cache")
+					.value("last_access", now)
+					.whereIn("url_hash", batch.toArray())
+					.createStatement()
+					.execute();
+		}
+	}
+
+	/**
+	 * If the cache is over its maximum size, deletes the least recently accessed files in batches until it's down to
+	 * {@link #EVICTION_TARGET} of the maximum. Only one eviction runs at a time.
+	 */
+	private void evictIfNeeded(){
+		synchronized(cacheSizeLock){
+			if(cacheSize<=Config.mediaCacheMaxSize)
+				return;
+		}
+		if(!evictionRunning.compareAndSet(false, true))
+			return;
+		try{
+			// Files accessed recently but not yet flushed would otherwise look old
+			flushLastAccess();
+			evictionRuns.incrementAndGet();
+			long targetSize=(long)(Config.mediaCacheMaxSize*EVICTION_TARGET);
+			Connection conn=DatabaseConnectionManager.getConnection();
+			while(true){
+				synchronized(cacheSizeLock){
+					if(cacheSize<=targetSize)
+						break;
+				}
+				ArrayList<Item> items=new ArrayList<>();
+				ArrayList<byte[]> keys=new ArrayList<>();
+				try(ResultSet res=new SQLQueryBuilder(conn).selectFrom("media_cache").allColumns().orderBy("last_access ASC").limit(EVICTION_BATCH_SIZE, 0).createStatement().executeQuery()){
+					while(res.next()){
+						keys.add(res.getBytes("url_hash"));
+						items.add(itemFromResultSet(res));
+					}
+				}
+				if(keys.isEmpty())
+					break;
+				new SQLQueryBuilder(conn)
+						.deleteFrom("media_cache")
+						.whereIn("url_hash", keys.toArray())
+						.createStatement()
+						.execute();
+				long deletedSize=0;
+				for(int i=0;i<keys.size();i++){
+					String keyHex=Utils.byteArrayToHexString(keys.get(i));
+					metaCache.remove(keyHex);
+					Item item=items.get(i);
+					if(item!=null){
+						item.deleteFiles();
+						deletedSize+=item.totalSize;
+					}
+				}
+				synchronized(cacheSizeLock){
+					cacheSize-=deletedSize;
+				}
+				evictedFiles.addAndGet(keys.size());
+				evictedBytes.addAndGet(deletedSize);
+			}
+		}catch(SQLException x){
+			LOG.warn("Failed to evict files from the media cache", x);
+		}finally{
+			evictionRunning.set(false);
+		}
+	}
+
+	public static MediaCacheStats getStats(){
+		MediaCacheStats stats=new MediaCacheStats();
+		synchronized(instance.cacheSizeLock){
+			stats.size=instance.cacheSize;
+		}
+		stats.maxSize=Config.mediaCacheMaxSize;
+		stats.pendingDownloads=instance.pendingDownloads.size();
+		stats.pendingAccessUpdates=instance.pendingAccesses.size();
+		stats.evictionRuns=instance.evictionRuns.get();
+		stats.evictedFiles=instance.evictedFiles.get();
+		stats.evictedBytes=instance.evictedBytes.get();
+		return stats;
+	}
+
 	private byte[] keyForURI(URI uri){
-		return md5.digest(uri.toString().getBytes(StandardCharsets.UTF_8));
+		// MessageDigest instances aren't thread-safe and are cheap to create
+		try{
+			return MessageDigest.getInstance("MD5").digest(uri.toString().getBytes(StandardCharsets.UTF_8));
+		}catch(NoSuchAlgorithmException x){
+			throw new RuntimeException(x);
+		}
+	}
+
+	public static void shutDown(){
+		LOG.info("Stopping thread pools");
+		Utils.stopExecutorBlocking(instance.downloader, LOG);
+		Utils.stopExecutorBlocking(instance.asyncUpdater, LOG);
+		try{
+			instance.flushLastAccess();
+		}catch(SQLException x){
+			LOG.warn("Failed to update media cache access times", x);
+		}
+		LOG.info("Stopped");
 	}
 
 	public static void putDraftAttachment(@NotNull LocalImage img, int ownerID) throws SQLException{
@@ -282,9 +491,16 @@ public class MediaCache{
 		protected abstract void deleteFiles();
 	}
 
+	public static class MediaCacheStats{
+		public long size, maxSize;
+		public int pendingDownloads, pendingAccessUpdates;
+		public long evictionRuns, evictedFiles, evictedBytes;
+	}
+
 	public static class PhotoItem extends Item{
 		public int width, height;
 		public String key;
+		public boolean hasDownscaledCopies;
 
 		@Override
 		public int getType(){
@@ -295,6 +511,7 @@ public class MediaCache{
 		public void serialize(DataOutputStream out) throws IOException{
 			out.writeInt(width);
 			out.writeInt(height);
+			out.writeBoolean(hasDownscaledCopies);
 		}
 
 		@Override
@@ -302,6 +519,9 @@ public class MediaCache{
 			this.key=key;
 			width=in.readInt();
 			height=in.readInt();
+			// Items cached before downscaled copies were introduced don't have this
+			if(in.available()>0)
+				hasDownscaledCopies=in.readBoolean();
 		}
 
 		@Override
@@ -310,64 +530,8 @@ public class MediaCache{
 			if(!file.delete()){
 				System.out.println("Failed to delete "+file.getAbsolutePath());
 			}
-		}
-	}
-
-	private static class LastAccessUpdater implements Runnable{
-		private byte[] key;
-
-		public LastAccessUpdater(byte[] key){
-			this.key=key;
-		}
-
-		@Override
-		public void run(){
-			try{
-				Connection conn=DatabaseConnectionManager.getConnection();
-				PreparedStatement stmt=conn.prepareStatement("UPDATE `media_cache` SET `last_access`=CURRENT_TIMESTAMP() WHERE `url_hash`=?");
-				stmt.setBytes(1, key);
-				stmt.execute();
-			}catch(SQLException x){
-				x.printStackTrace();
-			}
-		}
-	}
-
-	private class OldFileDeleter implements Runnable{
-
-		@Override
-		public void run(){
-			try{
-				Connection conn=DatabaseConnectionManager.getConnection();
-				long sizeNeeded;
-				ArrayList<String> deletedKeys=new ArrayList<>();
-				synchronized(cacheSizeLock){
-					sizeNeeded=cacheSize-Config.mediaCacheMaxSize;
-				}
-				while(sizeNeeded>0){
-					try(ResultSet res=conn.createStatement().executeQuery("SELECT * FROM `media_cache` ORDER BY `last_access` ASC LIMIT 100")){
-						if(res.first()){
-							do{
-								Item item=itemFromResultSet(res);
-								item.deleteFiles();
-								sizeNeeded-=item.totalSize;
-								synchronized(cacheSizeLock){
-									cacheSize-=item.totalSize;
-								}
-								deletedKeys.add("0x"+Utils.byteArrayToHexString(res.getBytes(1)));
-								if(sizeNeeded<=0)
-									break;
-							}while(res.next());
-						}
-					}
-					System.out.println("Deleting from media cache: "+deletedKeys);
-					if(!deletedKeys.isEmpty()){
-						conn.createStatement().execute("DELETE FROM `media_cache` WHERE `url_hash` IN ("+String.join(",", deletedKeys)+")");
-					}
-				}
-			}catch(SQLException x){
-				x.printStackTrace();
-			}
+			if(hasDownscaledCopies)
+				MediaStorageUtils.deleteDownscaledCopies(Config.mediaCachePath, key);
 		}
 	}
 }
@@ -5,26 +5,114 @@ import com.google.gson.JsonObject;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import smithereen.Config;
 import smithereen.activitypub.ContextCollector;
 import smithereen.activitypub.objects.ActivityPubObject;
 import smithereen.activitypub.objects.Document;
 import smithereen.activitypub.objects.LocalImage;
+import smithereen.data.SizedImage;
 import smithereen.libvips.VipsImage;
 import spark.utils.StringUtils;
 
 public class MediaStorageUtils{
 
+	/**
+	 * Bounding box sizes of the downscaled copies that are written next to full-size images, so that thumbnails are made
+	 * from a file of about the right size instead of the full-size one.
+	 */
+	public static final int[] DOWNSCALED_SIZES={128, 256, 512, 1024};
+
+	private static ExecutorService encoderPool;
+
+	private static synchronized ExecutorService getEncoderPool(){
+		if(encoderPool==null)
+			encoderPool=Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		return encoderPool;
+	}
+
 	public static long writeResizedWebpImage(VipsImage img, int widthOrSize, int height, int quality, String keyHex, File basePath, int[] outSize) throws IOException{
-		File file=new File(basePath, keyHex+".webp");
-		double factor;
-		if(height==0){
-			factor=(double) widthOrSize/(double) Math.max(img.getWidth(), img.getHeight());
-		}else{
-			factor=Math.min((double)widthOrSize/(double)img.getWidth(), (double)height/(double)img.getHeight());
+		return doWriteResizedWebpImage(img, widthOrSize, height, quality, stripMetadata(img), new File(basePath, keyHex+".webp"), outSize);
+	}
+
+	/**
+	 * Writes the image scaled down to fit into maxSize, and its copies for each of {@link #DOWNSCALED_SIZES} that's smaller
+	 * than that, named key_size.webp. The files are encoded in parallel.
+	 * @return the total size of the written files in bytes
+	 */
+	public static long writeResizedWebpImages(VipsImage img, int maxSize, int quality, String keyHex, File basePath, int[] outSize) throws IOException{
+		boolean strip=stripMetadata(img);
+		int maxDimension=Math.min(maxSize, Math.max(img.getWidth(), img.getHeight()));
+		ExecutorService pool=getEncoderPool();
+		ArrayList<Future<Long>> futures=new ArrayList<>();
+		futures.add(pool.submit(()->doWriteResizedWebpImage(img, maxSize, 0, quality, strip, new File(basePath, keyHex+".webp"), outSize)));
+		for(int size:DOWNSCALED_SIZES){
+			if(size>=maxDimension)
+				break;
+			futures.add(pool.submit(()->doWriteResizedWebpImage(img, size, 0, quality, strip, new File(basePath, keyHex+"_"+size+".webp"), new int[2])));
+		}
+		long totalSize=0;
+		IOException error=null;
+		// Wait for all of them even if one fails so that the image isn't released while others are still using it
+		for(Future<Long> future:futures){
+			try{
+				totalSize+=future.get();
+			}catch(InterruptedException x){
+				Thread.currentThread().interrupt();
+				error=new IOException(x);
+			}catch(ExecutionException x){
+				error=x.getCause() instanceof IOException ? (IOException) x.getCause() : new IOException(x.getCause());
+			}
+		}
+		if(error!=null)
+			throw error;
+		return totalSize;
+	}
+
+	/**
+	 * Picks the file that thumbnails of this size should be made from.
+	 * @param key the file name of the full-size image without the extension
+	 * @param width the width of the full-size image
+	 * @param height the height of the full-size image
+	 * @param hasDownscaledCopies whether the image was written by {@link #writeResizedWebpImages(VipsImage, int, int, String, File, int[])}
+	 * @param cropRegion for FILL sizes, the region of the image to use, in fractions of its dimensions
+	 */
+	public static ImageSource getSourceForSize(String key, int width, int height, boolean hasDownscaledCopies, SizedImage.Type size, float[] cropRegion){
+		int maxDimension=Math.max(width, height);
+		if(hasDownscaledCopies && maxDimension>0){
+			for(int box:DOWNSCALED_SIZES){
+				if(box>=maxDimension)
+					break;
+				double factor=box/(double)maxDimension;
+				int w=(int)Math.floor(width*factor), h=(int)Math.floor(height*factor);
+				double usableW=w, usableH=h;
+				int neededW, neededH;
+				if(size.getResizingType()==ImgProxy.ResizingType.FILL){
+					if(cropRegion!=null){
+						usableW*=cropRegion[2]-cropRegion[0];
+						usableH*=cropRegion[3]-cropRegion[1];
+					}
+					neededW=size.getMaxWidth();
+					neededH=size.getMaxHeight();
+				}else{
+					SizedImage.Dimensions resized=size.getResizedDimensions(new SizedImage.Dimensions(width, height));
+					neededW=Math.min(resized.width, width);
+					neededH=Math.min(resized.height, height);
+				}
+				if(usableW>=neededW && usableH>=neededH)
+					return new ImageSource(key+"_"+box+".webp", w, h);
+			}
 		}
+		return new ImageSource(key+".webp", width, height);
+	}
+
+	private static boolean stripMetadata(VipsImage img){
 		boolean strip=!img.hasColorProfile();
 		if(!strip){
 			for(String key:img.getFields()){
@@ -32,6 +120,16 @@ public class MediaStorageUtils{
 					img.removeField(key);
 			}
 		}
+		return strip;
+	}
+
+	private static long doWriteResizedWebpImage(VipsImage img, int widthOrSize, int height, int quality, boolean strip, File file, int[] outSize) throws IOException{
+		double factor;
+		if(height==0){
+			factor=(double) widthOrSize/(double) Math.max(img.getWidth(), img.getHeight());
+		}else{
+			factor=Math.min((double)widthOrSize/(double)img.getWidth(), (double)height/(double)img.getHeight());
+		}
 		if(factor>1.0){
 			img.writeToFile(file.getAbsolutePath()+"[Q="+quality+(strip ? ",strip=true" : "")+"]");
 			outSize[0]=img.getWidth();
@@ -49,6 +147,22 @@ public class MediaStorageUtils{
 		return file.length();
 	}
 
+	/**
+	 * Deletes the downscaled copies written by {@link #writeResizedWebpImages(VipsImage, int, int, String, File, int[])}, if any.
+	 */
+	public static void deleteDownscaledCopies(File basePath, String key){
+		for(int size:DOWNSCALED_SIZES){
+			File file=new File(basePath, key+"_"+size+".webp");
+			if(file.exists())
+				file.delete();
+		}
+	}
+
+	public static synchronized void shutDown(){
+		if(encoderPool!=null)
+			encoderPool.shutdown();
+	}
+
 	public static void deleteAttachmentFiles(List<ActivityPubObject> attachments){
 		for(ActivityPubObject o:attachments){
 			if(o instanceof Document)
@@ -64,6 +178,8 @@ public class MediaStorageUtils{
 				file.delete();
 			else
 				System.out.println(file.getAbsolutePath()+" does not exist");
+			if(img.hasDownscaledCopies)
+				deleteDownscaledCopies(new File(Config.uploadPath, img.path), img.localID);
 		}
 	}
 
@@ -81,6 +197,8 @@ public class MediaStorageUtils{
 					o.add("_sz", sizes);
 					if(im.path!=null)
 						o.addProperty("_p", im.path);
+					if(im.hasDownscaledCopies)
+						o.addProperty("_ds", true);
 					o.addProperty("type", "_LocalImage");
 				}
 				o.remove("url");
@@ -92,4 +210,15 @@ public class MediaStorageUtils{
 		}
 		return o;
 	}
+
+	public static class ImageSource{
+		public final String fileName;
+		public final int width, height;
+
+		public ImageSource(String fileName, int width, int height){
+			this.fileName=fileName;
+			this.width=width;
+			this.height=height;
+		}
+	}
 }
@@ -1,30 +1,175 @@
 package smithereen.storage;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import smithereen.Config;
 import smithereen.data.feed.NewsfeedEntry;
+import smithereen.util.MaintenanceScheduler;
 
+/**
+ * Newsfeed entries are written once into `newsfeed` and then fanned out into `newsfeed_timeline`, which holds, for every
+ * local user, the IDs of the entries their feed consists of. Reading a feed is then a single index range scan regardless
+ * of how many people the user follows. Timelines are capped at {@link Config#newsfeedMaxEntries} entries.
+ *
+ * Timelines of the users that existed before timelines were introduced are filled in the background after the upgrade.
+ * Until a user's timeline is filled, {@link #isTimelineReady(int)} returns false and their feed is queried the old way.
+ */
 public class NewsfeedStorage{
+	private static final Logger LOG=LoggerFactory.getLogger(NewsfeedStorage.class);
+	private static final int BACKFILL_BATCH_SIZE=50;
+
+	private static volatile ScheduledFuture<?> backfillTask;
 
 	public static void putEntry(int userID, int objectID, NewsfeedEntry.Type type, Timestamp time) throws SQLException{
-		SQLQueryBuilder b=new SQLQueryBuilder()
+		Connection conn=DatabaseConnectionManager.getConnection();
+		SQLQueryBuilder b=new SQLQueryBuilder(conn)
 				.insertIgnoreInto("newsfeed")
 				.value("type", type)
 				.value("author_id", userID)
 				.value("object_id", objectID);
 		if(time!=null)
 			b.value("time", time);
-		b.createStatement().execute();
+		PreparedStatement stmt=b.createStatement(Statement.RETURN_GENERATED_KEYS);
+		// 0 rows means this entry already exists and was fanned out when it was first created
+		if(stmt.executeUpdate()==0)
+			return;
+		int id;
+		try(ResultSet keys=stmt.getGeneratedKeys()){
+			keys.first();
+			id=keys.getInt(1);
+		}
+		fanOutEntry(conn, id);
 	}
 
 	public static void deleteEntry(int userID, int objectID, NewsfeedEntry.Type type) throws SQLException{
+		// timeline rows are deleted by the foreign key
 		new SQLQueryBuilder()
 				.deleteFrom("newsfeed")
 				.where("type=? AND author_id=? AND object_id=?", type.ordinal(), userID, objectID)
 				.createStatement()
 				.execute();
 	}
+
+	/**
+	 * Adds an entry to the timelines of the local followers of its author, and to the author's own timeline if it's their post.
+	 */
+	private static void fanOutEntry(Connection conn, int entryID) throws SQLException{
+		SQLQueryBuilder.prepareStatement(conn, "INSERT IGNORE INTO `newsfeed_timeline` (`owner_id`, `entry_id`, `time`) "+
+				"SELECT `followings`.`follower_id`, `newsfeed`.`id`, `newsfeed`.`time` FROM `newsfeed` JOIN `followings` ON `followings`.`followee_id`=`newsfeed`.`author_id` "+
+				"JOIN `accounts` ON `accounts`.`user_id`=`followings`.`follower_id` WHERE `newsfeed`.`id`=? "+
+				"UNION SELECT `newsfeed`.`author_id`, `newsfeed`.`id`, `newsfeed`.`time` FROM `newsfeed` JOIN `accounts` ON `accounts`.`user_id`=`newsfeed`.`author_id` "+
+				"WHERE `newsfeed`.`id`=? AND `newsfeed`.`type`=?", entryID, entryID, NewsfeedEntry.Type.POST).execute();
+	}
+
+	/**
+	 * Must be called after followerID started following followeeID. Copies the followee's recent entries into the follower's timeline.
+	 */
+	public static void addFolloweeToTimeline(int followerID, int followeeID) throws SQLException{
+		SQLQueryBuilder.prepareStatement(DatabaseConnectionManager.getConnection(), "INSERT IGNORE INTO `newsfeed_timeline` (`owner_id`, `entry_id`, `time`) "+
+				"SELECT ?, `id`, `time` FROM `newsfeed` WHERE `author_id`=? AND EXISTS (SELECT 1 FROM `accounts` WHERE `user_id`=?) ORDER BY `time` DESC LIMIT ?",
+				followerID, followeeID, followerID, Config.newsfeedMaxEntries).execute();
+	}
+
+	/**
+	 * Must be called after followerID stopped following followeeID.
+	 */
+	public static void removeFolloweeFromTimeline(int followerID, int followeeID) throws SQLException{
+		SQLQueryBuilder.prepareStatement(DatabaseConnectionManager.getConnection(), "DELETE `newsfeed_timeline` FROM `newsfeed_timeline` JOIN `newsfeed` ON `newsfeed`.`id`=`newsfeed_timeline`.`entry_id` "+
+				"WHERE `newsfeed_timeline`.`owner_id`=? AND `newsfeed`.`author_id`=?", followerID, followeeID).execute();
+	}
+
+	/**
+	 * Fills a user's timeline from the newsfeed entries of the people they follow and their own posts.
+	 * Used to backfill timelines of the users that existed before timelines were introduced.
+	 */
+	public static void rebuildTimeline(int userID) throws SQLException{
+		Connection conn=DatabaseConnectionManager.getConnection();
+		// IGNORE because new entries may be fanned out into this timeline concurrently
+		SQLQueryBuilder.prepareStatement(conn, "INSERT IGNORE INTO `newsfeed_timeline` (`owner_id`, `entry_id`, `time`) "+
+				"SELECT ?, `id`, `time` FROM `newsfeed` WHERE `author_id` IN (SELECT `followee_id` FROM `followings` WHERE `follower_id`=?) OR (`type`=? AND `author_id`=?) "+
+				"ORDER BY `time` DESC LIMIT ?", userID, userID, NewsfeedEntry.Type.POST, userID, Config.newsfeedMaxEntries).execute();
+	}
+
+	/**
+	 * @return whether this user's feed can be read from their timeline, false if it's yet to be backfilled
+	 */
+	public static boolean isTimelineReady(int userID){
+		int position=Config.newsfeedBackfillPosition;
+		return position<0 || userID<=position;
+	}
+
+	/**
+	 * Starts backfilling the timelines left to backfill after an upgrade, if any, a few users at a time
+	 * on the maintenance thread so that neither startup nor other maintenance tasks wait for it.
+	 */
+	public static void startTimelineBackfill(){
+		if(Config.newsfeedBackfillPosition<0)
+			return;
+		LOG.info("Backfilling newsfeed timelines starting after user {}", Config.newsfeedBackfillPosition);
+		backfillTask=MaintenanceScheduler.runPeriodically(()->{
+			try{
+				if(backfillTimelines(BACKFILL_BATCH_SIZE)){
+					LOG.info("Finished backfilling newsfeed timelines");
+					backfillTask.cancel(false);
+				}
+			}catch(SQLException x){
+				LOG.warn("Failed to backfill newsfeed timelines", x);
+			}
+		}, 1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Fills the timelines of the next few local users in the order of their IDs and saves the position.
+	 * @return true if there's nothing left to backfill
+	 */
+	private static boolean backfillTimelines(int count) throws SQLException{
+		int position=Config.newsfeedBackfillPosition;
+		if(position<0)
+			return true;
+		ArrayList<Integer> userIDs;
+		try(ResultSet res=new SQLQueryBuilder().selectFrom("accounts").columns("user_id").where("user_id>?", position).orderBy("user_id ASC").limit(count, 0).createStatement().executeQuery()){
+			userIDs=DatabaseUtils.intResultSetToList(res);
+		}
+		for(int id:userIDs){
+			rebuildTimeline(id);
+		}
+		position=userIDs.size()<count ? -1 : userIDs.get(userIDs.size()-1);
+		Config.updateInDatabase("NewsfeedBackfillPosition", position+"");
+		Config.newsfeedBackfillPosition=position;
+		return position<0;
+	}
+
+	/**
+	 * Deletes the oldest entries from the timelines that have grown past the limit. Every timeline is checked with
+	 * a single lookup in the (owner_id, time, entry_id) index and trimmed with a range delete in it.
+	 */
+	public static void trimTimelines() throws SQLException{
+		Connection conn=DatabaseConnectionManager.getConnection();
+		ArrayList<Integer> userIDs;
+		try(ResultSet res=new SQLQueryBuilder(conn).selectFrom("accounts").columns("user_id").createStatement().executeQuery()){
+			userIDs=DatabaseUtils.intResultSetToList(res);
+		}
+		for(int id:userIDs){
+			Timestamp time;
+			int entryID;
+			try(ResultSet res=SQLQueryBuilder.prepareStatement(conn, "SELECT `time`, `entry_id` FROM `newsfeed_timeline` WHERE `owner_id`=? ORDER BY `time` DESC, `entry_id` DESC LIMIT ?,1", id, Config.newsfeedMaxEntries-1).executeQuery()){
+				if(!res.first())
+					continue;
+				time=res.getTimestamp(1);
+				entryID=res.getInt(2);
+			}
+			SQLQueryBuilder.prepareStatement(conn, "DELETE FROM `newsfeed_timeline` WHERE `owner_id`=? AND (`time`<? OR (`time`=? AND `entry_id`<?))", id, time, time, entryID).execute();
+		}
+	}
 }
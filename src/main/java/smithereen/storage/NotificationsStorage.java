@@ -11,13 +11,16 @@ import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import smithereen.CacheRegistry;
 import smithereen.LruCache;
 import smithereen.data.UserNotifications;
 import smithereen.data.notifications.Notification;
 
 public class NotificationsStorage{
-	private static LruCache<Integer, UserNotifications> userNotificationsCache=new LruCache<>(500);
+	private static LruCache<Integer, UserNotifications> userNotificationsCache=CacheRegistry.create("notifications", 500);
+	private static final AtomicInteger countersGeneration=new AtomicInteger();
 
 	public static void putNotification(int owner, @NotNull Notification n) throws SQLException{
 		Connection conn=DatabaseConnectionManager.getConnection();
@@ -120,10 +123,11 @@ public class NotificationsStorage{
 		stmt.execute();
 	}
 
-	public static synchronized UserNotifications getNotificationsForUser(int userID, int lastSeenID) throws SQLException{
+	public static UserNotifications getNotificationsForUser(int userID, int lastSeenID) throws SQLException{
 		UserNotifications res=userNotificationsCache.get(userID);
 		if(res!=null)
 			return res;
+		int generation=countersGeneration.get();
 		res=new UserNotifications();
 		Connection conn=DatabaseConnectionManager.getConnection();
 		PreparedStatement stmt=conn.prepareStatement("SELECT COUNT(*) FROM `friend_requests` WHERE `to_user_id`=?");
@@ -139,11 +143,21 @@ public class NotificationsStorage{
 			r.first();
 			res.incNewNotificationsCount(r.getInt(1));
 		}
-		userNotificationsCache.put(userID, res);
+		UserNotifications existing=userNotificationsCache.putIfAbsent(userID, res);
+		if(existing!=null)
+			return existing;
+		// Some counter was updated while these were being counted, and that update may or may not be included
+		if(countersGeneration.get()!=generation)
+			userNotificationsCache.remove(userID);
 		return res;
 	}
 
-	public static synchronized UserNotifications getNotificationsFromCache(int userID){
+	/**
+	 * Used to update the cached counters after a change in the database.
+	 * @return the cached counters, or null if they aren't cached and will be counted from scratch on the next request
+	 */
+	public static UserNotifications getNotificationsFromCache(int userID){
+		countersGeneration.incrementAndGet();
 		return userNotificationsCache.get(userID);
 	}
 }
@@ -18,14 +18,20 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
+import smithereen.CacheRegistry;
 import smithereen.Config;
+import smithereen.LruCache;
+import smithereen.activitypub.objects.activities.Like;
 import smithereen.data.ListAndTotal;
+import smithereen.data.PostReferences;
 import smithereen.data.UriBuilder;
 import smithereen.data.feed.AddFriendNewsfeedEntry;
 import smithereen.data.feed.JoinGroupNewsfeedEntry;
@@ -43,6 +49,17 @@ import smithereen.data.feed.RetootNewsfeedEntry;
 import spark.utils.StringUtils;
 
 public class PostStorage{
+	/**
+	 * Posts by ID. Cached instances are never handed out directly, callers get copies from {@link #getFromCache(int)}.
+	 */
+	private static final LruCache<Integer, Post> cacheByID=CacheRegistry.create("posts.by_id", 1000);
+	private static final LruCache<URI, Integer> idsByActivityPubID=CacheRegistry.create("posts.by_ap_id", 1000);
+	/**
+	 * Incremented on every cache invalidation. Lookups don't hold a lock across their query, so one that read the
+	 * database before a concurrent update must not put its now stale result into the cache after that update removed it.
+	 */
+	private static final AtomicInteger cacheGeneration=new AtomicInteger();
+
 	public static int createWallPost(int userID, int ownerUserID, int ownerGroupID, String text, int[] replyKey, List<User> mentionedUsers, String attachments, String contentWarning) throws SQLException{
 		Connection conn=DatabaseConnectionManager.getConnection();
 		PreparedStatement stmt=conn.prepareStatement("INSERT INTO wall_posts (author_id, owner_user_id, owner_group_id, `text`, reply_key, mentions, attachments, content_warning) VALUES (?, ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
@@ -70,14 +87,11 @@ public class PostStorage{
 			keys.first();
 			int id=keys.getInt(1);
 			if(userID==ownerUserID && replyKey==null){
-				stmt=conn.prepareStatement("INSERT INTO `newsfeed` (`type`, `author_id`, `object_id`) VALUES (?, ?, ?)");
-				stmt.setInt(1, NewsfeedEntry.Type.POST.ordinal());
-				stmt.setInt(2, userID);
-				stmt.setInt(3, id);
-				stmt.execute();
+				NewsfeedStorage.putEntry(userID, id, NewsfeedEntry.Type.POST, null);
 			}
 			if(replyKey!=null && replyKey.length>0){
 				conn.createStatement().execute("UPDATE wall_posts SET reply_count=reply_count+1 WHERE id IN ("+Arrays.stream(replyKey).mapToObj(String::valueOf).collect(Collectors.joining(","))+")");
+				evictReplyChain(replyKey);
 			}
 			return id;
 		}
@@ -121,14 +135,7 @@ public class PostStorage{
 				post.id=res.getInt(1);
 			}
 			if(post.owner.equals(post.user) && post.getReplyLevel()==0){
-				new SQLQueryBuilder(conn)
-						.insertInto("newsfeed")
-						.value("type", NewsfeedEntry.Type.POST)
-						.value("author_id", post.user.id)
-						.value("object_id", post.id)
-						.value("time", new Timestamp(post.published.getTime()))
-						.createStatement()
-						.execute();
+				NewsfeedStorage.putEntry(post.user.id, post.id, NewsfeedEntry.Type.POST, new Timestamp(post.published.getTime()));
 			}
 			if(post.getReplyLevel()>0){
 				new SQLQueryBuilder(conn)
@@ -137,34 +144,57 @@ public class PostStorage{
 						.whereIn("id", Arrays.stream(post.replyKey).boxed().collect(Collectors.toList()))
 						.createStatement()
 						.execute();
+				evictReplyChain(post.replyKey);
 			}
 		}else{
 			post.id=existing.id;
+			removeFromCache(existing);
 		}
 	}
 
-	public static List<NewsfeedEntry> getFeed(int userID, int startFromID, int offset, int[] total) throws SQLException{
+	/**
+	 * Returns a page of the user's newsfeed, newest first. Pages are addressed by the time and ID of the last entry of the
+	 * previous page rather than an offset, so that loading deep pages costs the same as loading the first one.
+	 * @param beforeTime time of the last entry of the previous page, null for the first page
+	 * @param beforeID ID of the last entry of the previous page
+	 */
+	public static List<NewsfeedEntry> getFeed(int userID, Timestamp beforeTime, int beforeID, int count) throws SQLException{
 		Connection conn=DatabaseConnectionManager.getConnection();
 		PreparedStatement stmt;
-		if(total!=null){
-			stmt=conn.prepareStatement("SELECT COUNT(*) FROM `newsfeed` WHERE `author_id` IN (SELECT followee_id FROM followings WHERE follower_id=? UNION SELECT ?) AND `id`<=?");
-			stmt.setInt(1, userID);
-			stmt.setInt(2, userID);
-			stmt.setInt(3, startFromID==0 ? Integer.MAX_VALUE : startFromID);
-			try(ResultSet res=stmt.executeQuery()){
-				res.first();
-				total[0]=res.getInt(1);
+		String sql="SELECT `newsfeed`.`type`, `newsfeed`.`object_id`, `newsfeed`.`author_id`, `newsfeed`.`id`, `newsfeed`.`time` FROM `newsfeed_timeline` "+
+				"JOIN `newsfeed` ON `newsfeed`.`id`=`newsfeed_timeline`.`entry_id` WHERE `newsfeed_timeline`.`owner_id`=?";
+		if(!NewsfeedStorage.isTimelineReady(userID)){
+			// Assemble the feed from the followings, as it was done before timelines, until this user's timeline is backfilled
+			sql="SELECT `type`, `object_id`, `author_id`, `id`, `time` FROM `newsfeed` WHERE (`author_id` IN (SELECT `followee_id` FROM `followings` WHERE `follower_id`=?) OR (`type`=? AND `author_id`=?))";
+			if(beforeTime!=null){
+				stmt=SQLQueryBuilder.prepareStatement(conn, sql+" AND (`time`<? OR (`time`=? AND `id`<?)) ORDER BY `time` DESC, `id` DESC LIMIT ?",
+						userID, NewsfeedEntry.Type.POST, userID, beforeTime, beforeTime, beforeID, count);
+			}else{
+				stmt=SQLQueryBuilder.prepareStatement(conn, sql+" ORDER BY `time` DESC, `id` DESC LIMIT ?", userID, NewsfeedEntry.Type.POST, userID, count);
 			}
+		}else if(beforeTime!=null){
+			stmt=SQLQueryBuilder.prepareStatement(conn, sql+" AND (`newsfeed_timeline`.`time`<? OR (`newsfeed_timeline`.`time`=? AND `newsfeed_timeline`.`entry_id`<?)) "+
+					"ORDER BY `newsfeed_timeline`.`time` DESC, `newsfeed_timeline`.`entry_id` DESC LIMIT ?", userID, beforeTime, beforeTime, beforeID, count);
+		}else{
+			stmt=SQLQueryBuilder.prepareStatement(conn, sql+" ORDER BY `newsfeed_timeline`.`time` DESC, `newsfeed_timeline`.`entry_id` DESC LIMIT ?", userID, count);
 		}
-		stmt=conn.prepareStatement("SELECT `type`, `object_id`, `author_id`, `id`, `time` FROM `newsfeed` WHERE (`author_id` IN (SELECT followee_id FROM followings WHERE follower_id=?) OR (type=0 AND author_id=?)) AND `id`<=? ORDER BY `time` DESC LIMIT ?,25");
-		stmt.setInt(1, userID);
-		stmt.setInt(2, userID);
-		stmt.setInt(3, startFromID==0 ? Integer.MAX_VALUE : startFromID);
-		stmt.setInt(4, offset);
 		ArrayList<NewsfeedEntry> posts=new ArrayList<>();
 		ArrayList<Integer> needPosts=new ArrayList<>();
 		HashMap<Integer, Post> postMap=new HashMap<>();
 		try(ResultSet res=stmt.executeQuery()){
+			HashSet<Integer> userIDs=new HashSet<>(), groupIDs=new HashSet<>();
+			res.beforeFirst();
+			while(res.next()){
+				NewsfeedEntry.Type type=NewsfeedEntry.Type.values()[res.getInt(1)];
+				if(type!=NewsfeedEntry.Type.POST)
+					userIDs.add(res.getInt(3));
+				if(type==NewsfeedEntry.Type.ADD_FRIEND)
+					userIDs.add(res.getInt(2));
+				else if(type==NewsfeedEntry.Type.JOIN_GROUP)
+					groupIDs.add(res.getInt(2));
+			}
+			Map<Integer, User> users=UserStorage.getById(userIDs);
+			Map<Integer, Group> groups=GroupStorage.getById(groupIDs);
 			if(res.first()){
 				do{
 					NewsfeedEntry.Type type=NewsfeedEntry.Type.values()[res.getInt(1)];
@@ -178,22 +208,22 @@ public class PostStorage{
 						case RETOOT -> {
 							RetootNewsfeedEntry _entry=new RetootNewsfeedEntry();
 							_entry.objectID=res.getInt(2);
-							_entry.author=UserStorage.getById(res.getInt(3));
+							_entry.author=users.get(res.getInt(3));
 							needPosts.add(_entry.objectID);
 							yield _entry;
 						}
 						case ADD_FRIEND -> {
 							AddFriendNewsfeedEntry _entry=new AddFriendNewsfeedEntry();
 							_entry.objectID=res.getInt(2);
-							_entry.friend=UserStorage.getById(_entry.objectID);
-							_entry.author=UserStorage.getById(res.getInt(3));
+							_entry.friend=users.get(_entry.objectID);
+							_entry.author=users.get(res.getInt(3));
 							yield _entry;
 						}
 						case JOIN_GROUP -> {
 							JoinGroupNewsfeedEntry _entry=new JoinGroupNewsfeedEntry();
 							_entry.objectID=res.getInt(2);
-							_entry.group=GroupStorage.getById(_entry.objectID);
-							_entry.author=UserStorage.getById(res.getInt(3));
+							_entry.group=groups.get(_entry.objectID);
+							_entry.author=users.get(res.getInt(3));
 							yield _entry;
 						}
 					};
@@ -218,11 +248,8 @@ public class PostStorage{
 			}
 			sb.append(')');
 			try(ResultSet res=conn.createStatement().executeQuery(sb.toString())){
-				if(res.first()){
-					do{
-						Post post=Post.fromResultSet(res);
-						postMap.put(post.id, post);
-					}while(res.next());
+				for(Post post:postsFromResultSet(res)){
+					postMap.put(post.id, post);
 				}
 			}
 			for(NewsfeedEntry e:posts){
@@ -259,15 +286,9 @@ public class PostStorage{
 			stmt=conn.prepareStatement("SELECT * FROM `wall_posts` WHERE `"+ownerField+"`=? AND `reply_key` IS NULL"+ownCondition+" ORDER BY created_at DESC LIMIT "+offset+",25");
 		}
 		stmt.setInt(1, ownerID);
-		ArrayList<Post> posts=new ArrayList<>();
 		try(ResultSet res=stmt.executeQuery()){
-			if(res.first()){
-				do{
-					posts.add(Post.fromResultSet(res));
-				}while(res.next());
-			}
+			return postsFromResultSet(res);
 		}
-		return posts;
 	}
 
 	public static List<URI> getWallPostActivityPubIDs(int ownerID, boolean isGroup, int offset, int count, int[] total) throws SQLException{
@@ -323,15 +344,9 @@ public class PostStorage{
 		stmt.setInt(2, otherUserID);
 		stmt.setInt(3, otherUserID);
 		stmt.setInt(4, userID);
-		ArrayList<Post> posts=new ArrayList<>();
 		try(ResultSet res=stmt.executeQuery()){
-			if(res.first()){
-				do{
-					posts.add(Post.fromResultSet(res));
-				}while(res.next());
-			}
+			return postsFromResultSet(res);
 		}
-		return posts;
 	}
 
 	public static @NotNull Post getPostOrThrow(int postID, boolean onlyLocal) throws SQLException{
@@ -344,17 +359,21 @@ public class PostStorage{
 	}
 
 	public static Post getPostByID(int postID, boolean wantDeleted) throws SQLException{
-		PreparedStatement stmt=DatabaseConnectionManager.getConnection().prepareStatement("SELECT * FROM wall_posts WHERE id=?");
-		stmt.setInt(1, postID);
-		try(ResultSet res=stmt.executeQuery()){
-			if(res.first()){
-				Post post=Post.fromResultSet(res);
-				if(post.isDeleted() && !wantDeleted)
+		Post post=getFromCache(postID);
+		if(post==null){
+			int generation=cacheGeneration.get();
+			PreparedStatement stmt=DatabaseConnectionManager.getConnection().prepareStatement("SELECT * FROM wall_posts WHERE id=?");
+			stmt.setInt(1, postID);
+			try(ResultSet res=stmt.executeQuery()){
+				if(!res.first())
 					return null;
-				return post;
+				post=Post.fromResultSet(res);
 			}
+			putIntoCache(post, generation);
 		}
-		return null;
+		if(post.isDeleted() && !wantDeleted)
+			return null;
+		return post;
 	}
 
 	public static Post getPostByID(URI apID) throws SQLException{
@@ -367,16 +386,74 @@ public class PostStorage{
 			}
 			return getPostByID(postID, false);
 		}
+		Integer id=idsByActivityPubID.get(apID);
+		if(id!=null){
+			Post post=getFromCache(id);
+			if(post!=null)
+				return post;
+		}
+		int generation=cacheGeneration.get();
 		PreparedStatement stmt=DatabaseConnectionManager.getConnection().prepareStatement("SELECT * FROM `wall_posts` WHERE `ap_id`=?");
 		stmt.setString(1, apID.toString());
 		try(ResultSet res=stmt.executeQuery()){
 			if(res.first()){
-				return Post.fromResultSet(res);
+				Post post=Post.fromResultSet(res);
+				putIntoCache(post, generation);
+				return post;
 			}
 		}
 		return null;
 	}
 
+	private static Post getFromCache(int id) throws SQLException{
+		Post cached=cacheByID.get(id);
+		if(cached==null)
+			return null;
+		Post post=cached.copy();
+		// Users and groups may have been updated since the post was cached
+		if(post.user!=null){
+			User user=UserStorage.getById(post.user.id);
+			if(user!=null)
+				post.user=user;
+		}
+		if(post.owner instanceof User){
+			User owner=UserStorage.getById(post.owner.getLocalID());
+			if(owner!=null)
+				post.owner=owner;
+		}else if(post.owner instanceof Group){
+			Group owner=GroupStorage.getById(post.owner.getLocalID());
+			if(owner!=null)
+				post.owner=owner;
+		}
+		return post;
+	}
+
+	private static void putIntoCache(Post post, int generation){
+		cacheByID.put(post.id, post.copy());
+		if(!post.local)
+			idsByActivityPubID.put(post.activityPubID, post.id);
+		if(cacheGeneration.get()!=generation){
+			cacheByID.remove(post.id);
+		}
+	}
+
+	private static void removeFromCache(Post post){
+		cacheGeneration.incrementAndGet();
+		cacheByID.remove(post.id);
+		idsByActivityPubID.remove(post.activityPubID);
+	}
+
+	/**
+	 * Must be called after the reply counters of the posts in a reply chain were updated. The cached posts are dropped
+	 * rather than adjusted in place: a lookup that read the new counter concurrently may already have cached it.
+	 */
+	private static void evictReplyChain(int[] replyKey){
+		cacheGeneration.incrementAndGet();
+		for(int id:replyKey){
+			cacheByID.remove(id);
+		}
+	}
+
 	public static void deletePost(int id) throws SQLException{
 		Connection conn=DatabaseConnectionManager.getConnection();
 		Post post=getPostByID(id, false);
@@ -410,8 +487,11 @@ public class PostStorage{
 			stmt.execute();
 		}
 
+		removeFromCache(post);
+
 		if(post.getReplyLevel()>0){
 			conn.createStatement().execute("UPDATE wall_posts SET reply_count=GREATEST(1, reply_count)-1 WHERE id IN ("+Arrays.stream(post.replyKey).mapToObj(String::valueOf).collect(Collectors.joining(","))+")");
+			evictReplyChain(post.replyKey);
 		}
 	}
 
@@ -429,9 +509,9 @@ public class PostStorage{
 			System.out.println(stmt);
 		HashMap<Integer, ListAndTotal<Post>> map=new HashMap<>();
 		try(ResultSet res=stmt.executeQuery()){
-			res.afterLast();
-			while(res.previous()){
-				Post post=Post.fromResultSet(res);
+			List<Post> replies=postsFromResultSet(res);
+			for(int j=replies.size()-1;j>=0;j--){
+				Post post=replies.get(j);
 				List<Post> posts=map.computeIfAbsent(post.getReplyChainElement(0), (k)->new ListAndTotal<>(new ArrayList<>(), 0)).list;
 				posts.add(post);
 			}
@@ -464,16 +544,13 @@ public class PostStorage{
 		}catch(IOException ignore){}
 		replyKey=b.toByteArray();
 		stmt.setBytes(1, replyKey);
-		ArrayList<Post> posts=new ArrayList<>();
+		List<Post> posts;
 		HashMap<Integer, Post> postMap=new HashMap<>();
 		try(ResultSet res=stmt.executeQuery()){
-			if(res.first()){
-				do{
-					Post post=Post.fromResultSet(res);
-					postMap.put(post.id, post);
-					posts.add(post);
-				}while(res.next());
-			}
+			posts=postsFromResultSet(res);
+		}
+		for(Post post:posts){
+			postMap.put(post.id, post);
 		}
 		for(Post post:posts){
 			if(post.getReplyLevel()>prefix.length){
@@ -506,13 +583,71 @@ public class PostStorage{
 				.orderBy("id ASC")
 				.createStatement();
 		try(ResultSet res=stmt.executeQuery()){
-			ArrayList<Post> posts=new ArrayList<>();
+			return postsFromResultSet(res);
+		}
+	}
+
+	/**
+	 * Creates posts from all rows of a result set from wall_posts. The users, groups and parent posts referenced by
+	 * all rows are first collected and then loaded with one query per table instead of one query per reference.
+	 */
+	private static List<Post> postsFromResultSet(ResultSet res) throws SQLException{
+		HashSet<Integer> userIDs=new HashSet<>(), groupIDs=new HashSet<>(), parentIDs=new HashSet<>();
+		HashMap<Integer, URI> postActivityPubIDs=new HashMap<>();
+		res.beforeFirst();
+		while(res.next()){
+			int id=res.getInt("id");
+			String apID=res.getString("ap_id");
+			postActivityPubIDs.put(id, apID!=null ? URI.create(apID) : Config.localURI("/posts/"+id));
+			int[] replyKey=Utils.deserializeIntArray(res.getBytes("reply_key"));
+			if(replyKey!=null && replyKey.length>0)
+				parentIDs.add(replyKey[replyKey.length-1]);
+			int authorID=res.getInt("author_id");
+			if(res.wasNull())
+				continue;
+			userIDs.add(authorID);
+			int ownerUserID=res.getInt("owner_user_id");
+			if(!res.wasNull())
+				userIDs.add(ownerUserID);
+			else
+				groupIDs.add(res.getInt("owner_group_id"));
+			int[] mentions=Utils.deserializeIntArray(res.getBytes("mentions"));
+			if(mentions!=null){
+				for(int mentionID:mentions)
+					userIDs.add(mentionID);
+			}
+		}
+		parentIDs.removeAll(postActivityPubIDs.keySet());
+		if(!parentIDs.isEmpty())
+			postActivityPubIDs.putAll(getActivityPubIDs(parentIDs));
+
+		PostReferences refs=new PostReferences(UserStorage.getById(userIDs), GroupStorage.getById(groupIDs), postActivityPubIDs);
+		ArrayList<Post> posts=new ArrayList<>();
+		res.beforeFirst();
+		while(res.next()){
+			posts.add(Post.fromResultSet(res, refs));
+		}
+		return posts;
+	}
+
+	public static Map<Integer, URI> getActivityPubIDs(Collection<Integer> postIDs) throws SQLException{
+		if(postIDs.isEmpty())
+			return Collections.emptyMap();
+		PreparedStatement stmt=new SQLQueryBuilder()
+				.selectFrom("wall_posts")
+				.columns("id", "ap_id")
+				.whereIn("id", postIDs)
+				.createStatement();
+		HashMap<Integer, URI> result=new HashMap<>();
+		try(ResultSet res=stmt.executeQuery()){
 			res.beforeFirst();
 			while(res.next()){
-				posts.add(Post.fromResultSet(res));
+				int id=res.getInt(1);
+				String apID=res.getString(2);
+				result.put(id, apID!=null ? URI.create(apID) : Config.localURI("/posts/"+id));
 			}
-			return posts;
 		}
+		return result;
 	}
 
 	public static URI getActivityPubID(int postID) throws SQLException{
@@ -557,29 +692,15 @@ public class PostStorage{
 		String idsStr=postIDs.stream().map(Object::toString).collect(Collectors.joining(","));
 
 		Connection conn=DatabaseConnectionManager.getConnection();
-		try(ResultSet res=conn.createStatement().executeQuery("SELECT object_id, COUNT(*) FROM likes WHERE object_type=0 AND object_id IN ("+idsStr+") GROUP BY object_id")){
-			if(res.first()){
-				do{
-					result.get(res.getInt(1)).likeCount=res.getInt(2);
-				}while(res.next());
-			}
-		}
-		if(userID!=0){
-			PreparedStatement stmt=conn.prepareStatement("SELECT object_id FROM likes WHERE object_type=0 AND object_id IN ("+idsStr+") AND user_id=?");
-			stmt.setInt(1, userID);
-			try(ResultSet res=stmt.executeQuery()){
-				if(res.first()){
-					do{
-						result.get(res.getInt(1)).isLiked=true;
-					}while(res.next());
-				}
-			}
-		}
-
-		try(ResultSet res=conn.createStatement().executeQuery("SELECT id, reply_count FROM wall_posts WHERE id IN ("+idsStr+")")){
+		PreparedStatement stmt=SQLQueryBuilder.prepareStatement(conn, "SELECT `wall_posts`.`id`, `like_count`, `reply_count`, `likes`.`id` IS NOT NULL FROM `wall_posts` "+
+				"LEFT JOIN `likes` ON `likes`.`object_id`=`wall_posts`.`id` AND `likes`.`object_type`=? AND `likes`.`user_id`=? WHERE `wall_posts`.`id` IN ("+idsStr+")", Like.ObjectType.POST, userID);
+		try(ResultSet res=stmt.executeQuery()){
 			res.beforeFirst();
 			while(res.next()){
-				result.get(res.getInt(1)).commentCount=res.getInt(2);
+				UserInteractions interactions=result.get(res.getInt(1));
+				interactions.likeCount=res.getInt(2);
+				interactions.commentCount=res.getInt(3);
+				interactions.isLiked=res.getBoolean(4);
 			}
 		}
 
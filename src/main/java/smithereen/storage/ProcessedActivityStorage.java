@@ -0,0 +1,42 @@
+package smithereen.storage;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * Digests of incoming activities that were already processed, for deduplication that survives restarts and works across
+ * several server processes. Only used when activitypub.inbox.dedup_in_db is enabled.
+ */
+public class ProcessedActivityStorage{
+
+	public static boolean wasProcessedSince(byte[] digest, Timestamp since) throws SQLException{
+		try(ResultSet res=new SQLQueryBuilder()
+				.selectFrom("processed_activities")
+				.count()
+				.where("id_hash=? AND time>?", digest, since)
+				.createStatement()
+				.executeQuery()){
+			res.first();
+			return res.getInt(1)>0;
+		}
+	}
+
+	public static void putProcessed(byte[] digest) throws SQLException{
+		new SQLQueryBuilder()
+				.insertInto("processed_activities")
+				.value("id_hash", digest)
+				.value("time", new Timestamp(System.currentTimeMillis()))
+				.onDuplicateKeyUpdate()
+				.createStatement()
+				.execute();
+	}
+
+	public static void deleteOlderThan(Timestamp time) throws SQLException{
+		new SQLQueryBuilder()
+				.deleteFrom("processed_activities")
+				.where("time<?", time)
+				.createStatement()
+				.execute();
+	}
+}
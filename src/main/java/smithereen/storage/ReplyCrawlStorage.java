@@ -0,0 +1,47 @@
+package smithereen.storage;
+
+import java.net.URI;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import smithereen.data.QueuedReplyFetch;
+
+public class ReplyCrawlStorage{
+
+	public static long putFetch(int rootPostID, int postID, QueuedReplyFetch.Type type, URI uri) throws SQLException{
+		PreparedStatement stmt=new SQLQueryBuilder()
+				.insertInto("reply_crawl_queue")
+				.value("root_post_id", rootPostID)
+				.value("post_id", postID)
+				.value("type", type)
+				.value("uri", uri!=null ? uri.toASCIIString() : null)
+				.createStatement(Statement.RETURN_GENERATED_KEYS);
+		stmt.execute();
+		try(ResultSet keys=stmt.getGeneratedKeys()){
+			keys.first();
+			return keys.getLong(1);
+		}
+	}
+
+	public static void deleteFetch(long id) throws SQLException{
+		new SQLQueryBuilder()
+				.deleteFrom("reply_crawl_queue")
+				.where("id=?", id)
+				.createStatement()
+				.execute();
+	}
+
+	public static List<QueuedReplyFetch> getAllFetches() throws SQLException{
+		ArrayList<QueuedReplyFetch> list=new ArrayList<>();
+		try(ResultSet res=new SQLQueryBuilder().selectFrom("reply_crawl_queue").allColumns().orderBy("id ASC").createStatement().executeQuery()){
+			while(res.next()){
+				list.add(QueuedReplyFetch.fromResultSet(res));
+			}
+		}
+		return list;
+	}
+}
@@ -18,9 +18,14 @@ import java.sql.Statement;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.Base64;
+import java.util.Iterator;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import smithereen.CacheRegistry;
 import smithereen.LruCache;
 import smithereen.Utils;
 import smithereen.data.Account;
@@ -38,7 +43,21 @@ public class SessionStorage{
 
 	private static SecureRandom random=new SecureRandom();
 
-	private static LruCache<Integer, UserPermissions> permissionsCache=new LruCache<>(500);
+	private static LruCache<Integer, UserPermissions> permissionsCache=CacheRegistry.create("permissions", 500);
+	/**
+	 * Incremented whenever cached permissions are removed. A lookup only caches what it loaded if this is unchanged after
+	 * its query.
+	 */
+	private static final AtomicInteger permissionsCacheGeneration=new AtomicInteger();
+	/**
+	 * Session ID (as in the cookie) to account ID. The accounts themselves are cached by {@link UserStorage#getAccount(int)}.
+	 */
+	private static final LruCache<String, Integer> sessionCache=CacheRegistry.create("sessions", 1000);
+	/**
+	 * last_active updates that haven't been written yet, written by {@link #flushLastActive()}
+	 */
+	private static final ConcurrentHashMap<Integer, Timestamp> pendingAccountLastActive=new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, Timestamp> pendingSessionLastActive=new ConcurrentHashMap<>();
 
 	public static String putNewSession(@NotNull Session sess) throws SQLException{
 		byte[] sid=new byte[64];
@@ -64,23 +83,31 @@ public class SessionStorage{
 		if(sid.length!=64)
 			return false;
 
-		PreparedStatement stmt=DatabaseConnectionManager.getConnection().prepareStatement("SELECT * FROM `accounts` WHERE `id` IN (SELECT `account_id` FROM `sessions` WHERE `id`=?)");
-		stmt.setBytes(1, sid);
-		try(ResultSet res=stmt.executeQuery()){
-			if(!res.first())
-				return false;
-			SessionInfo info=new SessionInfo();
-			info.account=Account.fromResultSet(res);
-			info.csrfToken=Utils.csrfTokenFromSessionID(sid);
-			if(info.account.prefs.locale==null){
-				Locale requestLocale=req.raw().getLocale();
-				if(requestLocale!=null){
-					info.account.prefs.locale=requestLocale;
-					SessionStorage.updatePreferences(info.account.id, info.account.prefs);
-				}
+		Integer accountID=sessionCache.get(psid);
+		if(accountID==null){
+			try(ResultSet res=new SQLQueryBuilder().selectFrom("sessions").columns("account_id").where("id=?", (Object) sid).createStatement().executeQuery()){
+				if(!res.first())
+					return false;
+				accountID=res.getInt(1);
 			}
-			sess.attribute("info", info);
+			sessionCache.put(psid, accountID);
+		}
+		Account account=UserStorage.getAccount(accountID);
+		if(account==null){
+			sessionCache.remove(psid);
+			return false;
 		}
+		SessionInfo info=new SessionInfo();
+		info.account=account;
+		info.csrfToken=Utils.csrfTokenFromSessionID(sid);
+		if(info.account.prefs.locale==null){
+			Locale requestLocale=req.raw().getLocale();
+			if(requestLocale!=null){
+				info.account.prefs.locale=requestLocale;
+				SessionStorage.updatePreferences(info.account.id, info.account.prefs);
+			}
+		}
+		sess.attribute("info", info);
 		return true;
 	}
 
@@ -111,6 +138,8 @@ public class SessionStorage{
 		if(sid.length!=64)
 			return;
 
+		sessionCache.remove(psid);
+		pendingSessionLastActive.remove(psid);
 		PreparedStatement stmt=DatabaseConnectionManager.getConnection().prepareStatement("DELETE FROM `sessions` WHERE `id`=?");
 		stmt.setBytes(1, sid);
 		stmt.execute();
@@ -180,11 +209,16 @@ public class SessionStorage{
 				stmt.setInt(3, userID);
 				stmt.setInt(4, inviterUserID);
 				stmt.execute();
+				NewsfeedStorage.addFolloweeToTimeline(userID, inviterUserID);
 			}
 
 			conn.createStatement().execute("COMMIT");
 
 			if(inviterUserID!=0){
+				SocialGraph.putFollow(inviterUserID, userID, true);
+				SocialGraph.putFollow(userID, inviterUserID, true);
+				SocialGraph.setFriends(userID, inviterUserID, true);
+
 				Notification n=new Notification();
 				n.actorID=userID;
 				n.type=Notification.Type.INVITE_SIGNUP;
@@ -270,6 +304,7 @@ public class SessionStorage{
 		stmt.setString(1, Utils.gson.toJson(prefs));
 		stmt.setInt(2, accountID);
 		stmt.execute();
+		UserStorage.removeAccountFromCache(accountID);
 	}
 
 	public static Account getAccountByEmail(String email) throws SQLException{
@@ -387,31 +422,63 @@ public class SessionStorage{
 		return false;
 	}
 
-	public static void setLastActive(int accountID, String psid, Timestamp time) throws SQLException{
+	/**
+	 * Records that this account and session were active at this time. The update is only written to the database by the next
+	 * {@link #flushLastActive()} so that requests don't wait for it.
+	 */
+	public static void setLastActive(int accountID, String psid, Timestamp time){
+		pendingAccountLastActive.put(accountID, time);
+		if(psid!=null)
+			pendingSessionLastActive.put(psid, time);
+	}
+
+	/**
+	 * Writes the pending last_active updates. Called periodically and on shutdown.
+	 */
+	public static void flushLastActive() throws SQLException{
+		if(pendingAccountLastActive.isEmpty() && pendingSessionLastActive.isEmpty())
+			return;
 		Connection conn=DatabaseConnectionManager.getConnection();
-		new SQLQueryBuilder(conn)
-				.update("accounts")
-				.value("last_active", time)
-				.where("id=?", accountID)
-				.createStatement()
-				.execute();
-		byte[] sid=Base64.getDecoder().decode(psid);
-		new SQLQueryBuilder(conn)
-				.update("sessions")
-				.value("last_active", time)
-				.where("id=?", sid)
-				.createStatement()
-				.execute();
+		if(!pendingAccountLastActive.isEmpty()){
+			PreparedStatement stmt=conn.prepareStatement("UPDATE `accounts` SET `last_active`=? WHERE `id`=?");
+			for(Iterator<Map.Entry<Integer, Timestamp>> itr=pendingAccountLastActive.entrySet().iterator();itr.hasNext();){
+				Map.Entry<Integer, Timestamp> e=itr.next();
+				itr.remove();
+				stmt.setTimestamp(1, e.getValue());
+				stmt.setInt(2, e.getKey());
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		}
+		if(!pendingSessionLastActive.isEmpty()){
+			PreparedStatement stmt=conn.prepareStatement("UPDATE `sessions` SET `last_active`=? WHERE `id`=?");
+			for(Iterator<Map.Entry<String, Timestamp>> itr=pendingSessionLastActive.entrySet().iterator();itr.hasNext();){
+				Map.Entry<String, Timestamp> e=itr.next();
+				itr.remove();
+				byte[] sid;
+				try{
+					sid=Base64.getDecoder().decode(e.getKey());
+				}catch(IllegalArgumentException x){
+					continue;
+				}
+				stmt.setTimestamp(1, e.getValue());
+				stmt.setBytes(2, sid);
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		}
 	}
 
-	public static synchronized void removeFromUserPermissionsCache(int userID){
+	public static void removeFromUserPermissionsCache(int userID){
+		permissionsCacheGeneration.incrementAndGet();
 		permissionsCache.remove(userID);
 	}
 
-	public static synchronized UserPermissions getUserPermissions(Account account) throws SQLException{
+	public static UserPermissions getUserPermissions(Account account) throws SQLException{
 		UserPermissions r=permissionsCache.get(account.user.id);
 		if(r!=null)
 			return r;
+		int generation=permissionsCacheGeneration.get();
 		r=new UserPermissions(account);
 		PreparedStatement stmt=new SQLQueryBuilder()
 				.selectFrom("group_admins")
@@ -425,6 +492,8 @@ public class SessionStorage{
 			}
 		}
 		permissionsCache.put(account.user.id, r);
+		if(permissionsCacheGeneration.get()!=generation)
+			permissionsCache.remove(account.user.id);
 		return r;
 	}
 
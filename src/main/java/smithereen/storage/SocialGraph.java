@@ -0,0 +1,306 @@
+package smithereen.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import smithereen.data.FriendshipStatus;
+
+/**
+ * In-memory index of `followings` and `friend_requests` that answers friendship status, friend and mutual friend queries
+ * without going to the database. Every user's edges are kept as a sorted int array that is replaced, never modified, when
+ * it changes, so reads don't need any locking. The index is loaded on startup and must be updated by everything that
+ * changes these two tables, after the change is committed. The database remains the source of truth.
+ */
+public class SocialGraph{
+	private static final Logger LOG=LoggerFactory.getLogger(SocialGraph.class);
+	private static final int[] EMPTY=new int[0];
+
+	/**
+	 * user ID -> IDs of the users they follow, including unaccepted follows
+	 */
+	private static final ConcurrentHashMap<Integer, int[]> following=new ConcurrentHashMap<>();
+	/**
+	 * user ID -> IDs of their followers, including unaccepted follows
+	 */
+	private static final ConcurrentHashMap<Integer, int[]> followers=new ConcurrentHashMap<>();
+	/**
+	 * user ID -> IDs of the users they follow but whose servers haven't accepted that yet
+	 */
+	private static final ConcurrentHashMap<Integer, int[]> unacceptedFollows=new ConcurrentHashMap<>();
+	/**
+	 * user ID -> IDs of their friends (followings with mutual=1)
+	 */
+	private static final ConcurrentHashMap<Integer, int[]> friends=new ConcurrentHashMap<>();
+	/**
+	 * user ID -> IDs of the users they've sent friend requests to
+	 */
+	private static final ConcurrentHashMap<Integer, int[]> sentFriendRequests=new ConcurrentHashMap<>();
+
+	public static void load() throws SQLException{
+		long startTime=System.currentTimeMillis();
+		Connection conn=DatabaseConnectionManager.getConnection();
+		HashMap<Integer, IntArrayBuilder> following=new HashMap<>(), followers=new HashMap<>(), unaccepted=new HashMap<>(), friends=new HashMap<>(), requests=new HashMap<>();
+		int edgeCount=0;
+		try(ResultSet res=streamingQuery(conn, "SELECT `follower_id`, `followee_id`, `mutual`, `accepted` FROM `followings`")){
+			while(res.next()){
+				int follower=res.getInt(1), followee=res.getInt(2);
+				following.computeIfAbsent(follower, k->new IntArrayBuilder()).add(followee);
+				followers.computeIfAbsent(followee, k->new IntArrayBuilder()).add(follower);
+				if(res.getBoolean(3))
+					friends.computeIfAbsent(follower, k->new IntArrayBuilder()).add(followee);
+				if(!res.getBoolean(4))
+					unaccepted.computeIfAbsent(follower, k->new IntArrayBuilder()).add(followee);
+				edgeCount++;
+			}
+		}
+		try(ResultSet res=streamingQuery(conn, "SELECT `from_user_id`, `to_user_id` FROM `friend_requests`")){
+			while(res.next()){
+				requests.computeIfAbsent(res.getInt(1), k->new IntArrayBuilder()).add(res.getInt(2));
+			}
+		}
+		fill(SocialGraph.following, following);
+		fill(SocialGraph.followers, followers);
+		fill(unacceptedFollows, unaccepted);
+		fill(SocialGraph.friends, friends);
+		fill(sentFriendRequests, requests);
+		LOG.info("Loaded {} followings for {} users in {} ms", edgeCount, following.size(), System.currentTimeMillis()-startTime);
+	}
+
+	private static ResultSet streamingQuery(Connection conn, String sql) throws SQLException{
+		PreparedStatement stmt=conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		// Makes MySQL Connector/J stream the rows instead of reading the whole table into memory
+		stmt.setFetchSize(Integer.MIN_VALUE);
+		return stmt.executeQuery();
+	}
+
+	private static void fill(ConcurrentHashMap<Integer, int[]> index, HashMap<Integer, IntArrayBuilder> builders){
+		index.clear();
+		for(Map.Entry<Integer, IntArrayBuilder> e:builders.entrySet()){
+			index.put(e.getKey(), e.getValue().toSortedArray());
+		}
+	}
+
+	public static FriendshipStatus getFriendshipStatus(int selfUserID, int targetUserID){
+		if(contains(friends, selfUserID, targetUserID))
+			return FriendshipStatus.FRIENDS;
+		if(contains(following, selfUserID, targetUserID)){
+			if(contains(unacceptedFollows, selfUserID, targetUserID))
+				return contains(sentFriendRequests, targetUserID, selfUserID) ? FriendshipStatus.REQUEST_RECVD : FriendshipStatus.FOLLOW_REQUESTED;
+			return contains(sentFriendRequests, selfUserID, targetUserID) ? FriendshipStatus.REQUEST_SENT : FriendshipStatus.FOLLOWING;
+		}
+		if(contains(following, targetUserID, selfUserID))
+			return contains(sentFriendRequests, targetUserID, selfUserID) ? FriendshipStatus.REQUEST_RECVD : FriendshipStatus.FOLLOWED_BY;
+		return FriendshipStatus.NONE;
+	}
+
+	public static boolean isFollowing(int followerID, int followeeID){
+		return contains(following, followerID, followeeID);
+	}
+
+	/**
+	 * @return the sorted IDs of this user's friends. Must not be modified.
+	 */
+	public static int[] getFriends(int userID){
+		return friends.getOrDefault(userID, EMPTY);
+	}
+
+	/**
+	 * @return the sorted IDs of the users this user follows, including unaccepted follows. Must not be modified.
+	 */
+	public static int[] getFollowing(int userID){
+		return following.getOrDefault(userID, EMPTY);
+	}
+
+	public static int getFriendCount(int userID){
+		return getFriends(userID).length;
+	}
+
+	public static int getFollowerCount(int userID){
+		return followers.getOrDefault(userID, EMPTY).length;
+	}
+
+	public static int getFollowingCount(int userID){
+		return following.getOrDefault(userID, EMPTY).length;
+	}
+
+	/**
+	 * @return the sorted IDs of the users who are friends with both of these users
+	 */
+	public static int[] getMutualFriends(int userID, int otherUserID){
+		return intersect(getFriends(userID), getFriends(otherUserID));
+	}
+
+	public static int getMutualFriendCount(int userID, int otherUserID){
+		int[] a=getFriends(userID), b=getFriends(otherUserID);
+		int count=0;
+		for(int i=0, j=0;i<a.length && j<b.length;){
+			if(a[i]<b[j]){
+				i++;
+			}else if(a[i]>b[j]){
+				j++;
+			}else{
+				count++;
+				i++;
+				j++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return up to count distinct IDs picked at random, in random order
+	 */
+	public static List<Integer> randomSample(int[] ids, int count){
+		ThreadLocalRandom rand=ThreadLocalRandom.current();
+		ArrayList<Integer> result=new ArrayList<>(Math.min(count, ids.length));
+		if(ids.length<=count){
+			for(int id:ids)
+				result.add(id);
+		}else{
+			// Floyd's algorithm: picks count distinct indices in O(count)
+			HashSet<Integer> picked=new HashSet<>();
+			for(int i=ids.length-count;i<ids.length;i++){
+				int j=rand.nextInt(i+1);
+				if(!picked.add(j)){
+					picked.add(i);
+					j=i;
+				}
+				result.add(ids[j]);
+			}
+		}
+		Collections.shuffle(result, rand);
+		return result;
+	}
+
+	public static List<Integer> toList(int[] ids){
+		ArrayList<Integer> list=new ArrayList<>(ids.length);
+		for(int id:ids)
+			list.add(id);
+		return list;
+	}
+
+	public static void putFollow(int followerID, int followeeID, boolean accepted){
+		following.compute(followerID, (k, ids)->add(ids, followeeID));
+		followers.compute(followeeID, (k, ids)->add(ids, followerID));
+		setFollowAccepted(followerID, followeeID, accepted);
+	}
+
+	/**
+	 * Removes the following, and with it the friendship, if any.
+	 */
+	public static void removeFollow(int followerID, int followeeID){
+		following.compute(followerID, (k, ids)->remove(ids, followeeID));
+		followers.compute(followeeID, (k, ids)->remove(ids, followerID));
+		unacceptedFollows.compute(followerID, (k, ids)->remove(ids, followeeID));
+		setFriends(followerID, followeeID, false);
+	}
+
+	public static void setFollowAccepted(int followerID, int followeeID, boolean accepted){
+		if(accepted)
+			unacceptedFollows.compute(followerID, (k, ids)->remove(ids, followeeID));
+		else
+			unacceptedFollows.compute(followerID, (k, ids)->add(ids, followeeID));
+	}
+
+	public static void setFriends(int userID, int otherUserID, boolean friends){
+		if(friends){
+			SocialGraph.friends.compute(userID, (k, ids)->add(ids, otherUserID));
+			SocialGraph.friends.compute(otherUserID, (k, ids)->add(ids, userID));
+		}else{
+			SocialGraph.friends.compute(userID, (k, ids)->remove(ids, otherUserID));
+			SocialGraph.friends.compute(otherUserID, (k, ids)->remove(ids, userID));
+		}
+	}
+
+	public static void putFriendRequest(int fromUserID, int toUserID){
+		sentFriendRequests.compute(fromUserID, (k, ids)->add(ids, toUserID));
+	}
+
+	public static void removeFriendRequest(int fromUserID, int toUserID){
+		sentFriendRequests.compute(fromUserID, (k, ids)->remove(ids, toUserID));
+	}
+
+	private static boolean contains(ConcurrentHashMap<Integer, int[]> index, int userID, int otherUserID){
+		int[] ids=index.get(userID);
+		return ids!=null && Arrays.binarySearch(ids, otherUserID)>=0;
+	}
+
+	private static int[] add(int[] ids, int id){
+		if(ids==null)
+			return new int[]{id};
+		int index=Arrays.binarySearch(ids, id);
+		if(index>=0)
+			return ids;
+		index=-index-1;
+		int[] result=new int[ids.length+1];
+		System.arraycopy(ids, 0, result, 0, index);
+		result[index]=id;
+		System.arraycopy(ids, index, result, index+1, ids.length-index);
+		return result;
+	}
+
+	/**
+	 * @return the array without the ID, or null if it's empty, so that {@link ConcurrentHashMap#compute} removes the entry
+	 */
+	private static int[] remove(int[] ids, int id){
+		if(ids==null)
+			return null;
+		int index=Arrays.binarySearch(ids, id);
+		if(index<0)
+			return ids;
+		if(ids.length==1)
+			return null;
+		int[] result=new int[ids.length-1];
+		System.arraycopy(ids, 0, result, 0, index);
+		System.arraycopy(ids, index+1, result, index, ids.length-index-1);
+		return result;
+	}
+
+	private static int[] intersect(int[] a, int[] b){
+		int[] result=new int[Math.min(a.length, b.length)];
+		int count=0;
+		for(int i=0, j=0;i<a.length && j<b.length;){
+			if(a[i]<b[j]){
+				i++;
+			}else if(a[i]>b[j]){
+				j++;
+			}else{
+				result[count++]=a[i];
+				i++;
+				j++;
+			}
+		}
+		return count==result.length ? result : Arrays.copyOf(result, count);
+	}
+
+	private static class IntArrayBuilder{
+		private int[] items=new int[4];
+		private int size;
+
+		void add(int item){
+			if(size==items.length)
+				items=Arrays.copyOf(items, size*2);
+			items[size++]=item;
+		}
+
+		int[] toSortedArray(){
+			int[] result=Arrays.copyOf(items, size);
+			Arrays.sort(result);
+			return result;
+		}
+	}
+}
@@ -24,6 +24,7 @@ import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import smithereen.CacheRegistry;
 import smithereen.Config;
 import smithereen.LruCache;
 import smithereen.Utils;
@@ -36,25 +37,37 @@ import smithereen.data.Invitation;
 import smithereen.data.UriBuilder;
 import smithereen.data.User;
 import smithereen.data.UserNotifications;
+import smithereen.util.PostHTMLCache;
+import smithereen.util.StripedGenerations;
+import smithereen.util.StripedLock;
 import spark.utils.StringUtils;
 
 public class UserStorage{
-	private static LruCache<Integer, User> cache=new LruCache<>(500);
-	private static LruCache<String, User> cacheByUsername=new LruCache<>(500);
-	private static LruCache<URI, ForeignUser> cacheByActivityPubID=new LruCache<>(500);
-	private static LruCache<Integer, Account> accountCache=new LruCache<>(500);
-
-	public static synchronized User getById(int id) throws SQLException{
+	private static LruCache<Integer, User> cache=CacheRegistry.create("users.by_id", 500);
+	private static LruCache<String, User> cacheByUsername=CacheRegistry.create("users.by_username", 500);
+	private static LruCache<URI, ForeignUser> cacheByActivityPubID=CacheRegistry.create("users.by_ap_id", 500);
+	private static LruCache<Integer, Account> accountCache=CacheRegistry.create("accounts", 500);
+	private static final InboxSetCache followerInboxes=new InboxSetCache("users.follower_inboxes", 500);
+	/**
+	 * Incremented for the ID, username and ActivityPub ID of a user on every change to their cached entries. Lookups don't
+	 * hold a lock across their query, so one that read the database before a concurrent update must not put its now stale
+	 * result into the cache after that update replaced or removed it.
+	 */
+	private static final StripedGenerations cacheGenerations=new StripedGenerations(1024);
+	private static final StripedGenerations accountCacheGenerations=new StripedGenerations(256);
+	private static final StripedLock foreignUserLocks=new StripedLock(64);
+
+	public static User getById(int id) throws SQLException{
 		User user=cache.get(id);
 		if(user!=null)
 			return user;
+		int generation=cacheGenerations.get(id);
 		PreparedStatement stmt=DatabaseConnectionManager.getConnection().prepareStatement("SELECT * FROM `users` WHERE `id`=?");
 		stmt.setInt(1, id);
 		try(ResultSet res=stmt.executeQuery()){
 			if(res.first()){
 				user=User.fromResultSet(res);
-				cache.put(id, user);
-				cacheByUsername.put(user.getFullUsername(), user);
+				putIntoCache(user, id, generation);
 				return user;
 			}
 		}
@@ -80,20 +93,21 @@ public class UserStorage{
 		}
 		Set<Integer> ids=new HashSet<>(_ids);
 		Map<Integer, User> result=new HashMap<>(ids.size());
-		synchronized(UserStorage.class){
-			Iterator<Integer> itr=ids.iterator();
-			while(itr.hasNext()){
-				Integer id=itr.next();
-				User user=cache.get(id);
-				if(user!=null){
-					itr.remove();
-					result.put(id, user);
-				}
+		Iterator<Integer> itr=ids.iterator();
+		while(itr.hasNext()){
+			Integer id=itr.next();
+			User user=cache.get(id);
+			if(user!=null){
+				itr.remove();
+				result.put(id, user);
 			}
 		}
 		if(ids.isEmpty()){
 			return result;
 		}
+		HashMap<Integer, Integer> generations=new HashMap<>(ids.size());
+		for(int id:ids)
+			generations.put(id, cacheGenerations.get(id));
 		Connection conn=DatabaseConnectionManager.getConnection();
 		PreparedStatement stmt=new SQLQueryBuilder(conn)
 				.selectFrom("users")
@@ -111,22 +125,21 @@ public class UserStorage{
 					user=User.fromResultSet(res);
 				result.put(user.id, user);
 			}
-			synchronized(UserStorage.class){
-				for(int id:ids){
-					User u=result.get(id);
-					if(u!=null)
-						putIntoCache(u);
-				}
+			for(int id:ids){
+				User u=result.get(id);
+				if(u!=null)
+					putIntoCache(u, id, generations.get(id));
 			}
 			return result;
 		}
 	}
 
-	public static synchronized User getByUsername(@NotNull String username) throws SQLException{
+	public static User getByUsername(@NotNull String username) throws SQLException{
 		username=username.toLowerCase();
 		User user=cacheByUsername.get(username);
 		if(user!=null)
 			return user;
+		int generation=cacheGenerations.get(username);
 		String realUsername;
 		String domain="";
 		if(username.contains("@")){
@@ -145,7 +158,7 @@ public class UserStorage{
 					user=ForeignUser.fromResultSet(res);
 				else
 					user=User.fromResultSet(res);
-				putIntoCache(user);
+				putIntoCache(user, username, generation);
 				return user;
 			}
 		}
@@ -153,48 +166,7 @@ public class UserStorage{
 	}
 
 	public static FriendshipStatus getFriendshipStatus(int selfUserID, int targetUserID) throws SQLException{
-		PreparedStatement stmt=DatabaseConnectionManager.getConnection().prepareStatement("SELECT `follower_id`,`followee_id`,`mutual`,`accepted` FROM `followings` WHERE (`follower_id`=? AND `followee_id`=?) OR (`follower_id`=? AND `followee_id`=?) LIMIT 1");
-		stmt.setInt(1, selfUserID);
-		stmt.setInt(2, targetUserID);
-		stmt.setInt(3, targetUserID);
-		stmt.setInt(4, selfUserID);
-		FriendshipStatus status;
-		try(ResultSet res=stmt.executeQuery()){
-			if(res.first()){
-				boolean mutual=res.getBoolean(3);
-				boolean accepted=res.getBoolean(4);
-				if(mutual)
-					return FriendshipStatus.FRIENDS;
-				int follower=res.getInt(1);
-				int followee=res.getInt(2);
-				if(follower==selfUserID && followee==targetUserID)
-					status=accepted ? FriendshipStatus.FOLLOWING : FriendshipStatus.FOLLOW_REQUESTED;
-				else
-					status=FriendshipStatus.FOLLOWED_BY;
-			}else{
-				return FriendshipStatus.NONE;
-			}
-		}
-
-		stmt=DatabaseConnectionManager.getConnection().prepareStatement("SELECT count(*) FROM `friend_requests` WHERE `from_user_id`=? AND `to_user_id`=?");
-		if(status==FriendshipStatus.FOLLOWING){
-			stmt.setInt(1, selfUserID);
-			stmt.setInt(2, targetUserID);
-		}else{
-			stmt.setInt(2, selfUserID);
-			stmt.setInt(1, targetUserID);
-		}
-		try(ResultSet res=stmt.executeQuery()){
-			res.first();
-			int count=res.getInt(1);
-			if(count==1){
-				if(status==FriendshipStatus.FOLLOWING)
-					return FriendshipStatus.REQUEST_SENT;
-				else
-					return FriendshipStatus.REQUEST_RECVD;
-			}
-		}
-		return status;
+		return SocialGraph.getFriendshipStatus(selfUserID, targetUserID);
 	}
 
 	public static void putFriendRequest(int selfUserID, int targetUserID, String message, boolean followAccepted) throws SQLException{
@@ -209,6 +181,7 @@ public class UserStorage{
 			stmt=conn.prepareStatement("SELECT COUNT(*) FROM `followings` WHERE `follower_id`=? AND `followee_id`=?");
 			stmt.setInt(1, selfUserID);
 			stmt.setInt(2, targetUserID);
+			boolean followed=false;
 			try(ResultSet res=stmt.executeQuery()){
 				if(!res.first() || res.getInt(1)==0){
 					stmt=conn.prepareStatement("INSERT INTO `followings` (`follower_id`, `followee_id`, `accepted`) VALUES (?, ?, ?)");
@@ -216,6 +189,8 @@ public class UserStorage{
 					stmt.setInt(2, targetUserID);
 					stmt.setBoolean(3, followAccepted);
 					stmt.execute();
+					NewsfeedStorage.addFolloweeToTimeline(selfUserID, targetUserID);
+					followed=true;
 				}
 			}
 			synchronized(NotificationsStorage.class){
@@ -224,6 +199,11 @@ public class UserStorage{
 					res.incNewFriendRequestCount(1);
 			}
 			conn.createStatement().execute("COMMIT");
+			SocialGraph.putFriendRequest(selfUserID, targetUserID);
+			if(followed){
+				SocialGraph.putFollow(selfUserID, targetUserID, followAccepted);
+				followerInboxes.add(targetUserID, getDeliveryInbox(selfUserID));
+			}
 		}catch(SQLException x){
 			conn.createStatement().execute("ROLLBACK");
 			throw new SQLException(x);
@@ -231,10 +211,7 @@ public class UserStorage{
 	}
 
 	public static List<User> getFriendListForUser(int userID) throws SQLException{
-		PreparedStatement stmt=new SQLQueryBuilder().selectFrom("followings").columns("followee_id").where("follower_id=? AND mutual=1", userID).createStatement();
-		try(ResultSet res=stmt.executeQuery()){
-			return getByIdAsList(DatabaseUtils.intResultSetToList(res));
-		}
+		return getByIdAsList(SocialGraph.toList(SocialGraph.getFriends(userID)));
 	}
 
 	public static List<URI> getActivityPubFriendList(int userID, int offset, int count) throws SQLException{
@@ -255,60 +232,26 @@ public class UserStorage{
 	}
 
 	public static int getUserFriendsCount(int userID) throws SQLException{
-		PreparedStatement stmt=new SQLQueryBuilder()
-				.selectFrom("followings")
-				.count()
-				.where("follower_id=? AND mutual=1", userID)
-				.createStatement();
-		return DatabaseUtils.oneFieldToInt(stmt.executeQuery());
+		return SocialGraph.getFriendCount(userID);
 	}
 
 	public static List<User> getRandomFriendsForProfile(int userID, int[] outTotal) throws SQLException{
-		Connection conn=DatabaseConnectionManager.getConnection();
-		if(outTotal!=null && outTotal.length>=1){
-			PreparedStatement stmt=conn.prepareStatement("SELECT COUNT(*) FROM `followings` WHERE `follower_id`=? AND `mutual`=1");
-			stmt.setInt(1, userID);
-			try(ResultSet res=stmt.executeQuery()){
-				res.first();
-				outTotal[0]=res.getInt(1);
-			}
-		}
-		PreparedStatement stmt=conn.prepareStatement("SELECT followee_id FROM `followings` WHERE `follower_id`=? AND `mutual`=1 ORDER BY RAND() LIMIT 6");
-		stmt.setInt(1, userID);
-		try(ResultSet res=stmt.executeQuery()){
-			return getByIdAsList(DatabaseUtils.intResultSetToList(res));
-		}
+		int[] friends=SocialGraph.getFriends(userID);
+		if(outTotal!=null && outTotal.length>=1)
+			outTotal[0]=friends.length;
+		return getByIdAsList(SocialGraph.randomSample(friends, 6));
 	}
 
 	public static int getMutualFriendsCount(int userID, int otherUserID) throws SQLException{
-		Connection conn=DatabaseConnectionManager.getConnection();
-		PreparedStatement stmt=conn.prepareStatement("SELECT COUNT(*) FROM followings AS friends1 INNER JOIN followings AS friends2 ON friends1.followee_id=friends2.followee_id WHERE friends1.follower_id=? AND friends2.follower_id=? AND friends1.mutual=1 AND friends2.mutual=1");
-		stmt.setInt(1, userID);
-		stmt.setInt(2, otherUserID);
-		try(ResultSet res=stmt.executeQuery()){
-			res.first();
-			return res.getInt(1);
-		}
+		return SocialGraph.getMutualFriendCount(userID, otherUserID);
 	}
 
 	public static List<User> getRandomMutualFriendsForProfile(int userID, int otherUserID) throws SQLException{
-		Connection conn=DatabaseConnectionManager.getConnection();
-		PreparedStatement stmt=conn.prepareStatement("SELECT friends1.followee_id FROM followings AS friends1 INNER JOIN followings AS friends2 ON friends1.followee_id=friends2.followee_id WHERE friends1.follower_id=? AND friends2.follower_id=? AND friends1.mutual=1 AND friends2.mutual=1 ORDER BY RAND() LIMIT 3");
-		stmt.setInt(1, userID);
-		stmt.setInt(2, otherUserID);
-		try(ResultSet res=stmt.executeQuery()){
-			return getByIdAsList(DatabaseUtils.intResultSetToList(res));
-		}
+		return getByIdAsList(SocialGraph.randomSample(SocialGraph.getMutualFriends(userID, otherUserID), 3));
 	}
 
 	public static List<User> getMutualFriendListForUser(int userID, int otherUserID) throws SQLException{
-		Connection conn=DatabaseConnectionManager.getConnection();
-		PreparedStatement stmt=conn.prepareStatement("SELECT friends1.followee_id FROM followings AS friends1 INNER JOIN followings AS friends2 ON friends1.followee_id=friends2.followee_id WHERE friends1.follower_id=? AND friends2.follower_id=? AND friends1.mutual=1 AND friends2.mutual=1");
-		stmt.setInt(1, userID);
-		stmt.setInt(2, otherUserID);
-		try(ResultSet res=stmt.executeQuery()){
-			return getByIdAsList(DatabaseUtils.intResultSetToList(res));
-		}
+		return getByIdAsList(SocialGraph.toList(SocialGraph.getMutualFriends(userID, otherUserID)));
 	}
 
 	public static List<User> getNonMutualFollowers(int userID, boolean followers, boolean accepted) throws SQLException{
@@ -366,7 +309,12 @@ public class UserStorage{
 				conn.createStatement().execute("ROLLBACK");
 				return;
 			}
+			NewsfeedStorage.addFolloweeToTimeline(userID, targetUserID);
 			conn.createStatement().execute("COMMIT");
+			SocialGraph.removeFriendRequest(targetUserID, userID);
+			SocialGraph.putFollow(userID, targetUserID, followAccepted);
+			SocialGraph.setFriends(userID, targetUserID, true);
+			followerInboxes.add(targetUserID, getDeliveryInbox(userID));
 			synchronized(NotificationsStorage.class){
 				UserNotifications n=NotificationsStorage.getNotificationsFromCache(userID);
 				if(n!=null)
@@ -384,6 +332,7 @@ public class UserStorage{
 		stmt.setInt(1, targetUserID);
 		stmt.setInt(2, userID);
 		int rows=stmt.executeUpdate();
+		SocialGraph.removeFriendRequest(targetUserID, userID);
 		synchronized(NotificationsStorage.class){
 			UserNotifications n=NotificationsStorage.getNotificationsFromCache(userID);
 			if(n!=null)
@@ -398,12 +347,16 @@ public class UserStorage{
 			PreparedStatement stmt=conn.prepareStatement("DELETE FROM `followings` WHERE `follower_id`=? AND `followee_id`=?");
 			stmt.setInt(1, userID);
 			stmt.setInt(2, targetUserID);
-			stmt.execute();
+			boolean unfollowed=stmt.executeUpdate()>0;
 			stmt=conn.prepareStatement("UPDATE `followings` SET `mutual`=0 WHERE `follower_id`=? AND `followee_id`=?");
 			stmt.setInt(1, targetUserID);
 			stmt.setInt(2, userID);
 			stmt.execute();
+			NewsfeedStorage.removeFolloweeFromTimeline(userID, targetUserID);
 			conn.createStatement().execute("COMMIT");
+			SocialGraph.removeFollow(userID, targetUserID);
+			if(unfollowed)
+				followerInboxes.remove(targetUserID, getDeliveryInbox(userID));
 		}catch(SQLException x){
 			conn.createStatement().execute("ROLLBACK");
 			throw new SQLException(x);
@@ -443,8 +396,13 @@ public class UserStorage{
 				stmt.setInt(2, userID);
 				stmt.execute();
 			}
+			NewsfeedStorage.addFolloweeToTimeline(userID, targetUserID);
 
 			conn.createStatement().execute("COMMIT");
+			SocialGraph.putFollow(userID, targetUserID, accepted);
+			if(mutual)
+				SocialGraph.setFriends(userID, targetUserID, true);
+			followerInboxes.add(targetUserID, getDeliveryInbox(userID));
 		}catch(SQLException x){
 			conn.createStatement().execute("ROLLBACK");
 			throw new SQLException(x);
@@ -489,9 +447,7 @@ public class UserStorage{
 				.value("about", about)
 				.createStatement()
 				.execute();
-		synchronized(UserStorage.class){
-			removeFromCache(user);
-		}
+		removeFromCache(user);
 		updateQSearchIndex(getById(user.id));
 	}
 
@@ -515,22 +471,31 @@ public class UserStorage{
 		stmt.setString(1, serializedPic);
 		stmt.setInt(2, user.id);
 		stmt.execute();
-		synchronized(UserStorage.class){
-			removeFromCache(user);
+		removeFromCache(user);
+	}
+
+	public static int putOrUpdateForeignUser(ForeignUser user) throws SQLException{
+		// Serialized per actor because this is a select followed by an insert and ap_id is unique
+		synchronized(foreignUserLocks.forKey(user.activityPubID)){
+			return doPutOrUpdateForeignUser(user);
 		}
 	}
 
-	public static synchronized int putOrUpdateForeignUser(ForeignUser user) throws SQLException{
+	private static int doPutOrUpdateForeignUser(ForeignUser user) throws SQLException{
 		Connection conn=DatabaseConnectionManager.getConnection();
 		PreparedStatement stmt=new SQLQueryBuilder(conn)
 				.selectFrom("users")
-				.columns("id")
+				.columns("id", "ap_inbox", "ap_shared_inbox", "username")
 				.where("ap_id=?", Objects.toString(user.activityPubID))
 				.createStatement();
 		int existingUserID=0;
+		String oldInbox=null, oldUsername=null;
 		try(ResultSet res=stmt.executeQuery()){
-			if(res.first())
+			if(res.first()){
 				existingUserID=res.getInt(1);
+				oldInbox=res.getString(3)!=null ? res.getString(3) : res.getString(2);
+				oldUsername=res.getString(4);
+			}
 		}
 		SQLQueryBuilder bldr=new SQLQueryBuilder(conn);
 		if(existingUserID!=0){
@@ -574,6 +539,11 @@ public class UserStorage{
 			}
 		}
 		user.id=existingUserID;
+		if(oldUsername!=null && !oldUsername.equals(user.username)){
+			String oldKey=(oldUsername+"@"+user.domain).toLowerCase();
+			cacheGenerations.increment(oldKey);
+			cacheByUsername.remove(oldKey);
+		}
 		putIntoCache(user);
 
 		if(isNew){
@@ -585,6 +555,16 @@ public class UserStorage{
 					.execute();
 		}else{
 			updateQSearchIndex(user);
+			if(!Objects.equals(oldUsername, user.username))
+				PostHTMLCache.invalidateMentions();
+			URI newInbox=user.sharedInbox!=null ? user.sharedInbox : user.inbox;
+			if(!Objects.equals(oldInbox, Objects.toString(newInbox, null))){
+				URI oldInboxURI=oldInbox!=null ? URI.create(oldInbox) : null;
+				for(int followeeID:SocialGraph.getFollowing(existingUserID)){
+					followerInboxes.replace(followeeID, oldInboxURI, newInbox);
+				}
+				GroupStorage.memberInboxChanged(existingUserID, oldInboxURI, newInbox);
+			}
 		}
 
 		return existingUserID;
@@ -602,43 +582,61 @@ public class UserStorage{
 		return getForeignUserByActivityPubID(apID);
 	}
 
-	public static synchronized ForeignUser getForeignUserByActivityPubID(URI apID) throws SQLException{
+	public static ForeignUser getForeignUserByActivityPubID(URI apID) throws SQLException{
 		ForeignUser user=cacheByActivityPubID.get(apID);
 		if(user!=null)
 			return user;
+		int generation=cacheGenerations.get(apID);
 		Connection conn=DatabaseConnectionManager.getConnection();
 		PreparedStatement stmt=conn.prepareStatement("SELECT * FROM `users` WHERE `ap_id`=?");
 		stmt.setString(1, apID.toString());
 		try(ResultSet res=stmt.executeQuery()){
 			if(res.first()){
 				user=ForeignUser.fromResultSet(res);
-				cacheByActivityPubID.put(apID, user);
-				cache.put(user.id, user);
-				cacheByUsername.put(user.getFullUsername().toLowerCase(), user);
+				putIntoCache(user, apID, generation);
 				return user;
 			}
 		}
 		return null;
 	}
 
+	/**
+	 * @return the distinct inboxes, shared where possible, of this user's remote followers
+	 */
 	public static List<URI> getFollowerInboxes(int userID) throws SQLException{
-		Connection conn=DatabaseConnectionManager.getConnection();
-		PreparedStatement stmt=conn.prepareStatement("SELECT DISTINCT IFNULL(`ap_shared_inbox`, `ap_inbox`) FROM `users` WHERE `id` IN (SELECT `follower_id` FROM `followings` WHERE `followee_id`=?)");
-		stmt.setInt(1, userID);
-		ArrayList<URI> list=new ArrayList<>();
+		List<URI> inboxes=followerInboxes.get(userID);
+		if(inboxes!=null)
+			return inboxes;
+		int generation=followerInboxes.getGeneration();
+		PreparedStatement stmt=SQLQueryBuilder.prepareStatement(DatabaseConnectionManager.getConnection(),
+				"SELECT IFNULL(`ap_shared_inbox`, `ap_inbox`) AS `inbox`, COUNT(*) FROM `users` WHERE `id` IN (SELECT `follower_id` FROM `followings` WHERE `followee_id`=?) AND `ap_inbox` IS NOT NULL GROUP BY `inbox`", userID);
+		return followerInboxes.put(userID, inboxCountsFromResultSet(stmt), generation);
+	}
+
+	/**
+	 * @param stmt a query that returns inbox URLs and the number of users that use them
+	 */
+	static Map<URI, Integer> inboxCountsFromResultSet(PreparedStatement stmt) throws SQLException{
+		HashMap<URI, Integer> counts=new HashMap<>();
 		try(ResultSet res=stmt.executeQuery()){
-			if(res.first()){
-				do{
-					String url=res.getString(1);
-					if(url==null)
-						continue;
-					try{
-						list.add(new URI(url));
-					}catch(URISyntaxException ignore){}
-				}while(res.next());
+			while(res.next()){
+				try{
+					counts.put(new URI(res.getString(1)), res.getInt(2));
+				}catch(URISyntaxException ignore){}
 			}
 		}
-		return list;
+		return counts;
+	}
+
+	/**
+	 * @return the inbox activities addressed to this user are delivered to, or null if it's a local user
+	 */
+	static URI getDeliveryInbox(int userID) throws SQLException{
+		User user=getById(userID);
+		if(!(user instanceof ForeignUser))
+			return null;
+		ForeignUser foreignUser=(ForeignUser) user;
+		return foreignUser.sharedInbox!=null ? foreignUser.sharedInbox : foreignUser.inbox;
 	}
 
 	public static List<URI> getUserFollowerURIs(int userID, boolean followers, int offset, int count, int[] total) throws SQLException{
@@ -646,14 +644,8 @@ public class UserStorage{
 		String fld1=followers ? "follower_id" : "followee_id";
 		String fld2=followers ? "followee_id" : "follower_id";
 		PreparedStatement stmt;
-		if(total!=null){
-			stmt=conn.prepareStatement("SELECT count(*) FROM `followings` WHERE `"+fld2+"`=?");
-			stmt.setInt(1, userID);
-			try(ResultSet res=stmt.executeQuery()){
-				res.first();
-				total[0]=res.getInt(1);
-			}
-		}
+		if(total!=null)
+			total[0]=followers ? SocialGraph.getFollowerCount(userID) : SocialGraph.getFollowingCount(userID);
 		if(count>0){
 			stmt=conn.prepareStatement("SELECT `ap_id`,`id` FROM `followings` INNER JOIN `users` ON `users`.`id`=`"+fld1+"` WHERE `"+fld2+"`=? AND `accepted`=1 LIMIT ? OFFSET ?");
 			stmt.setInt(1, userID);
@@ -684,6 +676,7 @@ public class UserStorage{
 		stmt.setInt(2, followerID);
 		stmt.setInt(3, followeeID);
 		stmt.execute();
+		SocialGraph.setFollowAccepted(followerID, followeeID, accepted);
 	}
 
 	public static List<Account> getAllAccounts(int offset, int count) throws SQLException{
@@ -707,10 +700,11 @@ public class UserStorage{
 		return accounts;
 	}
 
-	public static synchronized Account getAccount(int id) throws SQLException{
+	public static Account getAccount(int id) throws SQLException{
 		Account acc=accountCache.get(id);
 		if(acc!=null)
 			return acc;
+		int generation=accountCacheGenerations.get(id);
 		Connection conn=DatabaseConnectionManager.getConnection();
 		PreparedStatement stmt=conn.prepareStatement("SELECT a1.*, a2.user_id AS inviter_user_id FROM accounts AS a1 LEFT JOIN accounts AS a2 ON a1.invited_by=a2.id WHERE a1.id=?");
 		stmt.setInt(1, id);
@@ -722,6 +716,8 @@ public class UserStorage{
 					acc.invitedBy=getById(inviterID);
 				}
 				accountCache.put(acc.id, acc);
+				if(accountCacheGenerations.get(id)!=generation)
+					accountCache.remove(acc.id);
 				return acc;
 			}
 		}
@@ -734,9 +730,7 @@ public class UserStorage{
 		stmt.setInt(1, level.ordinal());
 		stmt.setInt(2, id);
 		stmt.execute();
-		synchronized(UserStorage.class){
-			accountCache.remove(id);
-		}
+		removeAccountFromCache(id);
 	}
 
 	public static List<User> getAdmins() throws SQLException{
@@ -802,11 +796,19 @@ public class UserStorage{
 				.where("(follower_id=? AND followee_id=?) OR (follower_id=? AND followee_id=?)", selfID, targetID, targetID, selfID)
 				.createStatement()
 				.execute();
+		NewsfeedStorage.removeFolloweeFromTimeline(selfID, targetID);
+		NewsfeedStorage.removeFolloweeFromTimeline(targetID, selfID);
 		new SQLQueryBuilder(conn)
 				.deleteFrom("friend_requests")
 				.where("(from_user_id=? AND to_user_id=?) OR (from_user_id=? AND to_user_id=?)", selfID, targetID, targetID, selfID)
 				.createStatement()
 				.execute();
+		SocialGraph.removeFollow(selfID, targetID);
+		SocialGraph.removeFollow(targetID, selfID);
+		followerInboxes.invalidate(selfID);
+		followerInboxes.invalidate(targetID);
+		SocialGraph.removeFriendRequest(selfID, targetID);
+		SocialGraph.removeFriendRequest(targetID, selfID);
 	}
 
 	public static void unblockUser(int selfID, int targetID) throws SQLException{
@@ -868,7 +870,34 @@ public class UserStorage{
 				.execute();
 	}
 
+	/**
+	 * For freshly written users. Anything concurrent lookups read before the write must not end up in the cache.
+	 */
 	private static void putIntoCache(User user){
+		incrementGenerations(user);
+		doPutIntoCache(user);
+	}
+
+	/**
+	 * For users that were just read from the database.
+	 * @param key the ID, username or ActivityPub ID the user was looked up by
+	 * @param generation the generation of that key from before the query
+	 */
+	private static void putIntoCache(User user, Object key, int generation){
+		doPutIntoCache(user);
+		// Undo the put if this user's entries were changed while the query was running, the result may be stale
+		if(cacheGenerations.get(key)!=generation)
+			doRemoveFromCache(user);
+	}
+
+	private static void incrementGenerations(User user){
+		cacheGenerations.increment(user.id);
+		cacheGenerations.increment(user.getFullUsername().toLowerCase());
+		if(user instanceof ForeignUser)
+			cacheGenerations.increment(user.activityPubID);
+	}
+
+	private static void doPutIntoCache(User user){
 		cache.put(user.id, user);
 		cacheByUsername.put(user.getFullUsername().toLowerCase(), user);
 		if(user instanceof ForeignUser)
@@ -876,6 +905,16 @@ public class UserStorage{
 	}
 
 	private static void removeFromCache(User user){
+		incrementGenerations(user);
+		doRemoveFromCache(user);
+	}
+
+	static void removeAccountFromCache(int id){
+		accountCacheGenerations.increment(id);
+		accountCache.remove(id);
+	}
+
+	private static void doRemoveFromCache(User user){
 		cache.remove(user.id);
 		cacheByUsername.remove(user.getFullUsername().toLowerCase());
 		if(user instanceof ForeignUser)
@@ -889,9 +928,7 @@ public class UserStorage{
 				.where("id=?", accountID)
 				.createStatement()
 				.execute();
-		synchronized(UserStorage.class){
-			accountCache.remove(accountID);
-		}
+		removeAccountFromCache(accountID);
 	}
 
 	static String getQSearchStringForUser(User user){
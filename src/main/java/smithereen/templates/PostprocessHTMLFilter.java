@@ -9,12 +9,12 @@ import com.mitchellbosecke.pebble.template.PebbleTemplate;
 import java.util.List;
 import java.util.Map;
 
-import smithereen.Utils;
+import smithereen.util.PostHTMLCache;
 
 public class PostprocessHTMLFilter implements Filter{
 	@Override
 	public Object apply(Object input, Map<String, Object> args, PebbleTemplate self, EvaluationContext context, int lineNumber) throws PebbleException{
-		return new SafeString(Utils.postprocessPostHTMLForDisplay((String)input));
+		return new SafeString(PostHTMLCache.getDisplayHTML((String)input));
 	}
 
 	@Override
@@ -35,6 +35,10 @@ public class RenderedTemplateResponse{
 		templateName=name;
 	}
 
+	public Locale getLocale(){
+		return locale;
+	}
+
 	public void renderToWriter(Writer writer) throws IOException{
 		template=getAndPrepareTemplate(req);
 		template.evaluate(writer, model, locale);
@@ -2,6 +2,8 @@ package smithereen.templates;
 
 import com.google.gson.JsonObject;
 import com.mitchellbosecke.pebble.PebbleEngine;
+import com.mitchellbosecke.pebble.cache.CacheKey;
+import com.mitchellbosecke.pebble.cache.PebbleCache;
 import com.mitchellbosecke.pebble.loader.ClasspathLoader;
 import com.mitchellbosecke.pebble.loader.DelegatingLoader;
 import com.mitchellbosecke.pebble.template.PebbleTemplate;
@@ -12,9 +14,12 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import smithereen.CacheRegistry;
 import smithereen.Config;
+import smithereen.LruCache;
 import smithereen.Utils;
 import smithereen.data.Account;
 import smithereen.data.SessionInfo;
@@ -24,6 +29,11 @@ import smithereen.storage.NotificationsStorage;
 import spark.Request;
 
 public class Templates{
+	/**
+	 * Backs {% cache %} tags in all engines. Entries expire so that the cached image URLs of remote attachments don't
+	 * outlive the media cache files they point to, since serving a fragment from here doesn't touch the media cache.
+	 */
+	private static final LruCache<CacheKey, Object> fragmentCache=CacheRegistry.create("templates.fragments", 5000, 10*60*1000L);
 	private static final PebbleEngine desktopEngine=makeEngineInstance("desktop", "common");
 	private static final PebbleEngine mobileEngine=makeEngineInstance("mobile", "common");
 	private static final PebbleEngine popupEngine=makeEngineInstance("popup");
@@ -41,6 +51,7 @@ public class Templates{
 				.defaultLocale(Locale.US)
 				.defaultEscapingStrategy("html")
 				.extension(new SmithereenExtension())
+				.tagCache(new FragmentCache())
 				.build();
 	}
 
@@ -109,4 +120,21 @@ public class Templates{
 			return (int)(long)(Long)o;
 		throw new IllegalArgumentException("Can't cast "+o+" to int");
 	}
+
+	private static class FragmentCache implements PebbleCache<CacheKey, Object>{
+		@Override
+		public Object computeIfAbsent(CacheKey key, Function<? super CacheKey, ?> mappingFunction){
+			Object value=fragmentCache.get(key);
+			if(value==null){
+				value=mappingFunction.apply(key);
+				fragmentCache.put(key, value);
+			}
+			return value;
+		}
+
+		@Override
+		public void invalidateAll(){
+			fragmentCache.evictAll();
+		}
+	}
 }
@@ -0,0 +1,100 @@
+package smithereen.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Escapes everything written to it the same way Gson escapes string values (with HTML escaping disabled) and passes it
+ * on to the underlying writer. Used to write big strings, like rendered templates, into a JSON document without ever
+ * having them in memory in full. Doesn't write the quotes around the string.
+ */
+public class JsonStringWriter extends Writer{
+	private final Writer out;
+
+	public JsonStringWriter(Writer out){
+		this.out=out;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException{
+		int end=off+len;
+		int runStart=off;
+		for(int i=off;i<end;i++){
+			String replacement=replacementFor(cbuf[i]);
+			if(replacement!=null){
+				if(i>runStart)
+					out.write(cbuf, runStart, i-runStart);
+				out.write(replacement);
+				runStart=i+1;
+			}
+		}
+		if(end>runStart)
+			out.write(cbuf, runStart, end-runStart);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException{
+		int end=off+len;
+		int runStart=off;
+		for(int i=off;i<end;i++){
+			String replacement=replacementFor(str.charAt(i));
+			if(replacement!=null){
+				if(i>runStart)
+					out.write(str, runStart, i-runStart);
+				out.write(replacement);
+				runStart=i+1;
+			}
+		}
+		if(end>runStart)
+			out.write(str, runStart, end-runStart);
+	}
+
+	@Override
+	public void write(int c) throws IOException{
+		String replacement=replacementFor((char)c);
+		if(replacement!=null)
+			out.write(replacement);
+		else
+			out.write(c);
+	}
+
+	@Override
+	public void flush() throws IOException{
+		out.flush();
+	}
+
+	/**
+	 * Doesn't close the underlying writer since the rest of the document still needs to be written to it.
+	 */
+	@Override
+	public void close() throws IOException{
+		out.flush();
+	}
+
+	private static String replacementFor(char c){
+		switch(c){
+			case '"':
+				return "\\\"";
+			case '\\':
+				return "\\\\";
+			case '\n':
+				return "\\n";
+			case '\r':
+				return "\\r";
+			case '\t':
+				return "\\t";
+			case '\b':
+				return "\\b";
+			case '\f':
+				return "\\f";
+			case '\u2028':
+				return "\\u2028";
+			case '\u2029':
+				return "\\u2029";
+			default:
+				if(c<0x20)
+					return String.format("\\u%04x", (int)c);
+				return null;
+		}
+	}
+}
@@ -5,16 +5,22 @@ import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import smithereen.Utils;
+import smithereen.storage.DatabaseConnectionManager;
 
 public class MaintenanceScheduler{
 	private static ScheduledExecutorService executor=Executors.newSingleThreadScheduledExecutor();
 	private static final Logger LOG=LoggerFactory.getLogger(MaintenanceScheduler.class);
 
 	public static void runDaily(Runnable r){
-		executor.scheduleAtFixedRate(r, 0, 1, TimeUnit.DAYS);
+		executor.scheduleAtFixedRate(DatabaseConnectionManager.wrap(r), 0, 1, TimeUnit.DAYS);
+	}
+
+	public static ScheduledFuture<?> runPeriodically(Runnable r, long period, TimeUnit unit){
+		return executor.scheduleAtFixedRate(DatabaseConnectionManager.wrap(r), period, period, unit);
 	}
 
 	public static void shutDown(){
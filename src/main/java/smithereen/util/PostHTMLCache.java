@@ -0,0 +1,65 @@
+package smithereen.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import smithereen.CacheRegistry;
+import smithereen.LruCache;
+import smithereen.Utils;
+
+/**
+ * Caches the results of {@link Utils#postprocessPostHTMLForDisplay(String)} and {@link Utils#postprocessPostHTMLForActivityPub(String)}
+ * by their input, so that post text is parsed once per version instead of on every render. An edited post has different
+ * text and thus simply misses the cache. Display HTML of text with mentions also depends on the mentioned users' usernames,
+ * so it's recomputed after any of them changes.
+ */
+public class PostHTMLCache{
+	private static final LruCache<String, DisplayHTML> displayCache=CacheRegistry.create("posts.html.display", 2000);
+	private static final LruCache<String, String> activityPubCache=CacheRegistry.create("posts.html.activitypub", 1000);
+	private static final AtomicInteger usernameGeneration=new AtomicInteger();
+
+	public static String getDisplayHTML(String html){
+		if(html==null)
+			return Utils.postprocessPostHTMLForDisplay(html);
+		int generation=usernameGeneration.get();
+		DisplayHTML cached=displayCache.get(html);
+		if(cached!=null && (!cached.hasMentions || cached.generation==generation))
+			return cached.html;
+		DisplayHTML result=new DisplayHTML(Utils.postprocessPostHTMLForDisplay(html), html.contains("data-user-id"), generation);
+		displayCache.put(html, result);
+		return result.html;
+	}
+
+	public static String getActivityPubHTML(String html){
+		if(html==null)
+			return Utils.postprocessPostHTMLForActivityPub(html);
+		String cached=activityPubCache.get(html);
+		if(cached!=null)
+			return cached;
+		String result=Utils.postprocessPostHTMLForActivityPub(html);
+		activityPubCache.put(html, result);
+		return result;
+	}
+
+	public static int getUsernameGeneration(){
+		return usernameGeneration.get();
+	}
+
+	/**
+	 * Must be called when a user's username changes, since it's part of the links in the mentions of that user.
+	 */
+	public static void invalidateMentions(){
+		usernameGeneration.incrementAndGet();
+	}
+
+	private static class DisplayHTML{
+		final String html;
+		final boolean hasMentions;
+		final int generation;
+
+		DisplayHTML(String html, boolean hasMentions, int generation){
+			this.html=html;
+			this.hasMentions=hasMentions;
+			this.generation=generation;
+		}
+	}
+}
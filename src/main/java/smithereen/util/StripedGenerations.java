@@ -0,0 +1,29 @@
+package smithereen.util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Per-key change counters for caches that are filled by lookups that don't hold a lock across their query.
+ * A lookup reads the generation of its key before the query and only keeps its result in the cache if the generation
+ * is still the same afterwards; every change increments the generations of all the keys it affects. Keys are hashed
+ * into a fixed number of counters, so a change only makes lookups of the few keys that share its counter skip caching.
+ */
+public class StripedGenerations{
+	private final AtomicIntegerArray generations;
+
+	public StripedGenerations(int stripes){
+		generations=new AtomicIntegerArray(stripes);
+	}
+
+	public int get(Object key){
+		return generations.get(index(key));
+	}
+
+	public void increment(Object key){
+		generations.incrementAndGet(index(key));
+	}
+
+	private int index(Object key){
+		return (key.hashCode() & 0x7FFFFFFF)%generations.length();
+	}
+}
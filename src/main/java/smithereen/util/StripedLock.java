@@ -0,0 +1,19 @@
+package smithereen.util;
+
+/**
+ * A fixed set of monitors to synchronize on per key instead of on a whole class,
+ * for when operations on the same key must not run concurrently but operations on different keys may.
+ */
+public class StripedLock{
+	private final Object[] locks;
+
+	public StripedLock(int stripes){
+		locks=new Object[stripes];
+		for(int i=0;i<stripes;i++)
+			locks[i]=new Object();
+	}
+
+	public Object forKey(Object key){
+		return locks[(key.hashCode() & 0x7FFFFFFF)%locks.length];
+	}
+}
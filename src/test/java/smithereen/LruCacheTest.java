@@ -0,0 +1,80 @@
+package smithereen;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LruCacheTest{
+
+	@Test
+	public void testEvictsLeastRecentlyUsed(){
+		LruCache<Integer, String> cache=new LruCache<>(3);
+		cache.put(1, "a");
+		cache.put(2, "b");
+		cache.put(3, "c");
+		assertEquals("a", cache.get(1));
+		cache.put(4, "d");
+		assertNull(cache.get(2));
+		assertEquals("a", cache.get(1));
+		assertEquals(3, cache.size());
+		assertEquals(1, cache.evictionCount());
+	}
+
+	@Test
+	public void testPutIfAbsentKeepsExistingValue(){
+		LruCache<String, String> cache=new LruCache<>(10);
+		assertNull(cache.putIfAbsent("k", "first"));
+		assertEquals("first", cache.putIfAbsent("k", "second"));
+		assertEquals("first", cache.get("k"));
+	}
+
+	@Test
+	public void testSegmentedCacheStaysWithinMaxSize() throws Exception{
+		LruCache<Integer, Integer> cache=new LruCache<>(1000);
+		List<Thread> threads=new ArrayList<>();
+		for(int t=0;t<8;t++){
+			int base=t*10000;
+			Thread thread=new Thread(()->{
+				for(int i=0;i<10000;i++){
+					cache.put(base+i, i);
+					cache.get(base+i/2);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for(Thread thread:threads)
+			thread.join();
+		assertTrue(cache.size()<=1000, "size "+cache.size()+" exceeds max size");
+		assertTrue(cache.size()>900, "cache should stay nearly full");
+		assertEquals(80000, cache.putCount());
+		assertEquals(cache.size(), cache.snapshot().size());
+	}
+
+	@Test
+	public void testResizeTrimsEntries(){
+		LruCache<Integer, Integer> cache=new LruCache<>(500);
+		for(int i=0;i<500;i++)
+			cache.put(i, i);
+		cache.resize(100);
+		assertTrue(cache.size()<=100);
+		assertEquals(100, cache.maxSize());
+	}
+
+	@Test
+	public void testEntriesExpire() throws Exception{
+		LruCache<String, String> cache=new LruCache<>(10, 50);
+		cache.put("a", "1");
+		assertEquals("1", cache.get("a"));
+		Thread.sleep(80);
+		assertTrue(cache.snapshot().isEmpty());
+		assertNull(cache.get("a"));
+		assertEquals(1, cache.expirationCount());
+		assertEquals(0, cache.size());
+		assertNull(cache.putIfAbsent("a", "2"));
+		assertEquals("2", cache.get("a"));
+	}
+}
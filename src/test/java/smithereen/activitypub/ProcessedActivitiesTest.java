@@ -0,0 +1,36 @@
+package smithereen.activitypub;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProcessedActivitiesTest{
+
+	private static String acceptFollow(String followID){
+		return "{\"@context\":\"https://www.w3.org/ns/activitystreams\",\"type\":\"Accept\",\"id\":\"https://remote.example/users/2#acceptFollow1\","+
+				"\"actor\":\"https://remote.example/users/2\",\"object\":{\"type\":\"Follow\",\"id\":\""+followID+"\","+
+				"\"actor\":\"https://local.example/users/1\",\"object\":\"https://remote.example/users/2\"}}";
+	}
+
+	@Test
+	public void testReusedAcceptIdAfterRefollow() throws SQLException{
+		URI acceptID=URI.create("https://remote.example/users/2#acceptFollow1");
+
+		// Follow, accepted
+		String first=acceptFollow("https://local.example/users/1#follow2_aaaa");
+		assertFalse(ProcessedActivities.wasProcessed(acceptID, first));
+		ProcessedActivities.markProcessed(acceptID, first);
+
+		// The same Accept redelivered
+		assertTrue(ProcessedActivities.wasProcessed(acceptID, first));
+
+		// Unfollow and follow again: the remote server accepts the new Follow with the same Accept ID
+		String second=acceptFollow("https://local.example/users/1#follow2_bbbb");
+		assertFalse(ProcessedActivities.wasProcessed(acceptID, second));
+		ProcessedActivities.markProcessed(acceptID, second);
+		assertTrue(ProcessedActivities.wasProcessed(acceptID, second));
+	}
+}
@@ -0,0 +1,65 @@
+package smithereen.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+
+import smithereen.data.FriendshipStatus;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SocialGraphTest{
+
+	@Test
+	public void testFriendshipStatus(){
+		SocialGraph.putFollow(1001, 1002, true);
+		assertEquals(FriendshipStatus.FOLLOWING, SocialGraph.getFriendshipStatus(1001, 1002));
+		assertEquals(FriendshipStatus.FOLLOWED_BY, SocialGraph.getFriendshipStatus(1002, 1001));
+
+		SocialGraph.putFriendRequest(1001, 1002);
+		assertEquals(FriendshipStatus.REQUEST_SENT, SocialGraph.getFriendshipStatus(1001, 1002));
+		assertEquals(FriendshipStatus.REQUEST_RECVD, SocialGraph.getFriendshipStatus(1002, 1001));
+
+		SocialGraph.removeFriendRequest(1001, 1002);
+		SocialGraph.putFollow(1002, 1001, true);
+		SocialGraph.setFriends(1002, 1001, true);
+		assertEquals(FriendshipStatus.FRIENDS, SocialGraph.getFriendshipStatus(1001, 1002));
+		assertEquals(1, SocialGraph.getFriendCount(1001));
+
+		SocialGraph.removeFollow(1001, 1002);
+		assertEquals(FriendshipStatus.FOLLOWED_BY, SocialGraph.getFriendshipStatus(1001, 1002));
+		assertEquals(0, SocialGraph.getFriendCount(1002));
+
+		SocialGraph.putFollow(1003, 1004, false);
+		assertEquals(FriendshipStatus.FOLLOW_REQUESTED, SocialGraph.getFriendshipStatus(1003, 1004));
+		SocialGraph.setFollowAccepted(1003, 1004, true);
+		assertEquals(FriendshipStatus.FOLLOWING, SocialGraph.getFriendshipStatus(1003, 1004));
+		assertEquals(FriendshipStatus.NONE, SocialGraph.getFriendshipStatus(1001, 1004));
+	}
+
+	@Test
+	public void testMutualFriends(){
+		for(int id=2010;id<2020;id++){
+			SocialGraph.setFriends(2001, id, true);
+			if(id%2==0)
+				SocialGraph.setFriends(2002, id, true);
+		}
+		assertArrayEquals(new int[]{2010, 2012, 2014, 2016, 2018}, SocialGraph.getMutualFriends(2001, 2002));
+		assertEquals(5, SocialGraph.getMutualFriendCount(2002, 2001));
+		assertEquals(0, SocialGraph.getMutualFriendCount(2001, 2003));
+	}
+
+	@Test
+	public void testRandomSample(){
+		int[] ids={1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+		for(int i=0;i<100;i++){
+			List<Integer> sample=SocialGraph.randomSample(ids, 3);
+			assertEquals(3, sample.size());
+			assertEquals(3, new HashSet<>(sample).size());
+			for(int id:sample)
+				assertTrue(id>=1 && id<=10);
+		}
+		assertEquals(new HashSet<>(List.of(1, 2)), new HashSet<>(SocialGraph.randomSample(new int[]{1, 2}, 6)));
+	}
+}
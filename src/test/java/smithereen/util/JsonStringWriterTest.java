@@ -0,0 +1,28 @@
+package smithereen.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import smithereen.Utils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JsonStringWriterTest{
+
+	@Test
+	public void testEscapesLikeGson() throws IOException{
+		String str="<div class=\"post\">C:\\path\n\ttab\r\u0001\u2028 привет</div>";
+		StringWriter out=new StringWriter();
+		out.write('"');
+		JsonStringWriter writer=new JsonStringWriter(out);
+		writer.write(str.substring(0, 10));
+		writer.write(str.toCharArray(), 10, 5);
+		writer.write(str.charAt(15));
+		writer.write(str, 16, str.length()-16);
+		out.write('"');
+		assertEquals(Utils.gson.toJson(str), out.toString());
+		assertEquals(str, Utils.gson.fromJson(out.toString(), String.class));
+	}
+}